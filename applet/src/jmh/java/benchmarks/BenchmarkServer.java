@@ -0,0 +1,28 @@
+package benchmarks;
+
+import smpc_rsa.RSAServer;
+import smpc_rsa.jcmathlib.Bignat_Helper;
+import smpc_rsa.jcmathlib.ECConfig;
+
+/**
+ * The {@link RSAServer} applet installed into the simulator only to provide a helper
+ * for the benchmarked {@code Bignat} objects allocated in the applet runtime.
+ */
+public class BenchmarkServer extends RSAServer {
+
+    static BenchmarkServer instance;
+
+    final Bignat_Helper bignatHelper;
+
+    public static void install(byte[] bArray, short bOffset, byte bLength) {
+        new BenchmarkServer(bArray, bOffset, bLength);
+    }
+
+    public BenchmarkServer(byte[] bArray, short bOffset, byte bLength) {
+        super(bArray, bOffset, bLength);
+
+        bignatHelper = new ECConfig((short) 256).bnh;
+        instance = this;
+    }
+
+}
@@ -0,0 +1,245 @@
+package benchmarks;
+
+import com.licel.jcardsim.base.Simulator;
+
+import javacard.framework.AID;
+import javacard.framework.JCSystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import smpc_rsa.RSAServer;
+import smpc_rsa.jcmathlib.BarrettContext;
+import smpc_rsa.jcmathlib.Bignat;
+import smpc_rsa.jcmathlib.Bignat_Helper;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Off-card benchmarks of the {@link Bignat} arithmetic used by the {@link RSAServer}
+ * applet running in jcardsim. Operands are random, but the same for each run
+ * with the given bit length.
+ * <p>
+ * Operations modifying their operand restore it first, which is included in the score.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BignatBenchmark {
+
+    private static final byte[] APPLET_AID = new byte[]{
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x01, 0x01
+    };
+
+    @State(Scope.Thread)
+    public static class AllLengths {
+
+        @Param({"256", "1024", "2048", "4096"})
+        public int bits;
+
+        Operands op;
+
+        @Setup
+        public void setUp() {
+            op = new Operands(bits);
+        }
+
+    }
+
+    /**
+     * The double-width product in {@code mod_mult} is stored in a helper which
+     * holds at most 4096 bits in the configuration used by the applet.
+     */
+    @State(Scope.Thread)
+    public static class ModMultLengths {
+
+        @Param({"256", "1024", "2048"})
+        public int bits;
+
+        Operands op;
+        BarrettContext barrett;
+
+        @Setup
+        public void setUp() {
+            op = new Operands(bits);
+            barrett = new BarrettContext(op.modulus.length(), JCSystem.MEMORY_TYPE_PERSISTENT, op.bignatHelper);
+            barrett.set_modulus(op.modulus);
+        }
+
+    }
+
+    /**
+     * Operands of the given bit length allocated in a freshly installed applet.
+     */
+    static class Operands {
+
+        final Bignat x;
+        final Bignat y;
+        final Bignat modulus;
+        final Bignat product;
+
+        final Bignat result;
+        final Bignat quotient;
+        final Bignat tmp;
+
+        final Bignat_Helper bignatHelper;
+
+        Operands(int bits) {
+            new Simulator().installApplet(new AID(APPLET_AID, (short) 0, (byte) APPLET_AID.length),
+                    BenchmarkServer.class);
+            bignatHelper = BenchmarkServer.instance.bignatHelper;
+
+            short length = (short) (bits / 8);
+            Random rnd = new Random(bits);
+
+            // odd modulus of the full length and x invertible modulo it
+            BigInteger n = new BigInteger(bits, rnd).setBit(bits - 1).setBit(0);
+            BigInteger a;
+            do {
+                a = new BigInteger(bits, rnd).mod(n);
+            } while (!a.gcd(n).equals(BigInteger.ONE));
+            BigInteger b = new BigInteger(bits, rnd).mod(n);
+
+            modulus = bignat(n, length, bignatHelper);
+            x = bignat(a, length, bignatHelper);
+            y = bignat(b, length, bignatHelper);
+            product = bignat(a.multiply(b), (short) (length * 2), bignatHelper);
+
+            result = bignat(BigInteger.ZERO, (short) (length * 2), bignatHelper);
+            quotient = bignat(BigInteger.ZERO, (short) (length + 1), bignatHelper);
+            tmp = bignat(BigInteger.ZERO, (short) (length * 2), bignatHelper);
+        }
+
+        private static Bignat bignat(BigInteger value, short length, Bignat_Helper bignatHelper) {
+            // both memory types are plain arrays in the simulator
+            Bignat bignat = new Bignat(length, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+            setValue(bignat, value);
+            return bignat;
+        }
+
+        private static void setValue(Bignat bignat, BigInteger value) {
+            byte[] bytes = value.toByteArray();
+            int start = bytes.length > 1 && bytes[0] == 0x00 ? 1 : 0;
+            int length = bytes.length - start;
+
+            byte[] target = bignat.as_byte_array();
+            System.arraycopy(bytes, start, target, bignat.length() - length, length);
+        }
+
+    }
+
+    @Benchmark
+    public Bignat multSchoolbook(AllLengths state) {
+        Operands op = state.op;
+        op.result.mult_schoolbook(op.x, op.y);
+        return op.result;
+    }
+
+    @Benchmark
+    public Bignat sqr(AllLengths state) {
+        Operands op = state.op;
+        op.result.sqr(op.x);
+        return op.result;
+    }
+
+    /**
+     * The scratch space of {@code mult_karatsuba} is limited by the helper arrays
+     * in the same way as the product in {@code mod_mult}.
+     */
+    @Benchmark
+    public Bignat multKaratsuba(ModMultLengths state) {
+        Operands op = state.op;
+        op.result.mult_karatsuba(op.x, op.y);
+        return op.result;
+    }
+
+    @Benchmark
+    public Bignat remainderDivide(AllLengths state) {
+        Operands op = state.op;
+        op.tmp.clone(op.product);
+        op.tmp.remainder_divide(op.modulus, op.quotient);
+        return op.tmp;
+    }
+
+    @Benchmark
+    public Bignat remainderDivideFixed(AllLengths state) {
+        Operands op = state.op;
+        op.tmp.clone(op.product);
+        op.tmp.remainder_divide_fixed(op.modulus, op.quotient);
+        return op.tmp;
+    }
+
+    @Benchmark
+    public Bignat modBarrett(ModMultLengths state) {
+        Operands op = state.op;
+        op.tmp.clone(op.product);
+        op.tmp.mod(state.barrett);
+        return op.tmp;
+    }
+
+    @Benchmark
+    public Bignat modMult(ModMultLengths state) {
+        Operands op = state.op;
+        op.result.mod_mult(op.x, op.y, op.modulus);
+        return op.result;
+    }
+
+    @Benchmark
+    public Bignat modMultBarrett(ModMultLengths state) {
+        Operands op = state.op;
+        op.result.mod_mult(op.x, op.y, state.barrett);
+        return op.result;
+    }
+
+    @Benchmark
+    public Bignat add(AllLengths state) {
+        Operands op = state.op;
+        op.tmp.clone(op.x);
+        op.tmp.add(op.y);
+        return op.tmp;
+    }
+
+    @Benchmark
+    public Bignat subtract(AllLengths state) {
+        Operands op = state.op;
+        op.tmp.clone(op.x);
+        op.tmp.subtract(op.y);
+        return op.tmp;
+    }
+
+    @Benchmark
+    public Bignat modSub(AllLengths state) {
+        Operands op = state.op;
+        op.tmp.clone(op.x);
+        op.tmp.mod_sub(op.y, op.modulus);
+        return op.tmp;
+    }
+
+    @Benchmark
+    public boolean isCoprime(AllLengths state) {
+        Operands op = state.op;
+        return op.x.is_coprime(op.modulus);
+    }
+
+    @Benchmark
+    public Bignat modInvBinary(AllLengths state) {
+        Operands op = state.op;
+        op.tmp.clone(op.x);
+        op.tmp.mod_inv_binary(op.modulus);
+        return op.tmp;
+    }
+
+}
@@ -8,7 +8,7 @@ import javacard.framework.ISOException;
 import javacard.framework.Util;
 
 import javacard.security.CryptoException;
-import javacard.security.RSAPrivateKey;
+import javacard.security.PrivateKey;
 
 import javacardx.crypto.Cipher;
 
@@ -35,6 +35,7 @@ public class Common {
      */
     public static final byte DATA_TRANSFERRED = 0x22;
     public static final short PARTIAL_MODULUS_BYTE_LENGTH = 256;
+    public static final short CRT_PARAMETER_BYTE_LENGTH = 128;
     public static final short MAX_COMMAND_APDU_LENGTH = 255;
     public static final short MAX_RESPONSE_APDU_LENGTH = 256;
 
@@ -54,23 +55,62 @@ public class Common {
      * - second nibble is the segment order number, e.g.
      *     - 0x10 - first part of divided data.
      *     - 0x11 - second part of divided data
+     * <p>
+     * Undivided data may be sent in an extended length APDU, so the whole
+     * target array can be set by a single command. Divided data must fit
+     * into short APDUs.
      *
      * @param apdu   object representing the communication between the card and the terminal
      * @param target target byte array
      * @throws ISOException SW_INCORRECT_P1P2
+     * @throws ISOException SW_WRONG_LENGTH if the data do not fit into the target array
+     * @throws ISOException with {@link APDUException} reason
      */
     public static void setNumber(APDU apdu, byte[] target) {
+        setNumber(apdu, target, (short) target.length);
+    }
+
+    /**
+     * Copies the data content of the APDU Buffer to the first {@code length} bytes
+     * of the target byte array by parts defined in the P2 byte of APDU buffer.
+     *
+     * @param apdu   object representing the communication between the card and the terminal
+     * @param target target byte array
+     * @param length length of the number stored in the target array
+     * @throws ISOException SW_INCORRECT_P1P2
+     * @throws ISOException SW_WRONG_LENGTH if the data do not fit into the given length
+     * @throws ISOException with {@link APDUException} reason
+     * @see #setNumber(APDU, byte[])
+     */
+    public static void setNumber(APDU apdu, byte[] target, short length) {
         byte[] apduBuffer = apdu.getBuffer();
         byte p2 = apduBuffer[ISO7816.OFFSET_P2];
 
         if (p2 != P2_SINGLE && p2 != (P2_DIVIDED | P2_PART_0) && p2 != (P2_DIVIDED | P2_PART_1))
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 
-        short lc = (short) (apduBuffer[ISO7816.OFFSET_LC] & MAX_COMMAND_APDU_LENGTH);
-
-        // get segment order number (p2 & 0x0F)
-        short position = (short) (target.length - ((p2 & 0x0F) * MAX_COMMAND_APDU_LENGTH + lc));
-        Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CDATA, target, position, lc);
+        try {
+            short received = apdu.setIncomingAndReceive();
+            short lc = apdu.getIncomingLength();
+            short offsetCdata = apdu.getOffsetCdata();
+
+            if (p2 != P2_SINGLE && lc > MAX_COMMAND_APDU_LENGTH)
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+            // get segment order number (p2 & 0x0F)
+            short position = (short) (length - ((p2 & 0x0F) * MAX_COMMAND_APDU_LENGTH + lc));
+            if (position < 0)
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+            // extended length data may not fit into the APDU buffer at once
+            while (received > 0) {
+                Util.arrayCopyNonAtomic(apduBuffer, offsetCdata, target, position, received);
+                position += received;
+                received = apdu.receiveBytes(offsetCdata);
+            }
+        } catch (APDUException e) {
+            ISOException.throwIt(e.getReason());
+        }
     }
 
     /**
@@ -86,11 +126,11 @@ public class Common {
      * @param apdu         object representing the communication between the card and the terminal
      * @param target       target byte array
      * @param messageState state byte of the message
-     * @param privateKey   RSA private key
+     * @param privateKey   RSA private key, either in the standard or CRT form
      * @throws ISOException SW_CONDITIONS_NOT_SATISFIED if the keys have not yet been fully set
      * @throws ISOException SW_INCORRECT_P1P2
      */
-    public static byte setMessage(APDU apdu, byte[] target, byte messageState, RSAPrivateKey privateKey) {
+    public static byte setMessage(APDU apdu, byte[] target, byte messageState, PrivateKey privateKey) {
         if (!privateKey.isInitialized())
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
@@ -188,6 +228,42 @@ public class Common {
         }
     }
 
+    /**
+     * Sends the given array at once if the terminal accepts a response of its length,
+     * i.e. in an extended length APDU. Otherwise, sends only its part of the
+     * {@code MAX_RESPONSE_APDU_LENGTH} length selected by the P2 byte.
+     * <p>
+     * P2 - specifies part to be sent
+     *    - 0x00 - first part or the whole array
+     *    - 0x01 - second part
+     *
+     * @param apdu object representing the communication between the card and the terminal
+     * @param num  array to be sent
+     * @param p2   {@code P2_PART_0} or {@code P2_PART_1}
+     * @return true if the whole array has been sent, false otherwise
+     * @throws ISOException with {@link APDUException} reason
+     */
+    public static boolean sendLongNum(APDU apdu, byte[] num, byte p2) {
+        short offset = 0;
+        short length = MAX_RESPONSE_APDU_LENGTH;
+
+        try {
+            short le = apdu.setOutgoing();
+
+            if (p2 == P2_PART_0 && le >= num.length)
+                length = (short) num.length;
+            else
+                offset = (short) (p2 * MAX_RESPONSE_APDU_LENGTH);
+
+            apdu.setOutgoingLength(length);
+            apdu.sendBytesLong(num, offset, length);
+        } catch (APDUException e) {
+            ISOException.throwIt(e.getReason());
+        }
+
+        return length == num.length;
+    }
+
     /**
      * Zeroes the given array.
      *
@@ -211,14 +287,29 @@ public class Common {
         if (a.length != b.length)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
+        subtract(a, (short) 0, b, (short) 0, (short) a.length);
+    }
+
+    /**
+     * Subtract a number {@code b} from {@code a} stored in the given parts
+     * of byte arrays.
+     *
+     * @param a       byte array
+     * @param aOffset offset of the number in {@code a}
+     * @param b       byte array
+     * @param bOffset offset of the number in {@code b}
+     * @param length  length of both numbers
+     * @see #subtract(byte[], byte[])
+     */
+    public static void subtract(byte[] a, short aOffset, byte[] b, short bOffset, short length) {
         short acc = 0;
         short subtraction_result;
 
-        for (short i = (short) (a.length - 1); i >= 0; i--) {
-            acc = (short) (acc + (short) (b[i] & DIGIT_MASK));
-            subtraction_result = (short) ((a[i] & DIGIT_MASK) - (acc & DIGIT_MASK));
+        for (short i = (short) (length - 1); i >= 0; i--) {
+            acc = (short) (acc + (short) (b[(short) (bOffset + i)] & DIGIT_MASK));
+            subtraction_result = (short) ((a[(short) (aOffset + i)] & DIGIT_MASK) - (acc & DIGIT_MASK));
 
-            a[i] = (byte) (subtraction_result & DIGIT_MASK);
+            a[(short) (aOffset + i)] = (byte) (subtraction_result & DIGIT_MASK);
             acc = (short) ((acc >> DIGIT_LENGTH) & DIGIT_MASK);
 
             if (subtraction_result < 0)
@@ -226,6 +317,30 @@ public class Common {
         }
     }
 
+    /**
+     * Adds a number {@code b} to {@code a} stored in the given parts
+     * of byte arrays. The carry out of the highest byte is discarded.
+     * Function was taken from the JCMathLib library and adapted.
+     *
+     * @param a       byte array
+     * @param aOffset offset of the number in {@code a}
+     * @param b       byte array
+     * @param bOffset offset of the number in {@code b}
+     * @param length  length of both numbers
+     * @author Vasilios Mavroudis and Petr Svenda, adapted by Lukas Zaoral
+     */
+    public static void add(byte[] a, short aOffset, byte[] b, short bOffset, short length) {
+        short acc = 0;
+
+        for (short i = (short) (length - 1); i >= 0; i--) {
+            acc = (short) (acc + (short) (a[(short) (aOffset + i)] & DIGIT_MASK)
+                    + (short) (b[(short) (bOffset + i)] & DIGIT_MASK));
+
+            a[(short) (aOffset + i)] = (byte) (acc & DIGIT_MASK);
+            acc = (short) ((acc >> DIGIT_LENGTH) & DIGIT_MASK);
+        }
+    }
+
     /**
      * Comparison of two byte arrays of the same length.
      * Function was taken from the JCMathLib library and adapted.
@@ -240,11 +355,26 @@ public class Common {
         if (a.length != b.length)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
+        return lessThan(a, (short) 0, b, (short) 0, (short) a.length);
+    }
+
+    /**
+     * Comparison of two numbers stored in the given parts of byte arrays.
+     *
+     * @param a       byte array
+     * @param aOffset offset of the number in {@code a}
+     * @param b       byte array
+     * @param bOffset offset of the number in {@code b}
+     * @param length  length of both numbers
+     * @return true if {@code a} is strictly less than {@code b}, false otherwise.
+     * @see #lessThan(byte[], byte[])
+     */
+    public static boolean lessThan(byte[] a, short aOffset, byte[] b, short bOffset, short length) {
         short aShort, bShort;
 
-        for (short i = 0; i < a.length; i++) {
-            aShort = (short) (a[i] & DIGIT_MASK);
-            bShort = (short) (b[i] & DIGIT_MASK);
+        for (short i = 0; i < length; i++) {
+            aShort = (short) (a[(short) (aOffset + i)] & DIGIT_MASK);
+            bShort = (short) (b[(short) (bOffset + i)] & DIGIT_MASK);
 
             if (aShort < bShort)
                 return true;
@@ -5,14 +5,18 @@ import javacard.framework.Applet;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
+import javacard.framework.Util;
 
 import javacard.security.CryptoException;
 import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
+import javacard.security.PrivateKey;
+import javacard.security.RSAPrivateCrtKey;
 import javacard.security.RSAPrivateKey;
 import javacard.security.RSAPublicKey;
 import javacard.security.RandomData;
 
+import javacardx.apdu.ExtendedLength;
 import javacardx.crypto.Cipher;
 
 /**
@@ -21,10 +25,19 @@ import javacardx.crypto.Cipher;
  * <p>
  * It is recommended to use the provided proxy application
  * to send commands to the given card.
+ * <p>
+ * Numbers can be transferred either in a single extended length APDU,
+ * or divided into short APDUs if the card or terminal do not support them.
+ * <p>
+ * The client share of the private key can be stored either as a plain exponent,
+ * or in the CRT form, which makes the client signing roughly four times faster.
+ * <p>
+ * Spare key pairs can be generated in advance while the card is idle and later
+ * promoted to the active ones without waiting for the key generation.
  *
  * @author Lukas Zaoral
  */
-public class RSAClient extends Applet {
+public class RSAClient extends Applet implements ExtendedLength {
 
     private static final byte CLA_RSA_SMPC_CLIENT = (byte) 0x80;
 
@@ -36,6 +49,14 @@ public class RSAClient extends Applet {
     private static final byte INS_SET_MESSAGE = 0x14;
     private static final byte INS_SIGNATURE = 0x16;
     private static final byte INS_RESET = 0x18;
+    private static final byte INS_GENERATE_SPARE_KEYS = 0x1A;
+    private static final byte INS_ROTATE_KEYS = 0x1C;
+
+    /**
+     * P1 parameters of the INS_GENERATE_KEYS and INS_GENERATE_SPARE_KEYS instructions
+     */
+    private static final byte P1_GENERATE_STANDARD = 0x00;
+    private static final byte P1_GENERATE_CRT = 0x01;
 
     /**
      * P1 parameters of the INS_GET_KEYS instruction
@@ -43,6 +64,12 @@ public class RSAClient extends Applet {
     private static final byte P1_GET_D1_SERVER = 0x00;
     private static final byte P1_GET_N1 = 0x01;
 
+    /**
+     * Number of spare key pairs and the state of a generated one
+     */
+    private static final short SPARE_KEY_COUNT = 2;
+    private static final byte SPARE_GENERATED = 0x01;
+
     /**
      * Helper arrays
      */
@@ -56,12 +83,22 @@ public class RSAClient extends Applet {
     private final byte[] keysSent = new byte[2];
     private byte messageState = 0x00;
 
+    /**
+     * Spare key pairs with their server shares stored one after another
+     */
+    private final KeyPair[] spareRsaPairs = new KeyPair[SPARE_KEY_COUNT];
+    private final KeyPair[] spareRsaCrtPairs = new KeyPair[SPARE_KEY_COUNT];
+    private final byte[] spareD1Server = new byte[(short) (SPARE_KEY_COUNT * Common.PARTIAL_MODULUS_BYTE_LENGTH)];
+    private final byte[] spareState = new byte[SPARE_KEY_COUNT];
+
     /**
      * RSA objects
      */
     private RandomData rng;
     private KeyPair rsaPair;
+    private KeyPair rsaCrtPair;
     private RSAPrivateKey privateKey;
+    private RSAPrivateCrtKey crtPrivateKey;
     private RSAPublicKey publicKey;
     private Cipher rsa;
 
@@ -97,8 +134,13 @@ public class RSAClient extends Applet {
             rsa = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
 
             rsaPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
-            privateKey = (RSAPrivateKey) rsaPair.getPrivate();
-            publicKey = (RSAPublicKey) rsaPair.getPublic();
+            rsaCrtPair = buildCrtPair(rsaPair);
+            setActiveKeys();
+
+            for (short i = 0; i < SPARE_KEY_COUNT; i++) {
+                spareRsaPairs[i] = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
+                spareRsaCrtPairs[i] = buildCrtPair(spareRsaPairs[i]);
+            }
         } catch (CryptoException e) {
             ISOException.throwIt(e.getReason());
         }
@@ -106,6 +148,29 @@ public class RSAClient extends Applet {
         register();
     }
 
+    /**
+     * Creates the key pair with the CRT private key sharing the public key of the given pair.
+     *
+     * @param pair key pair with the standard private key
+     * @return key pair with the CRT private key
+     * @throws CryptoException if the key cannot be created
+     */
+    private static KeyPair buildCrtPair(KeyPair pair) {
+        RSAPrivateCrtKey crtKey = (RSAPrivateCrtKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE,
+                KeyBuilder.LENGTH_RSA_2048, false);
+
+        return new KeyPair(pair.getPublic(), crtKey);
+    }
+
+    /**
+     * Sets the active key references to the keys of the active key pairs.
+     */
+    private void setActiveKeys() {
+        privateKey = (RSAPrivateKey) rsaPair.getPrivate();
+        crtPrivateKey = (RSAPrivateCrtKey) rsaCrtPair.getPrivate();
+        publicKey = (RSAPublicKey) rsaPair.getPublic();
+    }
+
     /**
      * The `main` method of this applet
      *
@@ -144,6 +209,14 @@ public class RSAClient extends Applet {
                 reset(apdu);
                 break;
 
+            case INS_GENERATE_SPARE_KEYS:
+                generateSpareKeys(apdu);
+                break;
+
+            case INS_ROTATE_KEYS:
+                rotateKeys(apdu);
+                break;
+
             default:
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
         }
@@ -153,6 +226,10 @@ public class RSAClient extends Applet {
      * Generates the client and server shares of client key and the client partial modulus.
      * If the keys have already been generated, throws an exception. To regenerate them,
      * use the {@code INS_RESET} command first and then try again.
+     * <p>
+     * P1 - specifies the form of the client share
+     *     - 0x00 - private exponent
+     *     - 0x01 - CRT parameters
      *
      * @param apdu object representing the communication between the card and the world
      * @throws ISOException SW_COMMAND_NOT_ALLOWED if the keys have already been generated
@@ -160,29 +237,277 @@ public class RSAClient extends Applet {
      * @throws ISOException with {@link CryptoException} reason
      */
     private void generateRSAKeys(APDU apdu) {
-        if (privateKey.isInitialized() || publicKey.isInitialized())
+        if (getPrivateKey().isInitialized() || publicKey.isInitialized())
             ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
 
-        Common.checkZeroP1P2(apdu.getBuffer());
+        byte[] apduBuffer = apdu.getBuffer();
+        byte p1 = apduBuffer[ISO7816.OFFSET_P1];
+
+        if ((p1 != P1_GENERATE_STANDARD && p1 != P1_GENERATE_CRT) || apduBuffer[ISO7816.OFFSET_P2] != 0x00)
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 
         try {
             publicKey.setExponent(E, (short) 0, (short) E.length);
 
-            rsaPair.genKeyPair();
-            privateKey.getExponent(d1ServerBuffer, (short) 0);
+            if (p1 == P1_GENERATE_CRT)
+                generateCrtShares(rsaCrtPair, d1ServerBuffer, (short) 0);
+            else
+                generateShares(rsaPair, d1ServerBuffer, (short) 0);
+
+            rsa.init(getPrivateKey(), Cipher.MODE_DECRYPT);
+        } catch (CryptoException e) {
+            ISOException.throwIt(e.getReason());
+        }
+
+        Common.clearByteArray(tmpBuffer);
+    }
+
+    /**
+     * Generates a spare key pair in the same way as the {@code INS_GENERATE_KEYS} instruction
+     * and stores it until it is promoted by the {@code INS_ROTATE_KEYS} instruction.
+     * The active keys are not affected, but any partially or fully set message is discarded.
+     * <p>
+     * P1 - specifies the form of the client share
+     *     - 0x00 - private exponent
+     *     - 0x01 - CRT parameters
+     * <p>
+     * Responds with a single byte, the number of spare key pairs.
+     *
+     * @param apdu object representing the communication between the card and the world
+     * @throws ISOException SW_COMMAND_NOT_ALLOWED if all spare key pairs have already been generated
+     * @throws ISOException SW_INCORRECT_P1P2
+     * @throws ISOException with {@link CryptoException} reason
+     */
+    private void generateSpareKeys(APDU apdu) {
+        short slot = 0;
+        while (slot < SPARE_KEY_COUNT && spareState[slot] == SPARE_GENERATED)
+            slot++;
+
+        if (slot == SPARE_KEY_COUNT)
+            ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+
+        byte[] apduBuffer = apdu.getBuffer();
+        byte p1 = apduBuffer[ISO7816.OFFSET_P1];
+
+        if ((p1 != P1_GENERATE_STANDARD && p1 != P1_GENERATE_CRT) || apduBuffer[ISO7816.OFFSET_P2] != 0x00)
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 
-            do {
-                rng.generateData(tmpBuffer, (short) 0, (short) tmpBuffer.length);
-            } while (!Common.lessThan(tmpBuffer, d1ServerBuffer));
-            Common.subtract(d1ServerBuffer, tmpBuffer);
+        // the message shares the temporary buffer
+        messageState = 0x00;
+        clearSpareKeys(slot);
 
-            privateKey.setExponent(tmpBuffer, (short) 0, (short) tmpBuffer.length);
-            rsa.init(privateKey, Cipher.MODE_DECRYPT);
+        KeyPair pair = spareRsaPairs[slot];
+        short offset = (short) (slot * Common.PARTIAL_MODULUS_BYTE_LENGTH);
+
+        try {
+            ((RSAPublicKey) pair.getPublic()).setExponent(E, (short) 0, (short) E.length);
+
+            if (p1 == P1_GENERATE_CRT)
+                generateCrtShares(spareRsaCrtPairs[slot], spareD1Server, offset);
+            else
+                generateShares(pair, spareD1Server, offset);
         } catch (CryptoException e) {
             ISOException.throwIt(e.getReason());
         }
 
         Common.clearByteArray(tmpBuffer);
+        spareState[slot] = SPARE_GENERATED;
+
+        sendSpareKeyCount(apdu);
+    }
+
+    /**
+     * Replaces the active keys with a spare key pair, which can be then retrieved by the
+     * {@code INS_GET_KEYS} instruction. The previous keys and the set message are discarded.
+     * <p>
+     * Responds with a single byte, the number of remaining spare key pairs.
+     *
+     * @param apdu object representing the communication between the card and the world
+     * @throws ISOException SW_CONDITIONS_NOT_SATISFIED if no spare key pair has been generated
+     * @throws ISOException SW_INCORRECT_P1P2
+     * @throws ISOException with {@link CryptoException} reason
+     */
+    private void rotateKeys(APDU apdu) {
+        Common.checkZeroP1P2(apdu.getBuffer());
+
+        short slot = 0;
+        while (slot < SPARE_KEY_COUNT && spareState[slot] != SPARE_GENERATED)
+            slot++;
+
+        if (slot == SPARE_KEY_COUNT)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+        Util.arrayCopyNonAtomic(spareD1Server, (short) (slot * Common.PARTIAL_MODULUS_BYTE_LENGTH),
+                d1ServerBuffer, (short) 0, Common.PARTIAL_MODULUS_BYTE_LENGTH);
+
+        JCSystem.beginTransaction();
+
+        KeyPair pair = rsaPair;
+        rsaPair = spareRsaPairs[slot];
+        spareRsaPairs[slot] = pair;
+
+        pair = rsaCrtPair;
+        rsaCrtPair = spareRsaCrtPairs[slot];
+        spareRsaCrtPairs[slot] = pair;
+
+        setActiveKeys();
+        spareState[slot] = 0x00;
+
+        JCSystem.commitTransaction();
+
+        // the previous keys are now in the slot
+        clearSpareKeys(slot);
+
+        messageState = 0x00;
+        Common.clearByteArray(keysSent);
+        Common.clearByteArray(tmpBuffer);
+
+        try {
+            rsa.init(getPrivateKey(), Cipher.MODE_DECRYPT);
+        } catch (CryptoException e) {
+            ISOException.throwIt(e.getReason());
+        }
+
+        sendSpareKeyCount(apdu);
+    }
+
+    /**
+     * Clears the keys and the server share in the given spare slot.
+     *
+     * @param slot index of the spare key pair
+     */
+    private void clearSpareKeys(short slot) {
+        spareRsaPairs[slot].getPrivate().clearKey();
+        spareRsaPairs[slot].getPublic().clearKey();
+        spareRsaCrtPairs[slot].getPrivate().clearKey();
+
+        Util.arrayFillNonAtomic(spareD1Server, (short) (slot * Common.PARTIAL_MODULUS_BYTE_LENGTH),
+                Common.PARTIAL_MODULUS_BYTE_LENGTH, (byte) 0);
+        spareState[slot] = 0x00;
+    }
+
+    /**
+     * Sends the number of generated spare key pairs in a single byte.
+     *
+     * @param apdu object representing the communication between the card and the world
+     */
+    private void sendSpareKeyCount(APDU apdu) {
+        byte count = 0;
+        for (short i = 0; i < SPARE_KEY_COUNT; i++) {
+            if (spareState[i] == SPARE_GENERATED)
+                count++;
+        }
+
+        apdu.getBuffer()[0] = count;
+        apdu.setOutgoingAndSend((short) 0, (short) 1);
+    }
+
+    /**
+     * Splits the private exponent into a random client share
+     * and the server share.
+     *
+     * @param pair     key pair to be generated
+     * @param d1Server array for the server share
+     * @param offset   offset of the server share
+     * @throws CryptoException if the key generation fails
+     */
+    private void generateShares(KeyPair pair, byte[] d1Server, short offset) {
+        final short length = Common.PARTIAL_MODULUS_BYTE_LENGTH;
+        RSAPrivateKey key = (RSAPrivateKey) pair.getPrivate();
+
+        pair.genKeyPair();
+        key.getExponent(d1Server, offset);
+
+        do {
+            rng.generateData(tmpBuffer, (short) 0, length);
+        } while (!Common.lessThan(tmpBuffer, (short) 0, d1Server, offset, length));
+        Common.subtract(d1Server, offset, tmpBuffer, (short) 0, length);
+
+        key.setExponent(tmpBuffer, (short) 0, length);
+    }
+
+    /**
+     * Generates a random server share shorter than both primes and subtracts it
+     * from the CRT exponents, which then form the client share. The server share
+     * may then be used as the plain exponent.
+     *
+     * @param pair     key pair to be generated
+     * @param d1Server array for the server share
+     * @param offset   offset of the server share
+     * @throws CryptoException if the key generation fails
+     */
+    private void generateCrtShares(KeyPair pair, byte[] d1Server, short offset) {
+        final short length = Common.CRT_PARAMETER_BYTE_LENGTH;
+        RSAPrivateCrtKey key = (RSAPrivateCrtKey) pair.getPrivate();
+
+        pair.genKeyPair();
+
+        // the server share is stored in the second half
+        Util.arrayFillNonAtomic(d1Server, offset, length, (byte) 0);
+        offset += length;
+        rng.generateData(d1Server, offset, length);
+        d1Server[offset] &= ~Common.HIGHEST_BIT_MASK;
+
+        alignCrtParameter(key.getP(tmpBuffer, (short) 0), (short) 0);
+        alignCrtParameter(key.getDP1(tmpBuffer, length), length);
+        key.setDP1(tmpBuffer, subtractServerShare(d1Server, offset), length);
+
+        alignCrtParameter(key.getQ(tmpBuffer, (short) 0), (short) 0);
+        alignCrtParameter(key.getDQ1(tmpBuffer, length), length);
+        key.setDQ1(tmpBuffer, subtractServerShare(d1Server, offset), length);
+    }
+
+    /**
+     * Aligns a CRT parameter of the given length stored in the {@code tmpBuffer}
+     * to the right of its {@code CRT_PARAMETER_BYTE_LENGTH} long part.
+     *
+     * @param length length of the parameter
+     * @param offset offset of the parameter
+     */
+    private void alignCrtParameter(short length, short offset) {
+        short padding = (short) (Common.CRT_PARAMETER_BYTE_LENGTH - length);
+        if (padding == 0)
+            return;
+
+        Util.arrayCopyNonAtomic(tmpBuffer, offset, tmpBuffer, (short) (offset + padding), length);
+        Util.arrayFillNonAtomic(tmpBuffer, offset, padding, (byte) 0);
+    }
+
+    /**
+     * Subtracts the server share from the CRT exponent stored in the second half
+     * of the {@code tmpBuffer} modulo the prime minus one stored in its first half.
+     *
+     * @param d1Server array with the server share
+     * @param offset   offset of the significant half of the server share
+     * @return offset of the result in the {@code tmpBuffer}
+     */
+    private short subtractServerShare(byte[] d1Server, short offset) {
+        final short length = Common.CRT_PARAMETER_BYTE_LENGTH;
+
+        // primes are odd
+        tmpBuffer[(short) (length - 1)] &= ~0x01;
+
+        if (!Common.lessThan(tmpBuffer, length, d1Server, offset, length)) {
+            Common.subtract(tmpBuffer, length, d1Server, offset, length);
+            return length;
+        }
+
+        // cannot overflow as the exponent is smaller than the server share
+        Common.subtract(tmpBuffer, (short) 0, d1Server, offset, length);
+        Common.add(tmpBuffer, (short) 0, tmpBuffer, length, length);
+        return 0;
+    }
+
+    /**
+     * Returns the client share of the private key in the form it has been generated.
+     *
+     * @return the CRT private key if initialised, the standard one otherwise
+     */
+    private PrivateKey getPrivateKey() {
+        if (crtPrivateKey.isInitialized())
+            return crtPrivateKey;
+
+        return privateKey;
     }
 
     /**
@@ -195,7 +520,7 @@ public class RSAClient extends Applet {
      * @throws ISOException SW_INCORRECT_P1P2
      */
     private void getRSAKeys(APDU apdu) {
-        if (!privateKey.isInitialized() || !publicKey.isInitialized())
+        if (!getPrivateKey().isInitialized() || !publicKey.isInitialized())
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
         byte[] apduBuffer = apdu.getBuffer();
@@ -218,7 +543,7 @@ public class RSAClient extends Applet {
                 if (keysSent[p1] == Common.DATA_TRANSFERRED)
                     ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
 
-                privateKey.getModulus(tmpBuffer, (short) 0);
+                publicKey.getModulus(tmpBuffer, (short) 0);
                 Common.sendNum(apdu, tmpBuffer, (short) 0, true);
                 keysSent[p1] = Common.DATA_TRANSFERRED;
                 break;
@@ -241,11 +566,12 @@ public class RSAClient extends Applet {
         if (keysSent[P1_GET_D1_SERVER] != Common.DATA_TRANSFERRED || keysSent[P1_GET_N1] != Common.DATA_TRANSFERRED)
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
-        messageState = Common.setMessage(apdu, tmpBuffer, messageState, privateKey);
+        messageState = Common.setMessage(apdu, tmpBuffer, messageState, getPrivateKey());
     }
 
     /**
      * Zeroes out all arrays and resets the applet to the initial state.
+     * The spare key pairs are cleared as well.
      *
      * @param apdu object representing the communication between the card and the world
      * @throws ISOException SW_INCORRECT_P1P2
@@ -254,6 +580,7 @@ public class RSAClient extends Applet {
         Common.checkZeroP1P2(apdu.getBuffer());
 
         privateKey.clearKey();
+        crtPrivateKey.clearKey();
         publicKey.clearKey();
 
         messageState = 0x00;
@@ -261,6 +588,9 @@ public class RSAClient extends Applet {
         Common.clearByteArray(keysSent);
         Common.clearByteArray(d1ServerBuffer);
         Common.clearByteArray(tmpBuffer);
+
+        for (short i = 0; i < SPARE_KEY_COUNT; i++)
+            clearSpareKeys(i);
     }
 
 }
@@ -1,15 +1,20 @@
 package smpc_rsa;
 
 import javacard.framework.APDU;
+import javacard.framework.APDUException;
 import javacard.framework.Applet;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
+import javacard.framework.Util;
 
 import javacard.security.CryptoException;
 import javacard.security.KeyBuilder;
+import javacard.security.PrivateKey;
+import javacard.security.RSAPrivateCrtKey;
 import javacard.security.RSAPrivateKey;
 
+import javacardx.apdu.ExtendedLength;
 import javacardx.crypto.Cipher;
 
 /**
@@ -19,12 +24,21 @@ import javacardx.crypto.Cipher;
  * <p>
  * It is recommended to use the provided proxy application
  * to send commands to the given card.
+ * <p>
+ * Numbers can be transferred either in a single extended length APDU,
+ * or divided into short APDUs if the card or terminal do not support them.
+ * <p>
+ * The client share of the private key can be set either as a plain exponent
+ * and modulus, or as CRT parameters, which makes the signing roughly four times faster.
+ * <p>
+ * Many messages can be signed in a batch, see {@link #signBatch(APDU)}.
  *
  * @author Lukas Zaoral
  */
-public class RSAClientSign extends Applet {
+public class RSAClientSign extends Applet implements ExtendedLength {
 
     private static final byte CLA_RSA_SMPC_CLIENT_SIGN = (byte) 0x80;
+    private static final byte CLA_RSA_SMPC_CLIENT_SIGN_CHAINING = (byte) 0x90;
 
     /**
      * Instruction codes
@@ -33,29 +47,45 @@ public class RSAClientSign extends Applet {
     private static final byte INS_SET_MESSAGE = 0x12;
     private static final byte INS_SIGNATURE = 0x14;
     private static final byte INS_RESET = 0x16;
+    private static final byte INS_SIGN_BATCH = 0x18;
+    private static final byte INS_GET_RESPONSE = (byte) 0xC0;
 
     /**
      * P1 parameters of the INS_SET_KEYS instruction
      */
     private static final byte P1_SET_D1_CLIENT = 0x00;
     private static final byte P1_SET_N1 = 0x01;
+    private static final byte P1_SET_P = 0x02;
+    private static final byte P1_SET_Q = 0x03;
+    private static final byte P1_SET_DP1 = 0x04;
+    private static final byte P1_SET_DQ1 = 0x05;
+    private static final byte P1_SET_PQ = 0x06;
+
+    /**
+     * Indices of the {@code batchState} array
+     */
+    private static final byte BATCH_RECEIVED = 0x00;
+    private static final byte BATCH_SENT = 0x01;
 
     /**
      * Helper arrays
      */
     private final byte[] tmpBuffer;
+    private final byte[] signatureBuffer;
 
     /**
      * Variables holding the set keys and messages
      */
-    private final byte[] keyState = new byte[2];
+    private final byte[] keyState = new byte[7];
     private byte messageState = 0x00;
+    private final short[] batchState; // transient, bytes of the message received and signature sent by the INS_SIGN_BATCH
 
     /**
      * RSA objects
      */
     private Cipher rsa;
     private RSAPrivateKey privateKey;
+    private RSAPrivateCrtKey crtPrivateKey;
 
     /**
      * Creates the instance of this applet. Used by the JavaCard runtime itself.
@@ -82,10 +112,14 @@ public class RSAClientSign extends Applet {
      */
     public RSAClientSign(byte[] bArray, short bOffset, byte bLength) {
         tmpBuffer = JCSystem.makeTransientByteArray(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.CLEAR_ON_RESET);
+        signatureBuffer = JCSystem.makeTransientByteArray(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.CLEAR_ON_RESET);
+        batchState = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
 
         try {
             privateKey = (RSAPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PRIVATE,
                     KeyBuilder.LENGTH_RSA_2048, false);
+            crtPrivateKey = (RSAPrivateCrtKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE,
+                    KeyBuilder.LENGTH_RSA_2048, false);
             rsa = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
         } catch (CryptoException e) {
             ISOException.throwIt(e.getReason());
@@ -106,16 +140,30 @@ public class RSAClientSign extends Applet {
             return;
 
         byte[] apduBuffer = apdu.getBuffer();
-        if (apduBuffer[ISO7816.OFFSET_CLA] != CLA_RSA_SMPC_CLIENT_SIGN)
+        byte cla = apduBuffer[ISO7816.OFFSET_CLA];
+        byte ins = apduBuffer[ISO7816.OFFSET_INS];
+
+        // some terminals issue the GET RESPONSE with the class byte of the previous command
+        if (ins == INS_GET_RESPONSE && (cla == ISO7816.CLA_ISO7816 || cla == CLA_RSA_SMPC_CLIENT_SIGN)) {
+            getResponse(apdu);
+            return;
+        }
+
+        // any other command aborts the pending batch or response
+        if (ins != INS_SIGN_BATCH)
+            batchState[BATCH_RECEIVED] = 0;
+        batchState[BATCH_SENT] = 0;
+
+        if (cla != CLA_RSA_SMPC_CLIENT_SIGN && (cla != CLA_RSA_SMPC_CLIENT_SIGN_CHAINING || ins != INS_SIGN_BATCH))
             ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
 
-        switch (apduBuffer[ISO7816.OFFSET_INS]) {
+        switch (ins) {
             case INS_SET_KEYS:
                 setRSAKeys(apdu);
                 break;
 
             case INS_SET_MESSAGE:
-                messageState = Common.setMessage(apdu, tmpBuffer, messageState, privateKey);
+                messageState = Common.setMessage(apdu, tmpBuffer, messageState, getPrivateKey());
                 break;
 
             case INS_SIGNATURE:
@@ -127,6 +175,10 @@ public class RSAClientSign extends Applet {
                 reset(apdu);
                 break;
 
+            case INS_SIGN_BATCH:
+                signBatch(apdu);
+                break;
+
             default:
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
         }
@@ -137,9 +189,17 @@ public class RSAClientSign extends Applet {
      * by segments described by the header in the APDU Buffer.
      * Private key must be set before the public modulus.
      * <p>
+     * Alternatively, the client share can be set as CRT parameters in any order.
+     * Each of them must fit into a single APDU. Both forms cannot be combined.
+     * <p>
      * P1 - specifies the data to be set
      *     - 0x00 - private exponent
      *     - 0x01 - modulus
+     *     - 0x02 - prime P
+     *     - 0x03 - prime Q
+     *     - 0x04 - DP1 = d1Client mod (P - 1)
+     *     - 0x05 - DQ1 = d1Client mod (Q - 1)
+     *     - 0x06 - PQ = inverse of Q mod P
      * <p>
      * Keys can be reset only by calling the INS_RESET instruction,
      * after the keys have been fully set.
@@ -147,16 +207,20 @@ public class RSAClientSign extends Applet {
      * @param apdu object representing the communication between the card and the terminal
      * @throws ISOException SW_COMMAND_NOT_ALLOWED if the keys are already set
      *                      or are set in wrong order
+     * @throws ISOException SW_CONDITIONS_NOT_SATISFIED if the modulus is set
+     *                      after a CRT parameter
      * @throws ISOException SW_INCORRECT_P1P2
      */
     private void setRSAKeys(APDU apdu) {
-        if (privateKey.isInitialized())
+        if (getPrivateKey().isInitialized())
             ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
 
         byte[] apduBuffer = apdu.getBuffer();
-        switch (apduBuffer[ISO7816.OFFSET_P1]) {
+        byte p1 = apduBuffer[ISO7816.OFFSET_P1];
+
+        switch (p1) {
             case P1_SET_D1_CLIENT:
-                if (keyState[P1_SET_D1_CLIENT] == Common.DATA_TRANSFERRED)
+                if (keyState[P1_SET_D1_CLIENT] == Common.DATA_TRANSFERRED || isCrtKeySet())
                     ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
 
                 Common.setNumber(apdu, tmpBuffer);
@@ -164,6 +228,9 @@ public class RSAClientSign extends Applet {
                 break;
 
             case P1_SET_N1:
+                if (isCrtKeySet())
+                    ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
                 if (keyState[P1_SET_D1_CLIENT] != Common.DATA_TRANSFERRED)
                     ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
 
@@ -174,17 +241,58 @@ public class RSAClientSign extends Applet {
                 updateKey(apdu);
                 break;
 
+            case P1_SET_P:
+            case P1_SET_Q:
+            case P1_SET_DP1:
+            case P1_SET_DQ1:
+            case P1_SET_PQ:
+                if (keyState[P1_SET_D1_CLIENT] != 0x00 || keyState[p1] == Common.DATA_TRANSFERRED)
+                    ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+
+                if (apduBuffer[ISO7816.OFFSET_P2] != Common.P2_SINGLE)
+                    ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+
+                Common.setNumber(apdu, tmpBuffer, Common.CRT_PARAMETER_BYTE_LENGTH);
+                updateKey(apdu);
+                break;
+
             default:
                 ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
     }
 
+    /**
+     * Checks whether any of the CRT parameters has been set.
+     *
+     * @return true if the client share is being set in the CRT form, false otherwise
+     */
+    private boolean isCrtKeySet() {
+        for (short i = P1_SET_P; i < keyState.length; i++) {
+            if (keyState[i] != 0x00)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the client share of the private key in the form it has been set.
+     *
+     * @return the CRT private key if initialised, the standard one otherwise
+     */
+    private PrivateKey getPrivateKey() {
+        if (crtPrivateKey.isInitialized())
+            return crtPrivateKey;
+
+        return privateKey;
+    }
+
 
     /**
      * Sets the client keys and updates the information about their state.
      *
      * @param apdu object representing the communication between the card and the terminal
-     * @throws ISOException SW_WRONG_LENGTH if the partial modulus n1 is shorter
+     * @throws ISOException SW_WRONG_LENGTH if the partial modulus n1 or any of the primes is shorter
      * @throws ISOException with {@link CryptoException} reason
      */
     private void updateKey(APDU apdu) {
@@ -196,18 +304,44 @@ public class RSAClientSign extends Applet {
         if (keyState[p1] != Common.DATA_TRANSFERRED)
             return;
 
+        if ((p1 == P1_SET_N1 || p1 == P1_SET_P || p1 == P1_SET_Q)
+                && (tmpBuffer[0] & Common.HIGHEST_BIT_MASK) != Common.HIGHEST_BIT_MASK)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        short crtLength = Common.CRT_PARAMETER_BYTE_LENGTH;
+
         try {
-            if (p1 == P1_SET_D1_CLIENT)
-                privateKey.setExponent(tmpBuffer, (short) 0, (short) tmpBuffer.length);
-            else {
-                if ((tmpBuffer[0] & Common.HIGHEST_BIT_MASK) != Common.HIGHEST_BIT_MASK)
-                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            switch (p1) {
+                case P1_SET_D1_CLIENT:
+                    privateKey.setExponent(tmpBuffer, (short) 0, (short) tmpBuffer.length);
+                    break;
+
+                case P1_SET_N1:
+                    privateKey.setModulus(tmpBuffer, (short) 0, (short) tmpBuffer.length);
+                    break;
 
-                privateKey.setModulus(tmpBuffer, (short) 0, (short) tmpBuffer.length);
+                case P1_SET_P:
+                    crtPrivateKey.setP(tmpBuffer, (short) 0, crtLength);
+                    break;
+
+                case P1_SET_Q:
+                    crtPrivateKey.setQ(tmpBuffer, (short) 0, crtLength);
+                    break;
+
+                case P1_SET_DP1:
+                    crtPrivateKey.setDP1(tmpBuffer, (short) 0, crtLength);
+                    break;
+
+                case P1_SET_DQ1:
+                    crtPrivateKey.setDQ1(tmpBuffer, (short) 0, crtLength);
+                    break;
+
+                default:
+                    crtPrivateKey.setPQ(tmpBuffer, (short) 0, crtLength);
             }
 
-            if (privateKey.isInitialized())
-                rsa.init(privateKey, Cipher.MODE_DECRYPT);
+            if (getPrivateKey().isInitialized())
+                rsa.init(getPrivateKey(), Cipher.MODE_DECRYPT);
         } catch (CryptoException e) {
             ISOException.throwIt(e.getReason());
         }
@@ -215,6 +349,166 @@ public class RSAClientSign extends Applet {
         Common.clearByteArray(tmpBuffer);
     }
 
+    /**
+     * Signs a batch of messages streamed by the command chaining, i.e. all but the last command
+     * must have the {@code CLA_RSA_SMPC_CLIENT_SIGN_CHAINING} class byte. The data fields of all
+     * commands form a sequence of messages, each of them {@code PARTIAL_MODULUS_BYTE_LENGTH} bytes long,
+     * which may be split between the commands arbitrarily. The keys must be fully set.
+     * <p>
+     * Each message is signed as soon as it is received and its signature is sent in the response
+     * to the command which completed it, thus the data of a single command may complete at most
+     * one message. Other commands respond with no data. If the terminal does not accept the whole
+     * signature, the rest can be retrieved by the GET RESPONSE command before the next command
+     * of the batch.
+     * <p>
+     * Any other instruction aborts the batch. A set message is discarded as the message buffer is shared.
+     *
+     * @param apdu object representing the communication between the card and the terminal
+     * @throws ISOException SW_CONDITIONS_NOT_SATISFIED if the keys have not yet been fully set
+     * @throws ISOException SW_WRONG_LENGTH if the command completes more than one message or the last
+     *                      command of the batch does not complete a message
+     * @throws ISOException SW_BYTES_REMAINING_00 if the rest of the signature must be retrieved
+     *                      by the GET RESPONSE command
+     * @throws ISOException SW_INCORRECT_P1P2
+     * @throws ISOException with {@link CryptoException} reason
+     * @throws ISOException with {@link APDUException} reason
+     */
+    private void signBatch(APDU apdu) {
+        if (!getPrivateKey().isInitialized())
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+        byte[] apduBuffer = apdu.getBuffer();
+        Common.checkZeroP1P2(apduBuffer);
+
+        messageState = 0x00;
+        boolean signed = false;
+
+        try {
+            short received = apdu.setIncomingAndReceive();
+            short offsetCdata = apdu.getOffsetCdata();
+
+            while (received > 0) {
+                signed = setBatchData(apduBuffer, offsetCdata, received, signed);
+                received = apdu.receiveBytes(offsetCdata);
+            }
+        } catch (APDUException e) {
+            batchState[BATCH_RECEIVED] = 0;
+            ISOException.throwIt(e.getReason());
+        }
+
+        if (!apdu.isCommandChainingCLA()) {
+            Common.clearByteArray(tmpBuffer);
+
+            if (batchState[BATCH_RECEIVED] != 0) {
+                batchState[BATCH_RECEIVED] = 0;
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+        }
+
+        if (signed)
+            sendSignature(apdu, (short) 0);
+    }
+
+    /**
+     * Copies the received part of the batch to the {@code tmpBuffer} and signs the message
+     * into the {@code signatureBuffer} once it is complete.
+     *
+     * @param src    source array
+     * @param offset offset of the data in the source array
+     * @param length length of the data
+     * @param signed whether a message has already been signed in the current command
+     * @return whether a message has been signed in the current command
+     * @throws ISOException SW_WRONG_LENGTH if the data complete another message
+     * @throws ISOException with {@link CryptoException} reason
+     */
+    private boolean setBatchData(byte[] src, short offset, short length, boolean signed) {
+        while (length > 0) {
+            short position = batchState[BATCH_RECEIVED];
+
+            short copied = (short) (Common.PARTIAL_MODULUS_BYTE_LENGTH - position);
+            if (copied > length)
+                copied = length;
+
+            Util.arrayCopyNonAtomic(src, offset, tmpBuffer, position, copied);
+            position += copied;
+            offset += copied;
+            length -= copied;
+
+            if (position == Common.PARTIAL_MODULUS_BYTE_LENGTH) {
+                position = 0;
+
+                if (signed) {
+                    batchState[BATCH_RECEIVED] = 0;
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                }
+
+                try {
+                    rsa.doFinal(tmpBuffer, (short) 0, Common.PARTIAL_MODULUS_BYTE_LENGTH, signatureBuffer, (short) 0);
+                } catch (CryptoException e) {
+                    batchState[BATCH_RECEIVED] = 0;
+                    ISOException.throwIt(e.getReason());
+                }
+
+                signed = true;
+            }
+
+            batchState[BATCH_RECEIVED] = position;
+        }
+
+        return signed;
+    }
+
+    /**
+     * Sends the signature from the {@code signatureBuffer} starting at the given offset.
+     *
+     * @param apdu   object representing the communication between the card and the terminal
+     * @param offset number of already sent bytes
+     * @throws ISOException SW_BYTES_REMAINING_00 if a part of the signature still remains
+     * @throws ISOException with {@link APDUException} reason
+     */
+    private void sendSignature(APDU apdu, short offset) {
+        short remaining = (short) (Common.PARTIAL_MODULUS_BYTE_LENGTH - offset);
+
+        try {
+            short le = apdu.setOutgoing();
+            if (le > remaining)
+                le = remaining;
+
+            apdu.setOutgoingLength(le);
+            apdu.sendBytesLong(signatureBuffer, offset, le);
+            remaining -= le;
+        } catch (APDUException e) {
+            ISOException.throwIt(e.getReason());
+        }
+
+        if (remaining > 0) {
+            batchState[BATCH_SENT] = (short) (Common.PARTIAL_MODULUS_BYTE_LENGTH - remaining);
+            ISOException.throwIt(remaining >= Common.MAX_RESPONSE_APDU_LENGTH ?
+                    ISO7816.SW_BYTES_REMAINING_00 : (short) (ISO7816.SW_BYTES_REMAINING_00 | remaining));
+        }
+    }
+
+    /**
+     * Sends the rest of the signature computed by the INS_SIGN_BATCH instruction.
+     * Must immediately follow the INS_SIGN_BATCH or previous GET RESPONSE command.
+     *
+     * @param apdu object representing the communication between the card and the terminal
+     * @throws ISOException SW_CONDITIONS_NOT_SATISFIED if there is no pending response
+     * @throws ISOException SW_BYTES_REMAINING_00 if a part of the signature still remains
+     * @throws ISOException SW_INCORRECT_P1P2
+     * @throws ISOException with {@link APDUException} reason
+     */
+    private void getResponse(APDU apdu) {
+        short sent = batchState[BATCH_SENT];
+        batchState[BATCH_SENT] = 0;
+
+        if (sent == 0)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+        Common.checkZeroP1P2(apdu.getBuffer());
+        sendSignature(apdu, sent);
+    }
+
     /**
      * Zeroes out all arrays and resets the applet to the initial state.
      *
@@ -225,9 +519,13 @@ public class RSAClientSign extends Applet {
         Common.checkZeroP1P2(apdu.getBuffer());
 
         privateKey.clearKey();
+        crtPrivateKey.clearKey();
         messageState = 0x00;
         Common.clearByteArray(keyState);
         Common.clearByteArray(tmpBuffer);
+        Common.clearByteArray(signatureBuffer);
+        batchState[BATCH_RECEIVED] = 0;
+        batchState[BATCH_SENT] = 0;
     }
 
 }
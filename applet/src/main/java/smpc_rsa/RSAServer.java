@@ -1,6 +1,7 @@
 package smpc_rsa;
 
 import javacard.framework.APDU;
+import javacard.framework.APDUException;
 import javacard.framework.Applet;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
@@ -13,11 +14,15 @@ import javacard.security.KeyPair;
 import javacard.security.RSAPrivateKey;
 import javacard.security.RSAPublicKey;
 
+import javacardx.apdu.ExtendedLength;
 import javacardx.crypto.Cipher;
 
+import smpc_rsa.jcmathlib.BarrettContext;
 import smpc_rsa.jcmathlib.Bignat;
 import smpc_rsa.jcmathlib.Bignat_Helper;
 import smpc_rsa.jcmathlib.ECConfig;
+import smpc_rsa.jcmathlib.MontgomeryContext;
+import smpc_rsa.jcmathlib.RSAModMultContext;
 
 /**
  * The {@link RSAServer} class represents JavaCard applet used
@@ -25,12 +30,30 @@ import smpc_rsa.jcmathlib.ECConfig;
  * <p>
  * It is recommended to use the provided proxy application
  * to send commands to the given card.
+ * <p>
+ * Numbers can be transferred either in a single extended length APDU,
+ * or divided into short APDUs if the card or terminal do not support them.
+ * <p>
+ * The keys of several clients can be stored in separate key slots, each with its own
+ * server keys and public modulus. The slot is selected by the {@code INS_SELECT_SLOT}
+ * instruction and then used by all other instructions. The RSA engines are shared by all
+ * slots and reloaded when another slot is used, the values cached for signing are computed
+ * once with the public modulus and kept in the slot until it is reset.
+ * <p>
+ * The applet data of the installation parameters may contain the policy of the client
+ * signature share verification followed by its sampling interval, see {@code POLICY_STRICT},
+ * {@code POLICY_DEFERRED} and {@code POLICY_SAMPLED}, the number of key slots
+ * up to {@code MAX_SLOT_COUNT} and the options, see {@code OPTION_FIXED_ITERATION_DIVISION}
+ * and {@code OPTION_MONTGOMERY_MULT}.
+ * The strict policy, {@code DEFAULT_SLOT_COUNT} slots and no options are used by default
+ * and none of them can be changed after the installation.
  *
  * @author Lukas Zaoral
  */
-public class RSAServer extends Applet {
+public class RSAServer extends Applet implements ExtendedLength {
 
     private static final byte CLA_RSA_SMPC_SERVER = (byte) 0x80;
+    private static final byte CLA_RSA_SMPC_SERVER_CHAINING = (byte) 0x90;
 
     /**
      * Instruction codes
@@ -42,6 +65,9 @@ public class RSAServer extends Applet {
     private static final byte INS_SIGNATURE = 0x18;
     private static final byte INS_GET_SIGNATURE = 0x20;
     private static final byte INS_RESET = 0x22;
+    private static final byte INS_SIGN_AND_GET_SIGNATURE = 0x24;
+    private static final byte INS_SELECT_SLOT = 0x28;
+    private static final byte INS_GET_RESPONSE = (byte) 0xC0;
 
     /**
      * P1 parameters of the INS_SET_CLIENT_KEYS instruction
@@ -56,113 +82,204 @@ public class RSAServer extends Applet {
     private static final byte P1_SET_SIGNATURE = 0x01;
 
     /**
-     * Variables holding the state of sent keys and set messages
+     * Policies of the client signature share verification
+     *    - strict - every share is verified
+     *    - deferred - no share is verified, the terminal must verify the final signature
+     *    - sampled - every n-th share is verified, where n is the sampling interval
      */
-    private final byte[] keyState = new byte[2];
-    private final byte[] sigState; // transient, will be constantly changed
-    private byte publicModulusState = 0x00;
+    private static final byte POLICY_STRICT = 0x00;
+    private static final byte POLICY_DEFERRED = 0x01;
+    private static final byte POLICY_SAMPLED = 0x02;
 
     /**
-     * Helper arrays
+     * Indices of the applet data of the installation parameters
      */
-    private final byte[] E = new byte[]{0x01, 0x00, 0x01};
-    private final byte[] publicModulus = new byte[Common.PARTIAL_MODULUS_BYTE_LENGTH * 2];
+    private static final byte INSTALL_POLICY = 0x00;
+    private static final byte INSTALL_POLICY_INTERVAL = 0x01;
+    private static final byte INSTALL_SLOT_COUNT = 0x02;
+    private static final byte INSTALL_OPTIONS = 0x03;
 
     /**
-     * Bignats
+     * Bits of the options byte of the installation parameters
+     *    - fixed iteration division - the duration of modular reductions does not depend
+     *      on the values of the message and keys, at the cost of slower signing
+     *    - Montgomery multiplication - the modular multiplications do not use the RSA engine
+     *      even if it passes the probe of the card, e.g. if the engine is not trusted
      */
-    private final BignatSgn clientSignature;
-    private final BignatSgn message;
-    private final BignatSgn s;
+    private static final byte OPTION_FIXED_ITERATION_DIVISION = 0x01;
+    private static final byte OPTION_MONTGOMERY_MULT = 0x02;
+    private static final byte OPTIONS_MASK = OPTION_FIXED_ITERATION_DIVISION | OPTION_MONTGOMERY_MULT;
 
-    private final BignatSgn n1;
-    private final BignatSgn n2;
-    private final BignatSgn s1;
+    /**
+     * Warning of the INS_SIGNATURE and INS_SIGN_AND_GET_SIGNATURE instructions, the final
+     * signature has been computed, but the verification policy skipped the verification
+     * of the client signature share
+     */
+    private static final short SW_SHARE_NOT_VERIFIED = (short) 0x6301;
 
-    // for coprimality test and modular inversion
-    private final BignatSgn newA;
-    private final BignatSgn newB;
-    private final BignatSgn oldA;
-    private final BignatSgn oldB;
-    private final BignatSgn quotient;
+    /**
+     * Index of the {@code sigState} array following the {@code P1_SET_MESSAGE}
+     * and {@code P1_SET_SIGNATURE} ones, set if the {@code s2} Bignat holds
+     * the server signature of the message
+     */
+    private static final byte SERVER_SIGNATURE = 0x02;
 
-    // helper bignats
-    private final BignatSgn tmpSmall1;
-    private final BignatSgn tmpSmall2;
-    private final BignatSgn tmpBig;
+    /**
+     * Index of the {@code sigState} array, set if the final signature sent by parts
+     * has been computed without the verification of the client signature share
+     */
+    private static final byte SHARE_NOT_VERIFIED = 0x03;
 
-    // for BignatSgn
-    private final Bignat bignatSgnHelper;
+    /**
+     * Indices of the {@code chainState} array
+     */
+    private static final byte CHAIN_RECEIVED = 0x00;
+    private static final byte CHAIN_SENT = 0x01;
 
     /**
-     * RSA objects
+     * Number of key slots if not set by the installation parameters
      */
-    private RSAPrivateKey clientPrivateKey;
-    private RSAPublicKey clientPublicKey;
+    private static final byte DEFAULT_SLOT_COUNT = 4;
+    private static final byte MAX_SLOT_COUNT = 8;
 
-    private KeyPair serverRsaPair;
-    private RSAPrivateKey serverPrivateKey;
-    private RSAPublicKey serverPublicKey;
+    /**
+     * Variables holding the state of set messages
+     */
+    private final byte[] sigState; // transient, will be constantly changed
+    private final short[] chainState; // transient, bytes received and sent by the INS_SIGN_AND_GET_SIGNATURE
+    private final byte[] policyCounter; // transient, shares skipped by the sampled policy
+    private final byte[] selectedSlot; // transient, the first slot is selected after card reset
+    private final byte[] loadedSlot; // transient, slot index + 1 of the keys in the RSA engines, 0 if none
 
-    private Cipher rsaClient, rsaClientVerify, rsaServer;
+    /**
+     * Verification policy of the client signature share set at the installation
+     */
+    private final byte policy;
+    private final byte policyInterval;
 
     /**
-     * The {@link BignatSgn} class represents {@link Bignat} object with support
-     * of negative numbers and subtraction, multiplication and division
-     * extended to support this feature.
-     * <p>
-     * The constructor and methods have the same meaning, see documentation
-     * of {@link Bignat}.
+     * Whether the modular multiplications may use the RSA engine, set at the installation
      */
-    public class BignatSgn extends Bignat {
+    private final boolean rsaModMult;
 
-        public static final byte POSITIVE_OR_ZERO = 0x01;
-        public static final byte NEGATIVE = 0x00;
+    /**
+     * Helper arrays
+     */
+    private final byte[] E = new byte[]{0x01, 0x00, 0x01};
 
-        private byte sign = POSITIVE_OR_ZERO;
+    /**
+     * Bignats
+     */
+    private final Bignat clientSignature;
+    private final Bignat message;
+    private final Bignat s;
 
-        public BignatSgn(short size, byte allocatorType, Bignat_Helper bignatHelper) {
-            super(size, allocatorType, bignatHelper);
-        }
+    private final Bignat n1;
+    private final Bignat n2;
+    private final Bignat s1;
+    private final Bignat s2;
 
-        public void copy(BignatSgn other) {
-            super.copy(other);
-            sign = other.sign;
-        }
+    // helper bignats
+    private final Bignat tmpSmall1;
+    private final Bignat tmpSmall2;
+    private final Bignat tmpBig;
 
-        public void mult(BignatSgn x, BignatSgn y) {
-            super.mult(x, y);
-            sign = x.sign == y.sign || this.is_zero() ? POSITIVE_OR_ZERO : NEGATIVE;
-        }
+    /**
+     * RSA engines initialized with the keys of the loaded slot
+     */
+    private Cipher rsaClient, rsaClientVerify, rsaServer;
+
+    /**
+     * Key slots
+     */
+    private final KeySlot[] slots;
+
+    /**
+     * The {@link KeySlot} class holds the server keys, the server share of client keys,
+     * the public modulus of a single client and the values cached for signing.
+     */
+    private class KeySlot {
+
+        /**
+         * Variables holding the state of sent keys and the public modulus
+         */
+        private final byte[] keyState = new byte[2];
+        private byte publicModulusState = 0x00;
+
+        private final byte[] publicModulus = new byte[Common.PARTIAL_MODULUS_BYTE_LENGTH * 2];
+
+        /**
+         * RSA objects
+         */
+        private final RSAPrivateKey clientPrivateKey;
+        private final RSAPublicKey clientPublicKey;
+
+        private final KeyPair serverRsaPair;
+        private final RSAPrivateKey serverPrivateKey;
+        private final RSAPublicKey serverPublicKey;
+
+        // n1^-1 mod n2, in the Montgomery form if the RSA engine cannot be used
+        private final Bignat n1Inverse;
+
+        // precomputed moduli for the Montgomery multiplication
+        private final MontgomeryContext n1Montgomery;
+        private final MontgomeryContext n2Montgomery;
+
+        // RSA engines keyed to the moduli, preferred if the card supports them
+        private final RSAModMultContext n1RsaMult;
+        private final RSAModMultContext n2RsaMult;
+
+        // precomputed moduli for the Barrett reduction
+        private final BarrettContext n1Barrett;
+        private final BarrettContext n2Barrett;
+
+        /**
+         * Allocates the keys and the values cached for signing of the slot.
+         *
+         * @param bignatHelper {@code Bignat_Helper} class with helper objects
+         * @throws CryptoException if the keys cannot be allocated
+         */
+        KeySlot(Bignat_Helper bignatHelper) {
+            // Allocate keys
+            serverRsaPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
+            serverPrivateKey = (RSAPrivateKey) serverRsaPair.getPrivate();
+            serverPublicKey = (RSAPublicKey) serverRsaPair.getPublic();
 
-        public void remainder_divide(BignatSgn divisor, BignatSgn quotient) {
-            super.remainder_divide(divisor, quotient);
-            sign = divisor.sign == quotient.sign || this.is_zero() ? POSITIVE_OR_ZERO : NEGATIVE;
+            clientPrivateKey = (RSAPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
+            clientPublicKey = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, KeyBuilder.LENGTH_RSA_2048, false);
+
+            // persistent, as the public modulus state survives card resets
+            n1Inverse = new Bignat(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+            n1Montgomery = new MontgomeryContext(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+            n2Montgomery = new MontgomeryContext(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+            n1RsaMult = new RSAModMultContext(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+            n2RsaMult = new RSAModMultContext(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+            n1Barrett = new BarrettContext(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+            n2Barrett = new BarrettContext(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
         }
 
-        public void subtract(BignatSgn other) {
-            bignatSgnHelper.resize_to_max(true);
-            bignatSgnHelper.copy(other);
+        /**
+         * Clears the keys, the public modulus and the values cached for signing of the slot.
+         */
+        void clear() {
+            clientPrivateKey.clearKey();
+            clientPublicKey.clearKey();
 
-            if (lesser(other)) {
-                sign = sign == other.sign && other.sign == POSITIVE_OR_ZERO ? NEGATIVE : POSITIVE_OR_ZERO;
-                bignatSgnHelper.subtract(this);
-                copy(bignatSgnHelper);
-                setZeroSign();
-                return;
-            }
+            serverPrivateKey.clearKey();
+            serverPublicKey.clearKey();
 
-            if (sign == other.sign)
-                subtract(bignatSgnHelper);
-            else
-                add(bignatSgnHelper);
+            publicModulusState = 0x00;
 
-            setZeroSign();
-        }
+            Common.clearByteArray(keyState);
+            Common.clearByteArray(publicModulus);
 
-        private void setZeroSign() {
-            if (is_zero())
-                sign = POSITIVE_OR_ZERO;
+            n1Inverse.erase();
+            n1Montgomery.erase();
+            n2Montgomery.erase();
+            n1RsaMult.erase();
+            n2RsaMult.erase();
+            n1Barrett.erase();
+            n2Barrett.erase();
         }
 
     }
@@ -170,7 +287,8 @@ public class RSAServer extends Applet {
     /**
      * Creates the instance of this applet. Used by the JavaCard runtime itself.
      * <p>
-     * Installation parameters
+     * Installation parameters, the applet data may contain the verification policy,
+     * its sampling interval and the number of key slots
      *
      * @param bArray  bArray
      * @param bOffset bOffset
@@ -183,56 +301,100 @@ public class RSAServer extends Applet {
     /**
      * Constructor of {@link RSAServer} class. Allocates and creates all used objects.
      * <p>
-     * Installation parameters
+     * Installation parameters, the applet data may contain the verification policy,
+     * its sampling interval, the number of key slots and the options
      *
      * @param bArray  bArray
      * @param bOffset bOffset
      * @param bLength bLength
+     * @throws ISOException SW_WRONG_DATA if the installation parameters are malformed or the verification policy,
+     *                      its interval, the number of key slots or the options are invalid
      * @throws ISOException with {@link CryptoException} reason
      */
     public RSAServer(byte[] bArray, short bOffset, byte bLength) {
-        Bignat_Helper bignatHelper = new ECConfig((short) 256).bnh;
-        bignatHelper.FLAG_FAST_MULT_VIA_RSA = false; // the speed-up does not work with the emulator
+        // [AID length][AID][control info length][control info][applet data length][applet data]
+        short dataOffset = bOffset;
+        short dataLength = 0;
+        if (bLength != 0) {
+            short end = (short) (bOffset + (bLength & 0xFF));
+
+            // skip the AID and the control info, all lengths are unsigned
+            dataOffset += (short) ((bArray[dataOffset] & 0xFF) + 1);
+            if (dataOffset >= end)
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+
+            dataOffset += (short) ((bArray[dataOffset] & 0xFF) + 1);
+            if (dataOffset >= end)
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+
+            dataLength = (short) (bArray[dataOffset] & 0xFF);
+            dataOffset++;
+            if ((short) (dataOffset + dataLength) > end)
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        policy = dataLength > INSTALL_POLICY ? bArray[(short) (dataOffset + INSTALL_POLICY)] : POLICY_STRICT;
+        policyInterval = dataLength > INSTALL_POLICY_INTERVAL ? bArray[(short) (dataOffset + INSTALL_POLICY_INTERVAL)] : 0x00;
+        short slotCount = dataLength > INSTALL_SLOT_COUNT
+                ? (short) (bArray[(short) (dataOffset + INSTALL_SLOT_COUNT)] & 0xFF) : DEFAULT_SLOT_COUNT;
+
+        byte options = dataLength > INSTALL_OPTIONS ? bArray[(short) (dataOffset + INSTALL_OPTIONS)] : 0x00;
 
-        // bignatSgn
-        bignatSgnHelper = new Bignat((short) (Common.PARTIAL_MODULUS_BYTE_LENGTH * 2), JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
+        if (slotCount == 0 || slotCount > MAX_SLOT_COUNT || (options & ~OPTIONS_MASK) != 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+
+        switch (policy) {
+            case POLICY_STRICT:
+            case POLICY_DEFERRED:
+                if (policyInterval != 0x00)
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                break;
+
+            case POLICY_SAMPLED:
+                if (policyInterval == 0x00)
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                break;
+
+            default:
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        Bignat_Helper bignatHelper = new ECConfig((short) 256).bnh;
+        bignatHelper.FLAG_FIXED_ITERATION_DIVISION = (options & OPTION_FIXED_ITERATION_DIVISION) != 0;
+        rsaModMult = (options & OPTION_MONTGOMERY_MULT) == 0;
 
         // helper bignats
-        tmpSmall1 = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-        tmpSmall2 = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
+        tmpSmall1 = new Bignat(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
+        tmpSmall2 = new Bignat(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
         // longer for possible overflow in modulus multiplication
-        tmpBig = new BignatSgn((short) (Common.PARTIAL_MODULUS_BYTE_LENGTH * 2 + 1), JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
+        tmpBig = new Bignat((short) (Common.PARTIAL_MODULUS_BYTE_LENGTH * 2 + 1), JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
 
         // signing
-        message = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-        clientSignature = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-        s = new BignatSgn((short) (Common.PARTIAL_MODULUS_BYTE_LENGTH * 2), JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-        s1 = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-        n1 = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-        n2 = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-
-        // coprimality test + inversion
-        newB = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-        newA = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-        oldA = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-        oldB = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-        quotient = new BignatSgn(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
-
-        sigState = JCSystem.makeTransientByteArray((short) 2, JCSystem.CLEAR_ON_RESET);
+        message = new Bignat(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
+        clientSignature = new Bignat(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
+        s = new Bignat((short) (Common.PARTIAL_MODULUS_BYTE_LENGTH * 2), JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
+        s1 = new Bignat(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
+        s2 = new Bignat(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
+        n1 = new Bignat(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
+        n2 = new Bignat(Common.PARTIAL_MODULUS_BYTE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, bignatHelper);
 
-        try {
-            // Allocate keys
-            serverRsaPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
-            serverPrivateKey = (RSAPrivateKey) serverRsaPair.getPrivate();
-            serverPublicKey = (RSAPublicKey) serverRsaPair.getPublic();
+        sigState = JCSystem.makeTransientByteArray((short) 4, JCSystem.CLEAR_ON_RESET);
+        chainState = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
+        policyCounter = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        selectedSlot = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        loadedSlot = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_RESET);
 
-            clientPrivateKey = (RSAPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
-            clientPublicKey = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, KeyBuilder.LENGTH_RSA_2048, false);
 
+        slots = new KeySlot[slotCount];
+
+        try {
             // Allocate RSA engines
             rsaClient = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
             rsaClientVerify = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
             rsaServer = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
+
+            for (short i = 0; i < slotCount; i++)
+                slots[i] = new KeySlot(bignatHelper);
         } catch (CryptoException e) {
             ISOException.throwIt(e.getReason());
         }
@@ -252,11 +414,24 @@ public class RSAServer extends Applet {
             return;
 
         byte[] apduBuffer = apdu.getBuffer();
+        byte cla = apduBuffer[ISO7816.OFFSET_CLA];
+        byte ins = apduBuffer[ISO7816.OFFSET_INS];
+
+        // some terminals issue the GET RESPONSE with the class byte of the previous command
+        if (ins == INS_GET_RESPONSE && (cla == ISO7816.CLA_ISO7816 || cla == CLA_RSA_SMPC_SERVER)) {
+            getResponse(apdu);
+            return;
+        }
+
+        // any other command aborts the pending command or response chain
+        if (ins != INS_SIGN_AND_GET_SIGNATURE)
+            chainState[CHAIN_RECEIVED] = 0;
+        chainState[CHAIN_SENT] = 0;
 
-        if (apduBuffer[ISO7816.OFFSET_CLA] != CLA_RSA_SMPC_SERVER)
+        if (cla != CLA_RSA_SMPC_SERVER && (cla != CLA_RSA_SMPC_SERVER_CHAINING || ins != INS_SIGN_AND_GET_SIGNATURE))
             ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
 
-        switch (apduBuffer[ISO7816.OFFSET_INS]) {
+        switch (ins) {
             case INS_GENERATE_KEYS:
                 generateRSAKeys(apdu);
                 break;
@@ -285,6 +460,14 @@ public class RSAServer extends Applet {
                 reset(apdu);
                 break;
 
+            case INS_SELECT_SLOT:
+                selectSlot(apdu);
+                break;
+
+            case INS_SIGN_AND_GET_SIGNATURE:
+                signAndGetSignature(apdu);
+                break;
+
             default:
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
         }
@@ -301,17 +484,18 @@ public class RSAServer extends Applet {
      * @throws ISOException with {@link CryptoException} reason
      */
     private void generateRSAKeys(APDU apdu) {
-        if (serverPrivateKey.isInitialized() || serverPublicKey.isInitialized())
+        KeySlot slot = loadSlot();
+        if (slot.serverPrivateKey.isInitialized() || slot.serverPublicKey.isInitialized())
             ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
 
         Common.checkZeroP1P2(apdu.getBuffer());
 
         try {
-            serverPublicKey.setExponent(E, (short) 0, (short) E.length);
-            serverRsaPair.genKeyPair();
-            clientPublicKey.setExponent(E, (short) 0, (short) E.length);
+            slot.serverPublicKey.setExponent(E, (short) 0, (short) E.length);
+            slot.serverRsaPair.genKeyPair();
+            slot.clientPublicKey.setExponent(E, (short) 0, (short) E.length);
 
-            rsaServer.init(serverPrivateKey, Cipher.MODE_DECRYPT);
+            rsaServer.init(slot.serverPrivateKey, Cipher.MODE_DECRYPT);
         } catch (CryptoException e) {
             ISOException.throwIt(e.getReason());
         }
@@ -336,13 +520,14 @@ public class RSAServer extends Applet {
      * @throws ISOException SW_INCORRECT_P1P2
      */
     private void setClientKeys(APDU apdu) {
-        if (!serverPrivateKey.isInitialized() || !serverPublicKey.isInitialized())
+        KeySlot slot = loadSlot();
+        if (!slot.serverPrivateKey.isInitialized() || !slot.serverPublicKey.isInitialized())
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
         byte[] apduBuffer = apdu.getBuffer();
         switch (apduBuffer[ISO7816.OFFSET_P1]) {
             case P1_SET_D1_SERVER:
-                if (keyState[P1_SET_D1_SERVER] == Common.DATA_TRANSFERRED)
+                if (slot.keyState[P1_SET_D1_SERVER] == Common.DATA_TRANSFERRED)
                     ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
 
                 Common.setNumber(apdu, tmpSmall1.as_byte_array());
@@ -350,7 +535,7 @@ public class RSAServer extends Applet {
                 break;
 
             case P1_SET_N1:
-                if (keyState[P1_SET_N1] == Common.DATA_TRANSFERRED)
+                if (slot.keyState[P1_SET_N1] == Common.DATA_TRANSFERRED)
                     ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
 
                 Common.setNumber(apdu, tmpSmall2.as_byte_array());
@@ -370,17 +555,18 @@ public class RSAServer extends Applet {
      * @throws ISOException with {@link CryptoException} reason
      */
     private void updateKey(APDU apdu) {
+        KeySlot slot = loadSlot();
         byte[] apduBuffer = apdu.getBuffer();
         byte p1 = apduBuffer[ISO7816.OFFSET_P1];
         byte p2 = apduBuffer[ISO7816.OFFSET_P2];
 
-        keyState[p1] = Common.updateLoadState(keyState[p1], p2);
-        if (keyState[p1] != Common.DATA_TRANSFERRED)
+        slot.keyState[p1] = Common.updateLoadState(slot.keyState[p1], p2);
+        if (slot.keyState[p1] != Common.DATA_TRANSFERRED)
             return;
 
         try {
             if (p1 == P1_SET_D1_SERVER) {
-                clientPrivateKey.setExponent(tmpSmall1.as_byte_array(), (short) 0, tmpSmall1.length());
+                slot.clientPrivateKey.setExponent(tmpSmall1.as_byte_array(), (short) 0, tmpSmall1.length());
                 tmpSmall1.erase();
             } else {
                 byte[] modulus = tmpSmall2.as_byte_array();
@@ -389,28 +575,31 @@ public class RSAServer extends Applet {
                 if ((modulus[0] & Common.HIGHEST_BIT_MASK) != Common.HIGHEST_BIT_MASK)
                     ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-                clientPrivateKey.setModulus(modulus, (short) 0, (short) modulus.length);
-                clientPublicKey.setModulus(modulus, (short) 0, (short) modulus.length);
+                slot.clientPrivateKey.setModulus(modulus, (short) 0, (short) modulus.length);
+                slot.clientPublicKey.setModulus(modulus, (short) 0, (short) modulus.length);
 
                 tmpSmall2.erase();
             }
 
-            if (clientPrivateKey.isInitialized())
-                rsaClient.init(clientPrivateKey, Cipher.MODE_DECRYPT);
+            if (slot.clientPrivateKey.isInitialized())
+                rsaClient.init(slot.clientPrivateKey, Cipher.MODE_DECRYPT);
 
-            if (clientPublicKey.isInitialized())
-                rsaClientVerify.init(clientPublicKey, Cipher.MODE_ENCRYPT);
+            if (slot.clientPublicKey.isInitialized())
+                rsaClientVerify.init(slot.clientPublicKey, Cipher.MODE_ENCRYPT);
         } catch (CryptoException e) {
             ISOException.throwIt(e.getReason());
         }
     }
 
     /**
-     * Sends the public modulus depending on the P1 argument. The public modulus has to be of
-     * correct length. The server keys must be generated and the server share of client keys
+     * Sends the public modulus depending on the P2 argument, or the whole modulus at once
+     * if requested in an extended length APDU with P2 set to {@code P2_PART_0}. The public modulus
+     * has to be of correct length. The server keys must be generated and the server share of client keys
      * must be set first. After first run, the public modulus is available in the {@code publicModulus}
-     * byte array. The public modulus must be retrieved at least once before signing.
-     * After that, it can be retrieved an unlimited number of times.
+     * byte array and the values used by signing (the inverse of n1 modulo n2 and the Montgomery,
+     * RSA multiplication and Barrett contexts of both partial moduli) are cached. The public modulus
+     * must be retrieved at least once before signing. After that, it can be retrieved an unlimited
+     * number of times.
      *
      * @param apdu object representing the communication between the card and the terminal
      * @throws ISOException SW_CONDITIONS_NOT_SATISFIED the keys are not set or generated
@@ -420,7 +609,8 @@ public class RSAServer extends Applet {
      * @throws ISOException SW_INCORRECT_P1P2
      */
     private void getPublicModulus(APDU apdu) {
-        if (!clientPrivateKey.isInitialized() || !clientPublicKey.isInitialized())
+        KeySlot slot = loadSlot();
+        if (!slot.clientPrivateKey.isInitialized() || !slot.clientPublicKey.isInitialized())
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
         byte[] apduBuffer = apdu.getBuffer();
@@ -432,11 +622,11 @@ public class RSAServer extends Applet {
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 
         // tmpBig is empty iff this method is invoked for the first time
-        if (publicModulusState == 0x00) {
-            clientPrivateKey.getModulus(tmpSmall1.as_byte_array(), (short) 0);
-            serverPrivateKey.getModulus(tmpSmall2.as_byte_array(), (short) 0);
+        if (slot.publicModulusState == 0x00) {
+            slot.clientPrivateKey.getModulus(tmpSmall1.as_byte_array(), (short) 0);
+            slot.serverPrivateKey.getModulus(tmpSmall2.as_byte_array(), (short) 0);
 
-            if (!isCoprime(tmpSmall1, tmpSmall2))
+            if (!tmpSmall1.is_coprime(tmpSmall2))
                 ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 
             tmpBig.mult(tmpSmall1, tmpSmall2);
@@ -447,23 +637,87 @@ public class RSAServer extends Applet {
                     (tmpBigArray[1] & Common.HIGHEST_BIT_MASK) != Common.HIGHEST_BIT_MASK)
                 ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-            Util.arrayCopyNonAtomic(tmpBigArray, (short) 1, publicModulus, (short) 0,
+            Util.arrayCopyNonAtomic(tmpBigArray, (short) 1, slot.publicModulus, (short) 0,
                     (short) (Common.PARTIAL_MODULUS_BYTE_LENGTH * 2));
 
             tmpSmall1.erase();
             tmpSmall2.erase();
             tmpBig.erase();
+
+            computeSigningValues(slot);
         }
 
         // each part has to be sent at least once, thus publicModulusState will be equal the DATA_TRANSFERRED
         if (p2 == Common.P2_PART_0) {
-            Common.sendNum(apdu, publicModulus, (short) 0, false);
-            publicModulusState |= 0x20;
+            // the whole modulus is sent at once in an extended length APDU
+            slot.publicModulusState |= Common.sendLongNum(apdu, slot.publicModulus, p2) ? Common.DATA_TRANSFERRED : 0x20;
             return;
         }
 
-        Common.sendNum(apdu, publicModulus, Common.PARTIAL_MODULUS_BYTE_LENGTH, false);
-        publicModulusState |= 0x02;
+        Common.sendLongNum(apdu, slot.publicModulus, p2);
+        slot.publicModulusState |= 0x02;
+    }
+
+    /**
+     * Returns the selected key slot and loads its keys into the RSA engines, unless they
+     * already hold them. The RSA engines are reloaded after card reset.
+     *
+     * @return selected key slot
+     * @throws ISOException with {@link CryptoException} reason
+     */
+    private KeySlot loadSlot() {
+        byte index = selectedSlot[0];
+        KeySlot slot = slots[index];
+
+        if (loadedSlot[0] != (byte) (index + 1)) {
+            try {
+                if (slot.serverPrivateKey.isInitialized())
+                    rsaServer.init(slot.serverPrivateKey, Cipher.MODE_DECRYPT);
+
+                if (slot.clientPrivateKey.isInitialized())
+                    rsaClient.init(slot.clientPrivateKey, Cipher.MODE_DECRYPT);
+
+                if (slot.clientPublicKey.isInitialized())
+                    rsaClientVerify.init(slot.clientPublicKey, Cipher.MODE_ENCRYPT);
+            } catch (CryptoException e) {
+                ISOException.throwIt(e.getReason());
+            }
+
+            loadedSlot[0] = (byte) (index + 1);
+        }
+
+        return slot;
+    }
+
+    /**
+     * Computes the values used by signing from the partial moduli of given slot, i.e. the inverse
+     * of n1 modulo n2 and the Montgomery, RSA multiplication and Barrett contexts of both moduli.
+     * The moduli do not change until the slot is reset, thus the values are computed only once.
+     *
+     * @param slot key slot with the public modulus computed
+     */
+    private void computeSigningValues(KeySlot slot) {
+        slot.clientPrivateKey.getModulus(n1.as_byte_array(), (short) 0);
+        slot.serverPrivateKey.getModulus(n2.as_byte_array(), (short) 0);
+
+        slot.n1Montgomery.set_modulus(n1);
+        slot.n2Montgomery.set_modulus(n2);
+        // the RSA contexts stay unavailable if not allowed
+        if (rsaModMult) {
+            slot.n1RsaMult.set_modulus(n1);
+            slot.n2RsaMult.set_modulus(n2);
+        }
+        slot.n1Barrett.set_modulus(n1);
+        slot.n2Barrett.set_modulus(n2);
+
+        n1.mod_inv_binary(n2);
+        if (slot.n2RsaMult.is_available())
+            slot.n1Inverse.copy(n1);
+        else
+            slot.n1Inverse.to_montgomery(n1, slot.n2Montgomery);
+
+        n1.resize_to_max(true);
+        n2.resize_to_max(true);
     }
 
     /**
@@ -477,14 +731,20 @@ public class RSAServer extends Applet {
      *    - 0x01 - client signature share
      * <p>
      * If the data are fully set, any subsequent calls start the loading from scratch.
+     * <p>
+     * The server signature of the message is computed as soon as the message is fully set,
+     * so that it overlaps the transfer of the client signature share and the final signing
+     * only combines both shares.
      *
      * @param apdu object representing the communication between the card and the world
      * @throws ISOException SW_CONDITIONS_NOT_SATISFIED if the server have not been generated
      * @throws ISOException SW_COMMAND_NOT_ALLOWED if the message or signature are already set
+     * @throws ISOException SW_WRONG_DATA if the server signature of the message cannot be computed
      * @throws ISOException SW_INCORRECT_P1P2
      */
     private void setClientSignature(APDU apdu) {
-        if (publicModulusState != Common.DATA_TRANSFERRED)
+        KeySlot slot = loadSlot();
+        if (slot.publicModulusState != Common.DATA_TRANSFERRED)
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
         if (sigState[P1_SET_MESSAGE] == Common.DATA_TRANSFERRED
@@ -493,6 +753,7 @@ public class RSAServer extends Applet {
             Common.clearByteArray(sigState);
             message.erase();
             clientSignature.erase();
+            s2.erase();
         }
 
         byte[] apduBuffer = apdu.getBuffer();
@@ -517,17 +778,44 @@ public class RSAServer extends Applet {
         }
 
         sigState[p1] = Common.updateLoadState(sigState[p1], apduBuffer[ISO7816.OFFSET_P2]);
+
+        if (p1 == P1_SET_MESSAGE && sigState[P1_SET_MESSAGE] == Common.DATA_TRANSFERRED)
+            computeServerSignature();
+    }
+
+    /**
+     * Computes the server signature of the fully set message into the {@code s2} Bignat.
+     * On failure, the message is discarded and must be set again.
+     *
+     * @throws ISOException SW_WRONG_DATA if the message cannot be signed, e.g. it is not smaller than the modulus
+     */
+    private void computeServerSignature() {
+        loadSlot();
+        try {
+            rsaServer.doFinal(message.as_byte_array(), (short) 0, message.length(), s2.as_byte_array(), (short) 0);
+            sigState[SERVER_SIGNATURE] = Common.DATA_TRANSFERRED;
+        } catch (CryptoException e) {
+            sigState[P1_SET_MESSAGE] = 0x00;
+            message.erase();
+            s2.erase();
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
     }
 
     /**
      * Computes the final signature using RSA and saves it to the {@code s} Bignat.
      * Fails if the client signature share is fraudulent od corrupt.
      * All keys, message and client signature share must be fully set prior to signing.
+     * <p>
+     * If the verification policy skipped the verification of the client signature share,
+     * the signature is computed, but the {@code SW_SHARE_NOT_VERIFIED} warning is returned
+     * and the terminal must verify the final signature.
      *
      * @param apdu object representing the communication between the card and the terminal
      * @throws ISOException SW_CONDITIONS_NOT_SATISFIED if the keys, message or client signature share
      *                      have not yet been fully set
      * @throws ISOException SW_WRONG_DATA if the client signature share is fraudulent od corrupt
+     * @throws ISOException SW_SHARE_NOT_VERIFIED if the client signature share has not been verified
      * @throws ISOException SW_INCORRECT_P1P2
      * @throws ISOException with {@link CryptoException} reason
      */
@@ -537,28 +825,99 @@ public class RSAServer extends Applet {
 
         Common.checkZeroP1P2(apdu.getBuffer());
 
-        clientPrivateKey.getModulus(n1.as_byte_array(), (short) 0);
-        serverPrivateKey.getModulus(n2.as_byte_array(), (short) 0);
+        if (!computeSignature())
+            ISOException.throwIt(SW_SHARE_NOT_VERIFIED);
+    }
+
+    /**
+     * Decides whether the client signature share of the current signature
+     * has to be verified according to the verification policy.
+     *
+     * @return truth value
+     */
+    private boolean shouldVerifyShare() {
+        switch (policy) {
+            case POLICY_DEFERRED:
+                return false;
+
+            case POLICY_SAMPLED:
+                // the interval is an unsigned byte
+                return (short) ((policyCounter[0] + 1) & 0xFF) >= (short) (policyInterval & 0xFF);
+
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Counts the computed signature for the sampled verification policy. Called only
+     * after the signature has been successfully computed, so a failed computation
+     * does not use up the verified sample.
+     *
+     * @param verified whether the client signature share has been verified
+     */
+    private void countSignature(boolean verified) {
+        if (policy != POLICY_SAMPLED)
+            return;
+
+        if (verified)
+            policyCounter[0] = 0x00;
+        else
+            policyCounter[0]++;
+    }
+
+    /**
+     * Computes the final signature of the fully set message and client signature share
+     * and saves it to the {@code s} Bignat. The client signature share is verified
+     * depending on the verification policy.
+     *
+     * @return whether the client signature share has been verified
+     * @throws ISOException SW_WRONG_DATA if the client signature share is fraudulent od corrupt
+     * @throws ISOException with {@link CryptoException} reason
+     */
+    private boolean computeSignature() {
+        KeySlot slot = loadSlot();
+        boolean verify = shouldVerifyShare();
+
+        slot.clientPrivateKey.getModulus(n1.as_byte_array(), (short) 0);
+        slot.serverPrivateKey.getModulus(n2.as_byte_array(), (short) 0);
 
         try {
             rsaClient.doFinal(message.as_byte_array(), (short) 0, message.length(), tmpSmall1.as_byte_array(), (short) 0);
-            s1.mod_mult(clientSignature, tmpSmall1, n1);
+            if (slot.n1RsaMult.is_available()) {
+                // the client share is not guaranteed to be reduced
+                if (!clientSignature.lesser(n1))
+                    clientSignature.mod(slot.n1Barrett);
+
+                s1.mod_mult(clientSignature, tmpSmall1, slot.n1RsaMult);
+            } else {
+                s1.mod_mult(clientSignature, tmpSmall1, slot.n1Montgomery);
+            }
 
             tmpSmall1.erase();
-            rsaClientVerify.doFinal(s1.as_byte_array(), (short) 0, s1.length(), tmpSmall1.as_byte_array(), (short) 0);
+            if (verify) {
+                rsaClientVerify.doFinal(s1.as_byte_array(), (short) 0, s1.length(), tmpSmall1.as_byte_array(), (short) 0);
 
-            if (!tmpSmall1.same_value(message)) {
-                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                if (!tmpSmall1.same_value(message)) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
             }
 
-            rsaServer.doFinal(message.as_byte_array(), (short) 0, message.length(), tmpSmall2.as_byte_array(), (short) 0);
+            // kept in s2 for repeated signing of the same message
+            if (sigState[SERVER_SIGNATURE] == Common.DATA_TRANSFERRED)
+                tmpSmall2.copy(s2);
+            else
+                rsaServer.doFinal(message.as_byte_array(), (short) 0, message.length(), tmpSmall2.as_byte_array(), (short) 0);
         } catch (CryptoException e) {
             ISOException.throwIt(e.getReason());
         }
 
-        tmpSmall2.mod_sub(s1, n2);
-        inverse(n1, n2, tmpSmall1);
-        tmpSmall1.mod_mult(tmpSmall1, tmpSmall2, n2);
+        tmpSmall2.mod_sub(s1, slot.n2Barrett);
+        if (slot.n2RsaMult.is_available())
+            tmpSmall1.mod_mult(slot.n1Inverse, tmpSmall2, slot.n2RsaMult);
+        else
+            // n1Inverse is in the Montgomery form, one Montgomery multiplication is enough
+            tmpSmall1.mont_mult(slot.n1Inverse, tmpSmall2, slot.n2Montgomery);
         s.mult(tmpSmall1, n1);
         s.add(s1);
 
@@ -568,11 +927,14 @@ public class RSAServer extends Applet {
         tmpSmall1.resize_to_max(true);
         tmpSmall2.resize_to_max(true);
         tmpBig.resize_to_max(true);
-    }
 
+        countSignature(verify);
+        return verify;
+    }
 
     /**
-     * Sends the final signature depending on the P1 argument.
+     * Sends the final signature depending on the P2 argument, or the whole signature
+     * at once if requested in an extended length APDU with P2 set to {@code P2_PART_0}.
      * The keys signature must be computed first and can be retrieved any number of times.
      *
      * @param apdu object representing the communication between the card and the terminal
@@ -587,13 +949,11 @@ public class RSAServer extends Applet {
         if (apduBuffer[ISO7816.OFFSET_P1] != 0x00)
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 
-        switch (apduBuffer[ISO7816.OFFSET_P2]) {
+        byte p2 = apduBuffer[ISO7816.OFFSET_P2];
+        switch (p2) {
             case Common.P2_PART_0:
-                Common.sendNum(apdu, s.as_byte_array(), (short) 0, false);
-                break;
-
             case Common.P2_PART_1:
-                Common.sendNum(apdu, s.as_byte_array(), Common.PARTIAL_MODULUS_BYTE_LENGTH, false);
+                Common.sendLongNum(apdu, s.as_byte_array(), p2);
                 break;
 
             default:
@@ -602,111 +962,215 @@ public class RSAServer extends Applet {
     }
 
     /**
-     * Zeroes out all arrays and resets the applet to the initial state.
+     * Sets the message and client signature share, computes the final signature and sends it
+     * in a single instruction. The data field contains the message followed by the client
+     * signature share, each of them {@code PARTIAL_MODULUS_BYTE_LENGTH} bytes long.
+     * The public modulus must be at least once retrieved.
+     * <p>
+     * The data can be sent in a single extended length APDU or divided by the command
+     * chaining, i.e. all but the last command must have the {@code CLA_RSA_SMPC_SERVER_CHAINING}
+     * class byte. If the terminal does not accept the whole signature in the response, the first
+     * part is sent and the rest can be retrieved by the GET RESPONSE command.
+     * <p>
+     * If the verification policy skipped the verification of the client signature share, the last
+     * part of the signature is sent with the {@code SW_SHARE_NOT_VERIFIED} warning and the terminal
+     * must verify the final signature.
      *
      * @param apdu object representing the communication between the card and the terminal
+     * @throws ISOException SW_CONDITIONS_NOT_SATISFIED if the public modulus has not been retrieved
+     * @throws ISOException SW_WRONG_LENGTH if the message and signature share are of wrong length
+     * @throws ISOException SW_WRONG_DATA if the client signature share is fraudulent od corrupt
+     * @throws ISOException SW_SHARE_NOT_VERIFIED if the client signature share has not been verified
+     * @throws ISOException SW_BYTES_REMAINING_00 if the rest of the signature must be retrieved
+     *                      by the GET RESPONSE command
      * @throws ISOException SW_INCORRECT_P1P2
+     * @throws ISOException with {@link CryptoException} reason
+     * @throws ISOException with {@link APDUException} reason
      */
-    private void reset(APDU apdu) {
-        Common.checkZeroP1P2(apdu.getBuffer());
+    private void signAndGetSignature(APDU apdu) {
+        KeySlot slot = loadSlot();
+        if (slot.publicModulusState != Common.DATA_TRANSFERRED)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
-        clientPrivateKey.clearKey();
-        clientPublicKey.clearKey();
+        byte[] apduBuffer = apdu.getBuffer();
+        Common.checkZeroP1P2(apduBuffer);
 
-        serverPrivateKey.clearKey();
-        serverPublicKey.clearKey();
+        if (chainState[CHAIN_RECEIVED] == 0) {
+            Common.clearByteArray(sigState);
+            message.erase();
+            clientSignature.erase();
+        }
 
-        publicModulusState = 0x00;
+        try {
+            short received = apdu.setIncomingAndReceive();
+            short offsetCdata = apdu.getOffsetCdata();
 
-        tmpSmall1.resize_to_max(true);
-        tmpSmall2.resize_to_max(true);
-        tmpBig.resize_to_max(true);
-        message.resize_to_max(true);
-        clientSignature.resize_to_max(true);
-        s.resize_to_max(true);
-        s1.resize_to_max(true);
-        n1.resize_to_max(true);
-        n2.resize_to_max(true);
-        newA.resize_to_max(true);
-        newB.resize_to_max(true);
-        oldA.resize_to_max(true);
-        oldB.resize_to_max(true);
-        quotient.resize_to_max(true);
+            if ((short) (chainState[CHAIN_RECEIVED] + apdu.getIncomingLength()) > Common.PARTIAL_MODULUS_BYTE_LENGTH * 2) {
+                chainState[CHAIN_RECEIVED] = 0;
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
 
-        Common.clearByteArray(keyState);
-        Common.clearByteArray(sigState);
-        Common.clearByteArray(publicModulus);
+            while (received > 0) {
+                setSignatureData(apduBuffer, offsetCdata, received);
+                received = apdu.receiveBytes(offsetCdata);
+            }
+        } catch (APDUException e) {
+            chainState[CHAIN_RECEIVED] = 0;
+            ISOException.throwIt(e.getReason());
+        }
+
+        if (apdu.isCommandChainingCLA())
+            return;
+
+        short dataLength = chainState[CHAIN_RECEIVED];
+        chainState[CHAIN_RECEIVED] = 0;
+        if (dataLength != Common.PARTIAL_MODULUS_BYTE_LENGTH * 2)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        sigState[P1_SET_MESSAGE] = Common.DATA_TRANSFERRED;
+        sigState[P1_SET_SIGNATURE] = Common.DATA_TRANSFERRED;
+        boolean verified = computeSignature();
+
+        if (!Common.sendLongNum(apdu, s.as_byte_array(), Common.P2_PART_0)) {
+            // the warning is sent with the last part
+            sigState[SHARE_NOT_VERIFIED] = verified ? (byte) 0x00 : (byte) 0x01;
+            chainState[CHAIN_SENT] = Common.MAX_RESPONSE_APDU_LENGTH;
+            ISOException.throwIt(ISO7816.SW_BYTES_REMAINING_00);
+        }
+
+        if (!verified)
+            ISOException.throwIt(SW_SHARE_NOT_VERIFIED);
     }
 
     /**
-     * Decides whether the numbers {@code a} and {@code b} are coprime.
-     * Based on pseudo-code from Wikipedia: https://en.wikipedia.org/wiki/Euclidean_algorithm
+     * Copies the received part of the message and client signature share to the
+     * {@code message} and {@code clientSignature} Bignats.
      *
-     * @param a number a
-     * @param b number b
-     * @return true if {@code a} and {@code b} are coprime, false otherwise.
-     */
-    public boolean isCoprime(BignatSgn a, BignatSgn b) {
-        newA.copy(a);
-        newB.copy(b);
-
-        while (!newB.is_zero()) {
-            oldB.copy(newB);
-            newA.mod(newB);
-            newB.copy(newA);
-            newA.copy(oldB);
-        }
+     * @param src    source array
+     * @param offset offset of the data in the source array
+     * @param length length of the data
+     */
+    private void setSignatureData(byte[] src, short offset, short length) {
+        while (length > 0) {
+            short position = chainState[CHAIN_RECEIVED];
+            byte[] target = message.as_byte_array();
+
+            if (position >= Common.PARTIAL_MODULUS_BYTE_LENGTH) {
+                position -= Common.PARTIAL_MODULUS_BYTE_LENGTH;
+                target = clientSignature.as_byte_array();
+            }
 
-        return newA.same_value(Bignat_Helper.ONE);
+            short copied = (short) (Common.PARTIAL_MODULUS_BYTE_LENGTH - position);
+            if (copied > length)
+                copied = length;
+
+            Util.arrayCopyNonAtomic(src, offset, target, position, copied);
+            chainState[CHAIN_RECEIVED] += copied;
+            offset += copied;
+            length -= copied;
+        }
     }
 
     /**
-     * Computes modular inverse of {@code a} modulo {@code n} and saves
-     * the result into {@code res}.
-     * Based on pseudo-code from Wikipedia: https://en.wikipedia.org/wiki/Extended_Euclidean_algorithm
+     * Sends the rest of the final signature computed by the INS_SIGN_AND_GET_SIGNATURE
+     * instruction. Must immediately follow the INS_SIGN_AND_GET_SIGNATURE or previous
+     * GET RESPONSE command.
      *
-     * @param a number to inverted
-     * @param n modulus
-     * @param res result
-     * @throws ISOException SW_DATA_INVALID if {@code a} is not invertible
-     */
-    public void inverse(BignatSgn a, BignatSgn n, BignatSgn res) {
-        oldA.copy(n);
-        oldB.erase();
-        newB.one();
-        newA.copy(a);
-
-        if (oldA.lesser(newA))
-            newA.subtract(oldA);
-
-        while (!newA.is_zero()) {
-            tmpBig.copy(oldA);
-            tmpBig.remainder_divide(newA, quotient);
-
-            tmpSmall1.copy(newB);
-            tmpBig.mult(quotient, newB);
-            newB.copy(oldB);
-            oldB.copy(tmpSmall1);
-            newB.subtract(tmpBig);
-
-            tmpSmall1.copy(newA);
-            tmpBig.mult(quotient, newA);
-            newA.copy(oldA);
-            oldA.copy(tmpSmall1);
-            newA.subtract(tmpBig);
-        }
+     * @param apdu object representing the communication between the card and the terminal
+     * @throws ISOException SW_CONDITIONS_NOT_SATISFIED if there is no pending response
+     * @throws ISOException SW_SHARE_NOT_VERIFIED with the last part if the client signature share
+     *                      has not been verified
+     * @throws ISOException SW_BYTES_REMAINING_00 if a part of the signature still remains
+     * @throws ISOException SW_INCORRECT_P1P2
+     * @throws ISOException with {@link APDUException} reason
+     */
+    private void getResponse(APDU apdu) {
+        short sent = chainState[CHAIN_SENT];
+        chainState[CHAIN_SENT] = 0;
 
-        if (!oldA.lesser(Bignat_Helper.ONE) && !oldA.same_value(Bignat_Helper.ONE)
-                && oldA.sign == BignatSgn.POSITIVE_OR_ZERO)
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        if (sent == 0)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+        Common.checkZeroP1P2(apdu.getBuffer());
+
+        short remaining = (short) (Common.PARTIAL_MODULUS_BYTE_LENGTH * 2 - sent);
+        try {
+            short le = apdu.setOutgoing();
+            if (le > remaining)
+                le = remaining;
+
+            apdu.setOutgoingLength(le);
+            apdu.sendBytesLong(s.as_byte_array(), sent, le);
+            remaining -= le;
+        } catch (APDUException e) {
+            ISOException.throwIt(e.getReason());
+        }
 
-        if (oldB.sign == BignatSgn.NEGATIVE) {
-            tmpSmall1.copy(n);
-            tmpSmall1.subtract(oldB);
-            oldB.copy(tmpSmall1);
+        if (remaining > 0) {
+            chainState[CHAIN_SENT] = (short) (Common.PARTIAL_MODULUS_BYTE_LENGTH * 2 - remaining);
+            ISOException.throwIt(remaining >= Common.MAX_RESPONSE_APDU_LENGTH ?
+                    ISO7816.SW_BYTES_REMAINING_00 : (short) (ISO7816.SW_BYTES_REMAINING_00 | remaining));
         }
 
-        res.copy(oldB);
+        if (sigState[SHARE_NOT_VERIFIED] != 0x00)
+            ISOException.throwIt(SW_SHARE_NOT_VERIFIED);
+    }
+
+    /**
+     * Selects the key slot addressed by all following instructions until another slot
+     * is selected or the card is reset, the first slot is selected by default.
+     * The set message, client signature share and final signature are discarded.
+     * <p>
+     * P1 - index of the slot, less than the number of slots set at the installation
+     *
+     * @param apdu object representing the communication between the card and the terminal
+     * @throws ISOException SW_INCORRECT_P1P2
+     */
+    private void selectSlot(APDU apdu) {
+        byte[] apduBuffer = apdu.getBuffer();
+        byte p1 = apduBuffer[ISO7816.OFFSET_P1];
+
+        if (p1 < 0 || p1 >= (short) slots.length || apduBuffer[ISO7816.OFFSET_P2] != 0x00)
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+
+        selectedSlot[0] = p1;
+        clearSignature();
+        loadSlot();
+    }
+
+    /**
+     * Zeroes out the selected key slot and all arrays and resets the applet to the initial state.
+     * The keys in other slots are kept.
+     *
+     * @param apdu object representing the communication between the card and the terminal
+     * @throws ISOException SW_INCORRECT_P1P2
+     */
+    private void reset(APDU apdu) {
+        Common.checkZeroP1P2(apdu.getBuffer());
+
+        loadSlot().clear();
+        clearSignature();
+        policyCounter[0] = 0x00;
+    }
+
+    /**
+     * Zeroes out the message, signatures and helper Bignats and the state of signing.
+     */
+    private void clearSignature() {
+        tmpSmall1.resize_to_max(true);
+        tmpSmall2.resize_to_max(true);
+        tmpBig.resize_to_max(true);
+        message.resize_to_max(true);
+        clientSignature.resize_to_max(true);
+        s.resize_to_max(true);
+        s1.resize_to_max(true);
+        s2.resize_to_max(true);
+        n1.resize_to_max(true);
+        n2.resize_to_max(true);
+
+        Common.clearByteArray(sigState);
+        chainState[CHAIN_RECEIVED] = 0;
+        chainState[CHAIN_SENT] = 0;
     }
 
 }
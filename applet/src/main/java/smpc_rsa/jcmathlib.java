@@ -652,6 +652,11 @@ public class jcmathlib {
         /**
          * Addition of big integers x and y stored in byte arrays with specified offset and length.
          * The result is stored into x array argument.
+         * <P>
+         * Digits are processed in pairs, i.e., as 16-bit limbs read and written by
+         * {@code Util.getShort} and {@code Util.setShort}, which halves the loop trips.
+         * The carry of a limb is computed only from the highest bits of both summands
+         * and the sum, so no wider type is needed.
          * @param x          array with first bignat
          * @param xOffset    start offset in array of {@code x}
          * @param xLength    length of {@code x}
@@ -666,7 +671,17 @@ public class jcmathlib {
             short i = (short) (xLength + xOffset - 1);
             short j = (short) (yLength + yOffset - 1);
 
-            for (; i >= xOffset && j >= 0; i--, j--) {
+            // i and j point to the less significant digit of the limb
+            for (; i > xOffset && j > yOffset; i -= 2, j -= 2) {
+                short a = Util.getShort(x, (short) (i - 1));
+                short b = Util.getShort(y, (short) (j - 1));
+                short sum = (short) (a + b + result);
+
+                Util.setShort(x, (short) (i - 1), sum);
+                result = (short) ((short) ((a & b) | ((a | b) & ~sum)) < 0 ? 1 : 0);
+            }
+            // the last single digit
+            for (; i >= xOffset && j >= yOffset; i--, j--) {
                 result = (short) (result + (short) (x[i] & digit_mask) + (short) (y[j] & digit_mask));
 
                 x[i] = (byte) (result & digit_mask);
@@ -685,6 +700,8 @@ public class jcmathlib {
         /**
          * Subtracts big integer y from x specified by offset and length.
          * The result is stored into x array argument.
+         * <P>
+         * Digits are processed in pairs as 16-bit limbs, see {@link #add(byte[], short, short, byte[], short, short)}.
          * @param x array with first bignat
          * @param xOffset start offset in array of {@code x}
          * @param xLength length of {@code x}
@@ -700,6 +717,14 @@ public class jcmathlib {
             short carry = 0;
             short subtraction_result = 0;
 
+            for (; i > xOffset && j > yOffset; i -= 2, j -= 2) {
+                short a = Util.getShort(x, (short) (i - 1));
+                short b = Util.getShort(y, (short) (j - 1));
+                short diff = (short) (a - b - carry);
+
+                Util.setShort(x, (short) (i - 1), diff);
+                carry = (short) ((short) ((~a & b) | (~(a ^ b) & diff)) < 0 ? 1 : 0);
+            }
             for (; i >= xOffset && j >= yOffset; i--, j--) {
                 subtraction_result = (short) ((x[i] & digit_mask) - (y[j] & digit_mask) - carry);
                 x[i] = (byte) (subtraction_result & digit_mask);
@@ -720,7 +745,7 @@ public class jcmathlib {
          * @param other bignat to be substracted from this
          */
         public void subtract(Bignat other) {
-            this.times_minus(other, (short) 0, (short) 1);
+            subtract(this.value, (short) 0, this.size, other.value, (short) 0, other.size);
         }
 
         /**
@@ -740,6 +765,10 @@ public class jcmathlib {
          * underflow.
          * <P>
          * Used in division.
+         * <P>
+         * Digits are processed in pairs as 16-bit limbs, see {@link #add(byte[], short, short, byte[], short, short)}.
+         * Each limb is still multiplied digit by digit, as a product of a limb and a digit
+         * does not fit into a short.
          *
          * @param other
          *            Bignat to subtract from this object
@@ -752,8 +781,25 @@ public class jcmathlib {
         public void times_minus(Bignat other, short shift, short mult) {
             short akku = 0;
             short subtraction_result;
+            short a, b, low;
             short i = (short) (this.size - 1 - shift);
             short j = (short) (other.size - 1);
+            // i and j point to the less significant digit of the limb
+            for (; i > 0 && j > 0; i -= 2, j -= 2) {
+                a = Util.getShort(value, (short) (i - 1));
+                b = Util.getShort(other.value, (short) (j - 1));
+
+                akku = (short) (akku + (short) (mult * (b & digit_mask)));
+                low = (short) ((a & digit_mask) - (akku & digit_mask));
+                akku = (short) ((short) ((akku >> digit_len) & digit_mask) + (short) ((low >> digit_len) & 1));
+
+                akku = (short) (akku + (short) (mult * ((b >> digit_len) & digit_mask)));
+                subtraction_result = (short) (((a >> digit_len) & digit_mask) - (akku & digit_mask));
+                akku = (short) ((short) ((akku >> digit_len) & digit_mask) + (short) ((subtraction_result >> digit_len) & 1));
+
+                Util.setShort(value, (short) (i - 1), (short) ((short) (subtraction_result << digit_len) | (short) (low & digit_mask)));
+            }
+            // the last single digit
             for (; i >= 0 && j >= 0; i--, j--) {
                 akku = (short) (akku + (short) (mult * (other.value[j] & digit_mask)));
                 subtraction_result = (short) ((value[i] & digit_mask) - (akku & digit_mask));
@@ -986,6 +1032,23 @@ public class jcmathlib {
             return true;
         }
 
+        /**
+         * Test equality with one. Faster than {@link #same_value} with
+         * {@link Bignat_Helper#ONE} for big values, as the scan stops at
+         * the first nonzero leading digit.
+         *
+         * @return true if this bignat equals one.
+         */
+        public boolean is_one() {
+            short last = (short) (size - 1);
+            for (short i = 0; i < last; i++) {
+                if (value[i] != 0) {
+                    return false; // CTO
+                }
+            }
+            return value[last] == 1;
+        }
+
         /** Check if stored bignat is odd.
          *
          * @return  true if odd, false if even
@@ -1016,6 +1079,11 @@ public class jcmathlib {
          *            gets the quotient if non-null
          */
         public void remainder_divide(Bignat divisor, Bignat quotient) {
+            if (bnh.FLAG_FIXED_ITERATION_DIVISION) {
+                remainder_divide_fixed(divisor, quotient);
+                return;
+            }
+
             // There are some size requirements, namely that quotient must
             // be big enough. However, this depends on the value of the
             // divisor and is therefore not stated here.
@@ -1177,6 +1245,158 @@ public class jcmathlib {
             }
         }
 
+        /**
+         * Remainder and Quotient with a fixed number of iterations. Same as
+         * {@link #remainder_divide}, but every quotient digit is estimated exactly
+         * from the first digits of the remainder and of the divisor normalized
+         * to have the highest bit set (Knuth, TAOCP vol. 2, 4.3.1, algorithm D).
+         * The estimate is at most one greater than the quotient digit, therefore
+         * a single multiple of the divisor is subtracted in each round and added
+         * back at most once.
+         * <P>
+         * The number of rounds depends only on the size of this and on the number
+         * of significant digits of the divisor, and each round does the same work,
+         * i.e., the add back is always computed, but masked out if not needed.
+         * The normalized digits are computed on the fly, this and the divisor are
+         * not modified.
+         *
+         * @param divisor
+         *            must be non-zero
+         * @param quotient
+         *            gets the quotient if non-null
+         */
+        public void remainder_divide_fixed(Bignat divisor, Bignat quotient) {
+            if (quotient != null) {
+                quotient.zero();
+            }
+
+            short divisor_index = 0;
+            while (divisor.value[divisor_index] == 0) {
+                divisor_index++;
+            }
+            short divisor_len = (short) (divisor.size - divisor_index);
+
+            // shift normalizing the first divisor digit, highest_bit counts the leading zeroes of a short
+            short norm = (short) (highest_bit((short) (divisor.value[divisor_index] & digit_mask)) - digit_len);
+            short v1 = normalized_digit(divisor.value, divisor_index, divisor.size, divisor_index, norm);
+            short v2 = normalized_digit(divisor.value, divisor_index, divisor.size, (short) (divisor_index + 1), norm);
+
+            short u0, u1, u2, num, multiple, rest, c, akku, subtraction_result, mask, a, b, low;
+            short i, j;
+            for (short round = 0; round <= (short) (this.size - divisor_len); round++) {
+                // the shifted divisor lies at digits round .. round + divisor_len - 1 of this,
+                // the remainder is lesser than the divisor shifted one digit more
+                u0 = normalized_digit(value, (short) 0, size, (short) (round - 1), norm);
+                u1 = normalized_digit(value, (short) 0, size, round, norm);
+                u2 = normalized_digit(value, (short) 0, size, (short) (round + 1), norm);
+
+                // estimate (u0 * base + u1) / v1, the division is done on unsigned double digits
+                if (u0 == v1) {
+                    multiple = digit_mask;
+                    rest = (short) (u1 + v1);
+                } else {
+                    num = (short) ((short) (u0 << digit_len) | u1);
+                    multiple = (short) ((short) ((short) ((num >>> 1) & positive_double_digit_mask) / v1) << 1);
+                    rest = (short) (num - (short) (multiple * v1));
+                    c = rest >= v1 ? (short) 1 : (short) 0;
+                    multiple += c;
+                    rest -= (short) (c * v1);
+                }
+
+                // with the second divisor digit the estimate is at most one too big
+                for (i = 0; i < 2; i++) {
+                    c = rest < bignat_base
+                            && unsigned_greater((short) (multiple * v2), (short) ((short) (rest << digit_len) | u2))
+                            ? (short) 1 : (short) 0;
+                    multiple -= c;
+                    rest += (short) (c * v1);
+                }
+
+                // subtract multiple * divisor, in limbs as in times_minus
+                akku = 0;
+                i = (short) (round + divisor_len - 1);
+                for (j = (short) (divisor.size - 1); j > divisor_index; i -= 2, j -= 2) {
+                    a = Util.getShort(value, (short) (i - 1));
+                    b = Util.getShort(divisor.value, (short) (j - 1));
+
+                    akku = (short) (akku + (short) (multiple * (b & digit_mask)));
+                    low = (short) ((a & digit_mask) - (akku & digit_mask));
+                    akku = (short) ((short) ((akku >> digit_len) & digit_mask) + (short) ((low >> digit_len) & 1));
+
+                    akku = (short) (akku + (short) (multiple * ((b >> digit_len) & digit_mask)));
+                    subtraction_result = (short) (((a >> digit_len) & digit_mask) - (akku & digit_mask));
+                    akku = (short) ((short) ((akku >> digit_len) & digit_mask) + (short) ((subtraction_result >> digit_len) & 1));
+
+                    Util.setShort(value, (short) (i - 1), (short) ((short) (subtraction_result << digit_len) | (short) (low & digit_mask)));
+                }
+                for (; j >= divisor_index; i--, j--) {
+                    akku = (short) (akku + (short) (multiple * (divisor.value[j] & digit_mask)));
+                    subtraction_result = (short) ((value[i] & digit_mask) - (akku & digit_mask));
+                    value[i] = (byte) (subtraction_result & digit_mask);
+                    akku = (short) ((short) ((akku >> digit_len) & digit_mask) + (short) ((subtraction_result >> digit_len) & 1));
+                }
+                if (i >= 0) {
+                    subtraction_result = (short) ((value[i] & digit_mask) - akku);
+                    value[i] = (byte) (subtraction_result & digit_mask);
+                    c = subtraction_result < 0 ? (short) 1 : (short) 0;
+                } else {
+                    c = akku != 0 ? (short) 1 : (short) 0;
+                }
+
+                // add the divisor back if the estimate was too big, the carry restores the first digit
+                mask = (short) (-c & digit_mask);
+                akku = 0;
+                i = (short) (round + divisor_len - 1);
+                for (j = (short) (divisor.size - 1); j > divisor_index; i -= 2, j -= 2) {
+                    a = Util.getShort(value, (short) (i - 1));
+                    b = Util.getShort(divisor.value, (short) (j - 1));
+
+                    low = (short) (akku + (short) (a & digit_mask) + (short) (b & mask));
+                    akku = (short) ((low >> digit_len) & digit_mask);
+                    akku = (short) (akku + (short) ((a >> digit_len) & digit_mask) + (short) ((b >> digit_len) & mask));
+
+                    Util.setShort(value, (short) (i - 1), (short) ((short) (akku << digit_len) | (short) (low & digit_mask)));
+                    akku = (short) ((akku >> digit_len) & digit_mask);
+                }
+                for (; j >= divisor_index; i--, j--) {
+                    akku = (short) (akku + (short) (value[i] & digit_mask) + (short) (divisor.value[j] & mask));
+                    value[i] = (byte) (akku & digit_mask);
+                    akku = (short) ((akku >> digit_len) & digit_mask);
+                }
+                if (i >= 0) {
+                    value[i] = (byte) (value[i] + akku);
+                }
+                multiple -= c;
+
+                if (quotient != null && (short) (this.size - divisor_len - round) < quotient.size) {
+                    quotient.value[(short) (quotient.size - 1 - this.size + divisor_len + round)] = (byte) multiple;
+                }
+            }
+        }
+
+        /**
+         * Returns the digit at {@code index} of the number stored in {@code digits}
+         * between {@code start} and {@code end} shifted {@code shift} bits to the
+         * left. Digits outside of the number are zero.
+         * <P>
+         * Utility method, used in division.
+         */
+        private static short normalized_digit(byte[] digits, short start, short end, short index, short shift) {
+            short high = index >= start && index < end ? (short) (digits[index] & digit_mask) : 0;
+            index++;
+            short low = index >= start && index < end ? (short) (digits[index] & digit_mask) : 0;
+            return (short) ((short) ((short) (high << shift) | (short) (low >> (short) (digit_len - shift))) & digit_mask);
+        }
+
+        /**
+         * Unsigned comparison of double digits.
+         *
+         * @return true if {@code a} is greater than {@code b}
+         */
+        private static boolean unsigned_greater(short a, short b) {
+            return (short) (a ^ (short) 0x8000) > (short) (b ^ (short) 0x8000);
+        }
+
 
         /**
          * Add short value to this bignat
@@ -1212,23 +1432,7 @@ public class jcmathlib {
          * @return true if carry occurs, false otherwise
          */
         public boolean add_carry(byte[] other, short otherOffset, short otherLen) {
-            short akku = 0;
-            short j = (short) (this.size - 1);
-            for (short i = (short) (otherLen - 1); i >= 0 && j >= 0; i--, j--) {
-                akku = (short) (akku + (short) (this.value[j] & digit_mask) + (short) (other[(short) (i + otherOffset)] & digit_mask));
-
-                this.value[j] = (byte) (akku & digit_mask);
-                akku = (short) ((akku >> digit_len) & digit_mask);
-            }
-            // add carry at position j
-            while (akku > 0 && j >= 0) {
-                akku = (short) (akku + (short) (this.value[j] & digit_mask));
-                this.value[j] = (byte) (akku & digit_mask);
-                akku = (short) ((akku >> digit_len) & digit_mask);
-                j--;
-            }
-
-            return akku != 0;
+            return add(this.value, (short) 0, this.size, other, otherOffset, otherLen);
         }
         /**
          * Add with carry. See {@code add_cary()} for full description
@@ -1284,18 +1488,33 @@ public class jcmathlib {
          * @param modulo value of modulo to apply
          */
         public void mod_sub(Bignat other, Bignat modulo) {
+            mod_sub(other, modulo, null);
+        }
+
+        /**
+         * Substract other bignat from this bignat modulo given by the precomputed
+         * Barrett context, see {@link #mod(BarrettContext)}.
+         *
+         * @param other value to substract
+         * @param ctx Barrett context of the modulus
+         */
+        public void mod_sub(Bignat other, BarrettContext ctx) {
+            mod_sub(other, ctx.n, ctx);
+        }
+
+        private void mod_sub(Bignat other, Bignat modulo, BarrettContext ctx) {
             if (other.lesser(this)) { // CTO
                 this.subtract(other);
-                this.mod(modulo);
+                this.mod(modulo, ctx);
             } else { //other>this (mod-other+this)
                 bnh.fnc_mod_sub_tmpOther.lock();
                 bnh.fnc_mod_sub_tmpOther.clone(other);
-                bnh.fnc_mod_sub_tmpOther.mod(modulo);
+                bnh.fnc_mod_sub_tmpOther.mod(modulo, ctx);
 
                 //fnc_mod_sub_tmpThis = new Bignat(this.length());
                 bnh.fnc_mod_sub_tmpThis.lock();
                 bnh.fnc_mod_sub_tmpThis.clone(this);
-                bnh.fnc_mod_sub_tmpThis.mod(modulo);
+                bnh.fnc_mod_sub_tmpThis.mod(modulo, ctx);
 
                 bnh.fnc_mod_sub_tmp.lock();
                 bnh.fnc_mod_sub_tmp.clone(modulo);
@@ -1303,7 +1522,7 @@ public class jcmathlib {
                 bnh.fnc_mod_sub_tmpOther.unlock();
                 bnh.fnc_mod_sub_tmp.add(bnh.fnc_mod_sub_tmpThis); //this will never overflow as "other" is larger than "this"
                 bnh.fnc_mod_sub_tmpThis.unlock();
-                bnh.fnc_mod_sub_tmp.mod(modulo);
+                bnh.fnc_mod_sub_tmp.mod(modulo, ctx);
                 bnh.fnc_mod_sub_tmp.shrink();
                 this.clone(bnh.fnc_mod_sub_tmp);
                 bnh.fnc_mod_sub_tmp.unlock();
@@ -1347,6 +1566,8 @@ public class jcmathlib {
          * <P>
          * Asserts that the size of this is greater than or equal to
          * {@code other.size + shift + 1}.
+         * <P>
+         * Digits are processed in pairs as 16-bit limbs, see {@link #times_minus(Bignat, short, short)}.
          *
          * @param x Bignat to add
          * @param mult of short, factor to multiply {@code other} with before
@@ -1356,8 +1577,23 @@ public class jcmathlib {
          */
         public void times_add_shift(Bignat x, short shift, short mult) {
             short akku = 0;
+            short a, b, low;
+            short i = (short) (x.size - 1);
             short j = (short) (this.size - 1 - shift);
-            for (short i = (short) (x.size - 1); i >= 0; i--, j--) {
+            // i and j point to the less significant digit of the limb
+            for (; i > 0; i -= 2, j -= 2) {
+                a = Util.getShort(this.value, (short) (j - 1));
+                b = Util.getShort(x.value, (short) (i - 1));
+
+                low = (short) (akku + (short) (a & digit_mask) + (short) (mult * (b & digit_mask)));
+                akku = (short) ((low >> digit_len) & digit_mask);
+                akku = (short) (akku + (short) ((a >> digit_len) & digit_mask) + (short) (mult * ((b >> digit_len) & digit_mask)));
+
+                Util.setShort(this.value, (short) (j - 1), (short) ((short) (akku << digit_len) | (short) (low & digit_mask)));
+                akku = (short) ((akku >> digit_len) & digit_mask);
+            }
+            // the last single digit
+            for (; i >= 0; i--, j--) {
                 akku = (short) (akku + (short) (this.value[j] & digit_mask) + (short) (mult * (x.value[i] & digit_mask)));
 
                 this.value[j] = (byte) (akku & digit_mask);
@@ -1388,16 +1624,23 @@ public class jcmathlib {
          */
         public void exponentiation(Bignat base, Bignat exp) {
             this.one();
-            bnh.fnc_exponentiation_i.lock();
-            bnh.fnc_exponentiation_i.set_size(exp.length());
-            bnh.fnc_exponentiation_i.zero();
             bnh.fnc_exponentiation_tmp.lock();
             bnh.fnc_exponentiation_tmp.set_size((short) (2 * this.length()));
-            for (; bnh.fnc_exponentiation_i.lesser(exp); bnh.fnc_exponentiation_i.increment_one()) {
-                bnh.fnc_exponentiation_tmp.mult(this, base);
-                this.copy(bnh.fnc_exponentiation_tmp);
+            // left-to-right square and multiply, squaring starts with the first set bit
+            boolean started = false;
+            for (short i = 0; i < exp.size; i++) {
+                for (short bit = 7; bit >= 0; bit--) {
+                    if (started) {
+                        bnh.fnc_exponentiation_tmp.sqr(this);
+                        this.copy(bnh.fnc_exponentiation_tmp);
+                    }
+                    if (((exp.value[i] >> bit) & 1) != 0) {
+                        bnh.fnc_exponentiation_tmp.mult(this, base);
+                        this.copy(bnh.fnc_exponentiation_tmp);
+                        started = true;
+                    }
+                }
             }
-            bnh.fnc_exponentiation_i.unlock();
             bnh.fnc_exponentiation_tmp.unlock();
         }
 
@@ -1406,6 +1649,7 @@ public class jcmathlib {
          * Stores {@code x * y} in this. To ensure this is big
          * enough for the result it is asserted that the size of this is greater
          * than or equal to the sum of the sizes of {@code x} and {@code y}.
+         * The product of a value with itself is computed by {@link #sqr}.
          *
          * @param x
          *            first factor
@@ -1413,15 +1657,22 @@ public class jcmathlib {
          *            second factor
          */
         public void mult(Bignat x, Bignat y) {
-            if (!bnh.FLAG_FAST_MULT_VIA_RSA || x.length() < Bignat_Helper.FAST_MULT_VIA_RSA_TRESHOLD_LENGTH) {
-                //if (!bnh.FLAG_FAST_MULT_VIA_RSA) {
+            if (x == y) {
+                sqr(x);
+            }
+            else if (bnh.FLAG_FAST_MULT_VIA_RSA && x.length() >= Bignat_Helper.FAST_MULT_VIA_RSA_TRESHOLD_LENGTH
+                    && bnh.fits_mult_rsa_engine(x, y)) {
+                mult_rsa_trick(x, y, null, null);
+            }
+            else if (bnh.fits_mult_karatsuba(x, y)) {
+                // Operands too large for the RSA engine, but long enough to save on digit multiplications
+                mult_karatsuba(x, y);
+            }
+            else {
                 // If not supported, use slow multiplication
                 // Use slow multiplication also when numbers are small => faster to do in software
                 mult_schoolbook(x, y);
             }
-            else {
-                mult_rsa_trick(x, y, null, null);
-            }
         }
 
         /**
@@ -1436,6 +1687,199 @@ public class jcmathlib {
             }
         }
 
+        /**
+         * Karatsuba multiplication with a single level of recursion. Both factors
+         * are split into halves {@code x = x1 * B^h + x0}, {@code y = y1 * B^h + y0}
+         * and the product is assembled from three half-length products
+         * {@code z0 = x0 * y0}, {@code z2 = x1 * y1} and
+         * {@code z1 = (x0 + x1) * (y0 + y1) - z0 - z2} computed by the schoolbook
+         * algorithm, i.e., saves about a quarter of digit multiplications.
+         * <P>
+         * {@code z0} and {@code z2} are stored directly into this, the sums and
+         * {@code z1} into the {@code helper_BN_array1} and {@code helper_BN_array2}
+         * arrays. Asserts that {@link Bignat_Helper#fits_mult_karatsuba} holds.
+         *
+         * @param x first number to multiply
+         * @param y second number to multiply
+         */
+        public void mult_karatsuba(Bignat x, Bignat y) {
+            short h = (short) ((x.size > y.size ? x.size : y.size) / 2);
+            short xh = (short) (x.size - h);
+            short yh = (short) (y.size - h);
+            short sxLen = (short) ((xh > h ? xh : h) + 1);
+            short syLen = (short) ((yh > h ? yh : h) + 1);
+            short z1Len = (short) (sxLen + syLen);
+            byte[] z1 = bnh.fnc_mult_resultArray1;
+            byte[] sy = bnh.fnc_mult_resultArray2;
+
+            this.zero(); // important to keep, used in exponentiation()
+            // z0 into the lowest 2h digits, z2 right above it
+            mult_add(this.value, this.size, x.value, xh, h, y.value, yh, h);
+            mult_add(this.value, (short) (this.size - 2 * h), x.value, (short) 0, xh, y.value, (short) 0, yh);
+
+            bnh.lock(z1);
+            bnh.lock(sy);
+
+            // x0 + x1 is stored right after z1, y0 + y1 into the second array
+            Util.arrayFillNonAtomic(z1, (short) 0, (short) (z1Len + sxLen), (byte) 0);
+            Util.arrayCopyNonAtomic(x.value, xh, z1, (short) (z1Len + sxLen - h), h);
+            add(z1, z1Len, sxLen, x.value, (short) 0, xh);
+
+            Util.arrayFillNonAtomic(sy, (short) 0, syLen, (byte) 0);
+            Util.arrayCopyNonAtomic(y.value, yh, sy, (short) (syLen - h), h);
+            add(sy, (short) 0, syLen, y.value, (short) 0, yh);
+
+            mult_add(z1, z1Len, z1, z1Len, sxLen, sy, (short) 0, syLen);
+            bnh.unlock(sy);
+
+            subtract(z1, (short) 0, z1Len, this.value, (short) (this.size - 2 * h), (short) (2 * h));
+            subtract(z1, (short) 0, z1Len, this.value, (short) (this.size - x.size - y.size), (short) (xh + yh));
+
+            add(this.value, (short) 0, (short) (this.size - h), z1, (short) 0, z1Len);
+            bnh.unlock(z1);
+        }
+
+        /**
+         * Adds the product of {@code x} and {@code y} stored in byte arrays to the
+         * digits of {@code res} ending at {@code resEnd}, i.e., the schoolbook
+         * algorithm of {@link #mult_schoolbook} on arrays.
+         * <P>
+         * Asserts that the sum fits into {@code res}.
+         *
+         * @param res array with the result
+         * @param resEnd offset after the least significant digit of the result
+         * @param x array with first number
+         * @param xOffset start offset of {@code x}
+         * @param xLength length of {@code x}
+         * @param y array with second number
+         * @param yOffset start offset of {@code y}
+         * @param yLength length of {@code y}
+         */
+        private static void mult_add(byte[] res, short resEnd, byte[] x, short xOffset, short xLength,
+                                     byte[] y, short yOffset, short yLength) {
+            for (short i = (short) (yLength - 1); i >= 0; i--) {
+                short mult = (short) (y[(short) (yOffset + i)] & digit_mask);
+                if (mult != 0) {
+                    times_add_array(res, (short) (resEnd - yLength + i + 1), x, xOffset, xLength, mult);
+                }
+            }
+        }
+
+        /**
+         * Scaled addition on arrays. Adds {@code mult * x} to the digits of
+         * {@code res} ending at {@code resEnd}, the carry is propagated as far as
+         * needed. Same as {@link #times_add_shift} on arrays.
+         * <P>
+         * Asserts that the sum fits into {@code res}.
+         *
+         * @param res array with the result
+         * @param resEnd offset after the least significant digit of the result
+         * @param x array with the number to add
+         * @param xOffset start offset of {@code x}
+         * @param xLength length of {@code x}
+         * @param mult factor to multiply {@code x} with before addition. Must be
+         * less than {@link #bignat_base}.
+         */
+        private static void times_add_array(byte[] res, short resEnd, byte[] x, short xOffset, short xLength,
+                                            short mult) {
+            short akku = 0;
+            short j = (short) (resEnd - 1);
+            for (short k = (short) (xOffset + xLength - 1); k >= xOffset; k--, j--) {
+                akku = (short) (akku + (short) (res[j] & digit_mask) + (short) (mult * (x[k] & digit_mask)));
+                res[j] = (byte) (akku & digit_mask);
+                akku = (short) ((akku >> digit_len) & digit_mask);
+            }
+            for (; akku != 0; j--) {
+                akku = (short) (akku + (short) (res[j] & digit_mask));
+                res[j] = (byte) (akku & digit_mask);
+                akku = (short) ((akku >> digit_len) & digit_mask);
+            }
+        }
+
+        /**
+         * Squaring. Automatically selects fastest available algorithm.
+         * Stores {@code x * x} in this. It is asserted that the size of this
+         * is greater than or equal to twice the size of {@code x}.
+         *
+         * @param x value to square
+         */
+        public void sqr(Bignat x) {
+            if (bnh.FLAG_FAST_MULT_VIA_RSA && x.length() >= Bignat_Helper.FAST_MULT_VIA_RSA_TRESHOLD_LENGTH
+                    && bnh.fits_mult_rsa_engine(x, x)) {
+                sqr_rsa_trick(x);
+            }
+            else {
+                sqr_schoolbook(x);
+            }
+        }
+
+        /**
+         * Schoolbook squaring. Each product {@code x_i * x_j} of distinct digits
+         * is computed only once, then the sum is doubled and the squares of digits
+         * are added, i.e., needs about a half of digit multiplications of
+         * {@link #mult_schoolbook}.
+         *
+         * @param x value to square
+         */
+        public void sqr_schoolbook(Bignat x) {
+            short n = x.size;
+            this.zero();
+
+            // products of x_i and all more significant digits
+            for (short i = (short) (n - 1); i > 0; i--) {
+                short mult = (short) (x.value[i] & digit_mask);
+                if (mult != 0) {
+                    times_add_array(this.value, (short) (this.size - 2 * n + 2 * i + 1), x.value, (short) 0, i, mult);
+                }
+            }
+
+            // double them and add the squares of digits
+            short akku = 0;
+            short j = (short) (this.size - 1);
+            for (short i = (short) (n - 1); i >= 0; i--) {
+                short digit = (short) (x.value[i] & digit_mask);
+                short square = (short) (digit * digit);
+
+                akku = (short) (akku + (short) ((this.value[j] & digit_mask) << 1) + (short) (square & digit_mask));
+                this.value[j] = (byte) (akku & digit_mask);
+                akku = (short) (akku >> digit_len);
+                j--;
+
+                akku = (short) (akku + (short) ((this.value[j] & digit_mask) << 1) + (short) ((square >> digit_len) & digit_mask));
+                this.value[j] = (byte) (akku & digit_mask);
+                akku = (short) (akku >> digit_len);
+                j--;
+            }
+            // x^2 has at most 2n digits, no carry is left
+        }
+
+        /**
+         * Squaring by a single operation of the RSA engine with public exponent 2,
+         * i.e., the first step of {@link #mult_rsa_trick} alone. Asserts that
+         * {@link Bignat_Helper#fits_mult_rsa_engine}{@code (x, x)} holds.
+         *
+         * @param x value to square
+         */
+        public void sqr_rsa_trick(Bignat x) {
+            byte[] res = bnh.fnc_mult_resultArray1;
+            short len = (short) res.length;
+            short xOffset = (short) (len - x.size);
+
+            bnh.lock(res);
+            Util.arrayFillNonAtomic(res, (short) 0, xOffset, (byte) 0);
+            Util.arrayCopyNonAtomic(x.value, (short) 0, res, xOffset, x.size);
+            bnh.fnc_mult_cipher.doFinal(res, (short) 0, len, res, (short) 0);
+
+            // x^2 is lesser than the modulus of the engine, leading digits are zero
+            short resLen = (short) (2 * x.size);
+            if (resLen > this.size) {
+                resLen = this.size;
+            }
+            this.zero();
+            Util.arrayCopyNonAtomic(res, (short) (len - resLen), this.value, (short) (this.size - resLen), resLen);
+            bnh.unlock(res);
+        }
+
         /**
          * Performs multiplication of two bignats x and y and stores result into
          * this. RSA engine is used to speedup operation.
@@ -1581,10 +2025,176 @@ public class jcmathlib {
             this.clone(bnh.fnc_mod_mult_tmpThis);
             bnh.fnc_mod_mult_tmpThis.unlock();
         }
+
+        /**
+         * Multiplication of bignats x and y computed by modulo given by the precomputed
+         * Barrett context. The result is stored to this. Same as {@link #mod_mult(Bignat, Bignat, Bignat)},
+         * but the product is reduced without a division, see {@link #mod(BarrettContext)}.
+         *
+         * @param x first value to multiply
+         * @param y second value to multiply
+         * @param ctx Barrett context of the modulus
+         */
+        public void mod_mult(Bignat x, Bignat y, BarrettContext ctx) {
+            bnh.fnc_mod_mult_tmpThis.lock();
+            bnh.fnc_mod_mult_tmpThis.set_size((short) (x.size + y.size));
+            bnh.fnc_mod_mult_tmpThis.mult(x, y);
+            bnh.fnc_mod_mult_tmpThis.mod(ctx);
+            bnh.fnc_mod_mult_tmpThis.shrink();
+            this.clone(bnh.fnc_mod_mult_tmpThis);
+            bnh.fnc_mod_mult_tmpThis.unlock();
+        }
         // Potential speedup for  modular multiplication
         // Binomial theorem: (op1 + op2)^2 - (op1 - op2)^2 = 4 * op1 * op2 mod (mod)
 
+        /**
+         * Multiplication of bignats x and y computed by modulo given by the precomputed
+         * Montgomery context. The result is stored to this. Needs two Montgomery
+         * multiplications, but neither a double-width product nor a division.
+         * <P>
+         * Asserts that {@code x} and {@code y} are lesser than the modulus.
+         *
+         * @param x first value to multiply
+         * @param y second value to multiply
+         * @param ctx Montgomery context of the modulus
+         */
+        public void mod_mult(Bignat x, Bignat y, MontgomeryContext ctx) {
+            // (x * y * R^-1) * R^2 * R^-1 = x * y
+            this.mont_mult(x, y, ctx);
+            this.mont_mult(this, ctx.r2, ctx);
+        }
+
+        /**
+         * Converts {@code x} into the Montgomery form {@code x * R mod n} and stores
+         * it into this, see {@link #mont_mult}.
+         * <P>
+         * Asserts that {@code x} is lesser than the modulus.
+         *
+         * @param x value to convert
+         * @param ctx Montgomery context of the modulus
+         */
+        public void to_montgomery(Bignat x, MontgomeryContext ctx) {
+            this.mont_mult(x, ctx.r2, ctx);
+        }
+
+        /**
+         * Multiplication of bignats x and y computed by modulo given by the RSA context.
+         * The result is stored to this. Uses two squarings on the RSA engine keyed
+         * to the modulus, {@code x * y = ((x + y)^2 - (x - y)^2) / 4 mod n}. The context
+         * must be checked by {@link RSAModMultContext#is_available()} first.
+         * <P>
+         * Asserts that {@code x} and {@code y} are lesser than the modulus.
+         *
+         * @param x first value to multiply
+         * @param y second value to multiply
+         * @param ctx RSA context of the modulus
+         */
+        public void mod_mult(Bignat x, Bignat y, RSAModMultContext ctx) {
+            short len = ctx.n.size;
+
+            // (x + y) mod n
+            bnh.fnc_mod_mult_rsa_sum.lock();
+            bnh.fnc_mod_mult_rsa_sum.set_size(len);
+            bnh.fnc_mod_mult_rsa_sum.copy(x);
+            if (bnh.fnc_mod_mult_rsa_sum.add_carry(y) || !bnh.fnc_mod_mult_rsa_sum.lesser(ctx.n)) {
+                bnh.fnc_mod_mult_rsa_sum.subtract(ctx.n);
+            }
+
+            // |x - y|, the sign does not matter after squaring
+            bnh.fnc_mod_mult_rsa_diff.lock();
+            bnh.fnc_mod_mult_rsa_diff.set_size(len);
+            if (x.lesser(y)) {
+                bnh.fnc_mod_mult_rsa_diff.copy(y);
+                bnh.fnc_mod_mult_rsa_diff.subtract(x);
+            } else {
+                bnh.fnc_mod_mult_rsa_diff.copy(x);
+                bnh.fnc_mod_mult_rsa_diff.subtract(y);
+            }
+
+            bnh.fnc_mod_mult_rsa_sum.mod_sqr_rsa(ctx);
+            bnh.fnc_mod_mult_rsa_diff.mod_sqr_rsa(ctx);
+            bnh.fnc_mod_mult_rsa_sum.mod_sub_reduced(bnh.fnc_mod_mult_rsa_diff, ctx.n);
+            bnh.fnc_mod_mult_rsa_diff.unlock();
+
+            bnh.fnc_mod_mult_rsa_sum.divide_by_2_mod(ctx.n);
+            bnh.fnc_mod_mult_rsa_sum.divide_by_2_mod(ctx.n);
+            this.copy(bnh.fnc_mod_mult_rsa_sum);
+            bnh.fnc_mod_mult_rsa_sum.unlock();
+        }
+
+        /**
+         * Squares this modulo the modulus of the RSA context using its engine.
+         * Asserts that this is lesser than the modulus and has the same size.
+         *
+         * @param ctx RSA context of the modulus
+         */
+        private void mod_sqr_rsa(RSAModMultContext ctx) {
+            short len = ctx.cipher.doFinal(value, (short) 0, size, value, (short) 0);
+            // some engines (e.g., the simulator) omit leading zeroes
+            if (len < size) {
+                Util.arrayCopyNonAtomic(value, (short) 0, value, (short) (size - len), len);
+                Util.arrayFillNonAtomic(value, (short) 0, (short) (size - len), (byte) 0);
+            }
+        }
+
+        /**
+         * Montgomery multiplication (CIOS). Stores {@code x * y * R^-1 mod n} into this,
+         * where {@code n} is the modulus of {@code ctx} and
+         * {@code R = 2^(}{@link #digit_len}{@code * n.length())}. Multiplication
+         * and reduction are interleaved digit by digit, so the number of operations
+         * depends only on the length of the modulus.
+         * <P>
+         * Asserts that {@code x} is not longer than the modulus and that {@code y}
+         * is lesser than the modulus. This can be the same object as {@code x} or {@code y}.
+         *
+         * @param x first value to multiply
+         * @param y second value to multiply
+         * @param ctx Montgomery context of the modulus
+         */
+        public void mont_mult(Bignat x, Bignat y, MontgomeryContext ctx) {
+            byte[] mod = ctx.n.value;
+            short len = ctx.n.size;
+
+            bnh.fnc_mont_mult_tmp.lock();
+            bnh.fnc_mont_mult_tmp.set_size((short) (len + 1));
+            bnh.fnc_mont_mult_tmp.zero();
+            byte[] t = bnh.fnc_mont_mult_tmp.value;
+
+            short x_digit, m, y_index, y_digit, akku1, akku2, carry1, carry2;
+            for (short i = (short) (x.size - 1); i >= (short) (x.size - len); i--) {
+                x_digit = i >= 0 ? (short) (x.value[i] & digit_mask) : 0;
+
+                // m is chosen so that t + x_digit * y + m * n is divisible by the base
+                m = (short) ((short) (t[len] & digit_mask) + (short) (x_digit * (short) (y.value[(short) (y.size - 1)] & digit_mask)));
+                m = (short) ((short) (m * ctx.n0_inv) & digit_mask);
+
+                // t = (t + x_digit * y + m * n) / base
+                carry1 = 0;
+                carry2 = 0;
+                y_index = (short) (y.size - 1);
+                for (short j = len; j > 0; j--, y_index--) {
+                    y_digit = y_index >= 0 ? (short) (y.value[y_index] & digit_mask) : 0;
+                    akku1 = (short) ((short) (t[j] & digit_mask) + (short) (x_digit * y_digit) + carry1);
+                    carry1 = (short) ((akku1 >> digit_len) & digit_mask);
+                    akku2 = (short) ((short) (akku1 & digit_mask) + (short) (m * (short) (mod[(short) (j - 1)] & digit_mask)) + carry2);
+                    carry2 = (short) ((akku2 >> digit_len) & digit_mask);
+                    if (j < len) {
+                        t[(short) (j + 1)] = (byte) (akku2 & digit_mask);
+                    }
+                }
+                akku1 = (short) ((short) (t[0] & digit_mask) + carry1);
+                akku2 = (short) ((short) (akku1 & digit_mask) + carry2);
+                t[1] = (byte) (akku2 & digit_mask);
+                t[0] = (byte) ((short) ((akku1 >> digit_len) & digit_mask) + (short) ((akku2 >> digit_len) & digit_mask));
+            }
 
+            // t < 2n
+            if (!bnh.fnc_mont_mult_tmp.lesser(ctx.n)) {
+                bnh.fnc_mont_mult_tmp.subtract(ctx.n);
+            }
+            this.copy(bnh.fnc_mont_mult_tmp);
+            bnh.fnc_mont_mult_tmp.unlock();
+        }
 
         /**
          * One digit left shift.
@@ -1597,6 +2207,163 @@ public class jcmathlib {
             value[(short) (size - 1)] = 0;
         }
 
+        /**
+         * Divides this by the highest power of two that divides it, i.e., removes
+         * all trailing zero bits. Zero is left unchanged.
+         *
+         * @return number of removed bits
+         */
+        public short shift_right_zero_bits() {
+            short i = (short) (size - 1);
+            while (i >= 0 && value[i] == 0) {
+                i--;
+            }
+            if (i < 0) {
+                return 0;
+            }
+
+            short bytes = (short) (size - 1 - i);
+            if (bytes > 0) {
+                Util.arrayCopyNonAtomic(value, (short) 0, value, bytes, (short) (i + 1));
+                Util.arrayFillNonAtomic(value, (short) 0, bytes, (byte) 0);
+            }
+
+            short bits = 0;
+            while ((value[(short) (size - 1)] & (short) (1 << bits)) == 0) {
+                bits++;
+            }
+            if (bits > 0) {
+                for (i = (short) (size - 1); i >= bytes; i--) {
+                    short low = (short) ((short) (value[i] & digit_mask) >> bits);
+                    short high = i > 0 ? (short) (value[(short) (i - 1)] << (short) (digit_len - bits)) : 0;
+                    value[i] = (byte) ((low | high) & digit_mask);
+                }
+            }
+
+            return (short) (bytes * digit_len + bits);
+        }
+
+        /**
+         * Multiplies this by {@code 2^bits}.
+         * <P>
+         * Asserts that the leading {@code bits} bits are zero.
+         *
+         * @param bits number of bits to shift
+         */
+        public void shift_left_bits(short bits) {
+            short bytes = (short) (bits / digit_len);
+            bits = (short) (bits % digit_len);
+            if (bytes > 0) {
+                Util.arrayCopyNonAtomic(value, bytes, value, (short) 0, (short) (size - bytes));
+                Util.arrayFillNonAtomic(value, (short) (size - bytes), bytes, (byte) 0);
+            }
+            if (bits > 0) {
+                short last = (short) (size - 1);
+                for (short i = 0; i < last; i++) {
+                    value[i] = (byte) ((value[i] << bits) | ((short) (value[(short) (i + 1)] & digit_mask) >> (short) (digit_len - bits)));
+                }
+                value[last] = (byte) (value[last] << bits);
+            }
+        }
+
+        /**
+         * Binary (Stein's) greatest common divisor. Stores {@code gcd(this, other)}
+         * into this. Uses only shifts and subtractions, no division.
+         *
+         * @param other second value
+         */
+        public void gcd(Bignat other) {
+            if (this.is_zero()) {
+                this.copy(other);
+                return;
+            }
+            if (other.is_zero()) {
+                return;
+            }
+
+            bnh.fnc_gcd_tmpOther.lock();
+            bnh.fnc_gcd_tmpOther.clone(other);
+
+            // gcd(2^k * a, 2^l * b) = 2^min(k, l) * gcd(a, b) for odd a, b
+            short shift = this.shift_right_zero_bits();
+            short other_shift = bnh.fnc_gcd_tmpOther.shift_right_zero_bits();
+            if (other_shift < shift) {
+                shift = other_shift;
+            }
+
+            // both values are odd, their difference is even
+            while (true) {
+                if (this.lesser(bnh.fnc_gcd_tmpOther)) {
+                    bnh.fnc_gcd_tmpOther.subtract(this);
+                    bnh.fnc_gcd_tmpOther.shift_right_zero_bits();
+                } else {
+                    this.subtract(bnh.fnc_gcd_tmpOther);
+                    if (this.is_zero()) {
+                        break;
+                    }
+                    this.shift_right_zero_bits();
+                }
+            }
+
+            this.copy(bnh.fnc_gcd_tmpOther);
+            this.shift_left_bits(shift);
+            bnh.fnc_gcd_tmpOther.unlock();
+        }
+
+        /**
+         * Decides whether this and {@code other} are coprime using the binary
+         * greatest common divisor, see {@link #gcd}. Finishes as soon as one
+         * of the values reaches one. Neither this nor {@code other} is modified.
+         *
+         * @param other second value
+         * @return true if {@code gcd(this, other) == 1}, false otherwise
+         */
+        public boolean is_coprime(Bignat other) {
+            if (!this.is_odd() && !other.is_odd()) {
+                return false;
+            }
+            if (this.is_zero()) {
+                return other.is_one();
+            }
+            if (other.is_zero()) {
+                return this.is_one();
+            }
+
+            bnh.fnc_is_coprime_tmpThis.lock();
+            bnh.fnc_is_coprime_tmpOther.lock();
+            bnh.fnc_is_coprime_tmpThis.clone(this);
+            bnh.fnc_is_coprime_tmpOther.clone(other);
+
+            // at most one of the values is even, powers of two do not change the result
+            bnh.fnc_is_coprime_tmpThis.shift_right_zero_bits();
+            bnh.fnc_is_coprime_tmpOther.shift_right_zero_bits();
+
+            boolean result;
+            while (true) {
+                if (bnh.fnc_is_coprime_tmpThis.is_one() || bnh.fnc_is_coprime_tmpOther.is_one()) {
+                    result = true;
+                    break;
+                }
+
+                if (bnh.fnc_is_coprime_tmpThis.lesser(bnh.fnc_is_coprime_tmpOther)) {
+                    bnh.fnc_is_coprime_tmpOther.subtract(bnh.fnc_is_coprime_tmpThis);
+                    bnh.fnc_is_coprime_tmpOther.shift_right_zero_bits();
+                } else {
+                    bnh.fnc_is_coprime_tmpThis.subtract(bnh.fnc_is_coprime_tmpOther);
+                    // equal values greater than one
+                    if (bnh.fnc_is_coprime_tmpThis.is_zero()) {
+                        result = false;
+                        break;
+                    }
+                    bnh.fnc_is_coprime_tmpThis.shift_right_zero_bits();
+                }
+            }
+
+            bnh.fnc_is_coprime_tmpThis.unlock();
+            bnh.fnc_is_coprime_tmpOther.unlock();
+            return result;
+        }
+
         /**
          * Optimized division by value two
          */
@@ -1614,6 +2381,39 @@ public class jcmathlib {
             }
         }
 
+        /**
+         * Division by two modulo odd {@code modulo}. Asserts that this is lesser
+         * than {@code modulo} and has the same size.
+         *
+         * @param modulo odd modulus
+         */
+        private void divide_by_2_mod(Bignat modulo) {
+            // make this even, this + modulo may overflow by one bit
+            boolean carry = false;
+            if (this.is_odd()) {
+                carry = this.add_carry(modulo);
+            }
+            this.divide_by_2();
+            if (carry) {
+                this.value[0] |= (byte) digit_first_bit_mask;
+            }
+        }
+
+        /**
+         * Subtraction modulo {@code modulo}. Asserts that both this and {@code other}
+         * are lesser than {@code modulo}.
+         *
+         * @param other value to subtract
+         * @param modulo modulus
+         */
+        private void mod_sub_reduced(Bignat other, Bignat modulo) {
+            if (this.lesser(other)) {
+                // this + modulo may overflow, but the subtraction below underflows back
+                this.add(modulo);
+            }
+            this.subtract(other);
+        }
+
         /**
          * Inefficient modular multiplication.
          *
@@ -1760,6 +2560,87 @@ public class jcmathlib {
             // NOTE: attempt made to utilize crypto co-processor in pow2Mod_RSATrick_worksOnlyAbout30pp, but doesn't work for all inputs
         }
 
+        /**
+         * Reduces this by the Barrett context if given, by {@code modulo} otherwise.
+         */
+        private void mod(Bignat modulo, BarrettContext ctx) {
+            if (ctx != null) {
+                this.mod(ctx);
+            } else {
+                this.mod(modulo);
+            }
+        }
+
+        /**
+         * Computes and stores modulo of this bignat using the Barrett reduction
+         * with the precomputed context, see {@link BarrettContext}. Needs two
+         * multiplications and at most two subtractions instead of a division.
+         * <P>
+         * Falls back to {@link #mod(Bignat)} if this is not lesser than
+         * {@code b^(2k)}, where {@code k} is the length of the modulus.
+         *
+         * @param ctx Barrett context of the modulus
+         */
+        public void mod(BarrettContext ctx) {
+            Bignat n = ctx.n;
+            short k = n.length();
+
+            if (this.size < k) {
+                // the leading digit of the modulus is nonzero
+                return;
+            }
+            if (this.size == k) {
+                if (!this.lesser(n)) {
+                    if (n.value[0] < 0) {
+                        // the highest bit of the modulus is set, thus x < b^k < 2 * n
+                        this.subtract(n);
+                    } else {
+                        this.remainder_divide(n, null);
+                    }
+                }
+                return;
+            }
+
+            short start = 0;
+            if (this.size > (short) (2 * k)) {
+                start = (short) (this.size - 2 * k);
+                for (short i = 0; i < start; i++) {
+                    if (this.value[i] != 0) {
+                        this.remainder_divide(n, null); // CTO
+                        return;
+                    }
+                }
+            }
+
+            // q1 = floor(x / b^(k-1))
+            short qLen = (short) (this.size - start - k + 1);
+            bnh.fnc_barrett_q.lock();
+            bnh.fnc_barrett_q.set_size(qLen);
+            Util.arrayCopyNonAtomic(this.value, start, bnh.fnc_barrett_q.value, (short) 0, qLen);
+
+            // q3 = floor(q1 * mu / b^(k+1)), q3 <= q1 as mu <= b^(k+1), thus it fits into qLen digits
+            bnh.fnc_barrett_tmp.lock();
+            bnh.fnc_barrett_tmp.set_size((short) (qLen + ctx.mu.size));
+            bnh.fnc_barrett_tmp.mult(bnh.fnc_barrett_q, ctx.mu);
+            Util.arrayCopyNonAtomic(bnh.fnc_barrett_tmp.value, (short) (ctx.mu.size - k - 1),
+                    bnh.fnc_barrett_q.value, (short) 0, qLen);
+
+            // r = (x - q3 * n) mod b^(k+1), the difference is lesser than 3 * n
+            bnh.fnc_barrett_tmp.set_size((short) (qLen + k));
+            bnh.fnc_barrett_tmp.mult(bnh.fnc_barrett_q, n);
+            bnh.fnc_barrett_q.unlock();
+
+            short rLen = (short) (k + 1);
+            short rOffset = (short) (this.size - rLen);
+            subtract(this.value, rOffset, rLen, bnh.fnc_barrett_tmp.value, (short) (bnh.fnc_barrett_tmp.size - rLen), rLen);
+            bnh.fnc_barrett_tmp.unlock();
+            Util.arrayFillNonAtomic(this.value, (short) 0, rOffset, (byte) 0);
+
+            while (!this.lesser(n)) {
+                this.subtract(n);
+            }
+        }
+
 
 
         /**
@@ -1777,6 +2658,76 @@ public class jcmathlib {
             bnh.fnc_mod_minus_2.unlock();
         }
 
+        /**
+         * Computes inversion of this bignat taken modulo odd {@code modulo} using
+         * the binary extended Euclidean algorithm. The result is stored into this.
+         * Unlike {@link #mod_inv}, the modulus does not have to be a prime, and
+         * only shifts, additions and subtractions are needed.
+         *
+         * @param modulo odd modulus
+         * @throws ISOException SW_BIGNAT_INVALIDMODULUS if the modulus is even
+         * @throws ISOException SW_BIGNAT_NOTINVERTIBLE if this and {@code modulo} are not coprime
+         */
+        public void mod_inv_binary(Bignat modulo) {
+            if (!modulo.is_odd()) {
+                ISOException.throwIt(ReturnCodes.SW_BIGNAT_INVALIDMODULUS);
+            }
+
+            bnh.fnc_mod_inv_binary_u.lock();
+            bnh.fnc_mod_inv_binary_v.lock();
+            bnh.fnc_mod_inv_binary_x1.lock();
+            bnh.fnc_mod_inv_binary_x2.lock();
+
+            bnh.fnc_mod_inv_binary_u.clone(this);
+            if (!bnh.fnc_mod_inv_binary_u.lesser(modulo)) {
+                bnh.fnc_mod_inv_binary_u.mod(modulo);
+            }
+            bnh.fnc_mod_inv_binary_v.clone(modulo);
+
+            // invariants: x1 * this = u and x2 * this = v (mod modulo)
+            bnh.fnc_mod_inv_binary_x1.set_size(modulo.length());
+            bnh.fnc_mod_inv_binary_x1.one();
+            bnh.fnc_mod_inv_binary_x2.set_size(modulo.length());
+            bnh.fnc_mod_inv_binary_x2.zero();
+
+            boolean invertible = !bnh.fnc_mod_inv_binary_u.is_zero();
+            while (invertible && !bnh.fnc_mod_inv_binary_u.is_one() && !bnh.fnc_mod_inv_binary_v.is_one()) {
+                for (short i = bnh.fnc_mod_inv_binary_u.shift_right_zero_bits(); i > 0; i--) {
+                    bnh.fnc_mod_inv_binary_x1.divide_by_2_mod(modulo);
+                }
+                for (short i = bnh.fnc_mod_inv_binary_v.shift_right_zero_bits(); i > 0; i--) {
+                    bnh.fnc_mod_inv_binary_x2.divide_by_2_mod(modulo);
+                }
+
+                if (!bnh.fnc_mod_inv_binary_u.lesser(bnh.fnc_mod_inv_binary_v)) {
+                    bnh.fnc_mod_inv_binary_u.subtract(bnh.fnc_mod_inv_binary_v);
+                    bnh.fnc_mod_inv_binary_x1.mod_sub_reduced(bnh.fnc_mod_inv_binary_x2, modulo);
+                    // u == v, gcd is greater than one
+                    invertible = !bnh.fnc_mod_inv_binary_u.is_zero();
+                } else {
+                    bnh.fnc_mod_inv_binary_v.subtract(bnh.fnc_mod_inv_binary_u);
+                    bnh.fnc_mod_inv_binary_x2.mod_sub_reduced(bnh.fnc_mod_inv_binary_x1, modulo);
+                }
+            }
+
+            if (invertible) {
+                if (bnh.fnc_mod_inv_binary_u.is_one()) {
+                    this.copy(bnh.fnc_mod_inv_binary_x1);
+                } else {
+                    this.copy(bnh.fnc_mod_inv_binary_x2);
+                }
+            }
+
+            bnh.fnc_mod_inv_binary_u.unlock();
+            bnh.fnc_mod_inv_binary_v.unlock();
+            bnh.fnc_mod_inv_binary_x1.unlock();
+            bnh.fnc_mod_inv_binary_x2.unlock();
+
+            if (!invertible) {
+                ISOException.throwIt(ReturnCodes.SW_BIGNAT_NOTINVERTIBLE);
+            }
+        }
+
         /**
          * Computes {@code res := this ** exponent mod modulo} and store results into this.
          * Uses RSA engine to quickly compute this^exponent % modulo
@@ -2015,12 +2966,24 @@ public class jcmathlib {
          * Is set automatically after successful allocation of required engines
          */
         public boolean FLAG_FAST_MULT_VIA_RSA = false;
+        /**
+         * If true, {@link Bignat#remainder_divide} uses {@link Bignat#remainder_divide_fixed},
+         * i.e., the number of iterations depends only on the lengths of the operands.
+         * Set by applets which need predictable duration of modular reductions.
+         */
+        public boolean FLAG_FIXED_ITERATION_DIVISION = false;
         /**
          * Threshold length in bits of an operand after which speedup with RSA
          * multiplication is used. Schoolbook multiplication is used for shorter
          * operands
          */
         public static final short FAST_MULT_VIA_RSA_TRESHOLD_LENGTH = (short) 16;
+        /**
+         * Threshold length in bytes of both operands after which the Karatsuba
+         * multiplication is used when the RSA engine is not available or too short.
+         * Schoolbook multiplication is used for shorter operands
+         */
+        public static final short KARATSUBA_MULT_THRESHOLD_LENGTH = (short) 32;
 
         byte[] tmp_array_short = null;
 
@@ -2044,13 +3007,32 @@ public class jcmathlib {
 
         Bignat fnc_mod_mult_tmpThis;
 
+        Bignat fnc_mont_mult_tmp;
+        Bignat fnc_mont_r2_tmp;
+
+        Bignat fnc_barrett_q;
+        Bignat fnc_barrett_tmp;
+        Bignat fnc_barrett_mu_tmp;
+
+        Bignat fnc_mod_mult_rsa_sum;
+        Bignat fnc_mod_mult_rsa_diff;
+        Bignat fnc_mod_mult_rsa_probe;
+
+        Bignat fnc_mod_inv_binary_u;
+        Bignat fnc_mod_inv_binary_v;
+        Bignat fnc_mod_inv_binary_x1;
+        Bignat fnc_mod_inv_binary_x2;
+
+        Bignat fnc_gcd_tmpOther;
+        Bignat fnc_is_coprime_tmpThis;
+        Bignat fnc_is_coprime_tmpOther;
+
         Bignat fnc_mult_mod_tmpThis;
         Bignat fnc_mult_mod_tmp_x;
         Bignat fnc_mult_mod_tmp_mod;
 
         Bignat fnc_divide_tmpThis;
 
-        Bignat fnc_exponentiation_i;
         Bignat fnc_exponentiation_tmp;
 
         Bignat fnc_sqrt_p_1;
@@ -2115,7 +3097,6 @@ public class jcmathlib {
             fnc_mult_mod_tmp_x = rm.helper_BN_C;
 
             fnc_exponentiation_tmp = rm.helper_BN_A;
-            fnc_exponentiation_i = rm.helper_BN_B;
 
             fnc_mod_minus_2 = rm.helper_BN_B;
 
@@ -2130,6 +3111,26 @@ public class jcmathlib {
 
             fnc_mod_mult_tmpThis = rm.helper_BN_E; // mod_mult is called from  fnc_sqrt => requires helper_BN_E not being locked in fnc_sqrt when mod_mult is called
 
+            fnc_mont_mult_tmp = rm.helper_BN_B;
+            fnc_mont_r2_tmp = rm.helper_BN_A;
+
+            fnc_barrett_q = rm.helper_BN_D;
+            fnc_barrett_tmp = rm.helper_BN_F; // the product of q1 and mu has 2 * k + 3 digits
+            fnc_barrett_mu_tmp = rm.helper_BN_A;
+
+            fnc_mod_mult_rsa_sum = rm.helper_BN_A;
+            fnc_mod_mult_rsa_diff = rm.helper_BN_B;
+            fnc_mod_mult_rsa_probe = rm.helper_BN_C;
+
+            fnc_mod_inv_binary_u = rm.helper_BN_A;
+            fnc_mod_inv_binary_v = rm.helper_BN_B;
+            fnc_mod_inv_binary_x1 = rm.helper_BN_C;
+            fnc_mod_inv_binary_x2 = rm.helper_BN_D;
+
+            fnc_gcd_tmpOther = rm.helper_BN_A;
+            fnc_is_coprime_tmpThis = rm.helper_BN_A;
+            fnc_is_coprime_tmpOther = rm.helper_BN_B;
+
             fnc_divide_tmpThis = rm.helper_BN_E; // divide is called from  fnc_sqrt => requires helper_BN_E not being locked  in fnc_sqrt when divide is called
 
             fnc_mod_exp_modBN = rm.helper_BN_F;  // mod_exp is called from  fnc_sqrt => requires helper_BN_F not being locked  in fnc_sqrt when mod_exp is called
@@ -2166,13 +3167,88 @@ public class jcmathlib {
             try { // Subsequent code may fail on some real (e.g., Infineon CJTOP80K) cards - catch exception
                 fnc_mult_cipher.init(fnc_mult_pubkey_pow2, Cipher.MODE_ENCRYPT);
                 // Try operation - if doesn't work, exception SW_CANTALLOCATE_BIGNAT is emitted
-                Util.arrayFillNonAtomic(fnc_mult_resultArray1, (short) 0, (short) fnc_mult_resultArray1.length, (byte) 6);
-                fnc_mult_cipher.doFinal(fnc_mult_resultArray1, (short) 0, (short) fnc_mult_resultArray1.length, fnc_mult_resultArray1, (short) 0);
-                FLAG_FAST_MULT_VIA_RSA = true;
+                // The result must be also correct, e.g., the simulator omits leading zeroes
+                FLAG_FAST_MULT_VIA_RSA = mult_cipher_self_test();
             } catch (Exception ignored) {
             } // discard exception
         }
 
+        /**
+         * Squares x = 2^(8k) - 1 of the largest length usable by {@link Bignat#mult_rsa_trick}
+         * and compares it to the known result x^2 = (2^(8k) - 2) * 2^(8k) + 1,
+         * i.e., FF..FFFE 00..0001.
+         *
+         * @return true if the multiplication engine computes correct squares
+         */
+        private boolean mult_cipher_self_test() {
+            short len = (short) fnc_mult_resultArray1.length;
+            short k = (short) (len / 2 - 1);
+            short zeroes = (short) (len - 2 * k);
+
+            Util.arrayFillNonAtomic(fnc_mult_resultArray1, (short) 0, (short) (len - k), (byte) 0);
+            Util.arrayFillNonAtomic(fnc_mult_resultArray1, (short) (len - k), k, (byte) 0xff);
+            if (fnc_mult_cipher.doFinal(fnc_mult_resultArray1, (short) 0, len, fnc_mult_resultArray1, (short) 0) != len) {
+                return false;
+            }
+
+            for (short i = 0; i < len; i++) {
+                byte expected;
+                if (i < zeroes) {
+                    expected = 0x00;
+                } else if (i < (short) (zeroes + k - 1)) {
+                    expected = (byte) 0xff;
+                } else if (i == (short) (zeroes + k - 1)) {
+                    expected = (byte) 0xfe;
+                } else if (i < (short) (len - 1)) {
+                    expected = 0x00;
+                } else {
+                    expected = 0x01;
+                }
+
+                if (fnc_mult_resultArray1[i] != expected) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Decides whether the product of {@code x} and {@code y} can be computed by
+         * {@link Bignat#mult_rsa_trick}, i.e., whether {@code (x + y)^2} is lesser than
+         * the modulus of the multiplication engine.
+         *
+         * @param x first value to multiply
+         * @param y second value to multiply
+         * @return true if the multiplication engine can be used
+         */
+        boolean fits_mult_rsa_engine(Bignat x, Bignat y) {
+            short max = x.length() > y.length() ? x.length() : y.length();
+            return max < (short) (fnc_mult_resultArray1.length / 2);
+        }
+
+        /**
+         * Decides whether the product of {@code x} and {@code y} can be computed by
+         * {@link Bignat#mult_karatsuba}, i.e., whether both factors are at least
+         * {@link #KARATSUBA_MULT_THRESHOLD_LENGTH} long, the shorter one is longer
+         * than a half of the longer one and the sums of halves and their product
+         * fit into the helper arrays.
+         *
+         * @param x first value to multiply
+         * @param y second value to multiply
+         * @return true if the Karatsuba multiplication can be used
+         */
+        boolean fits_mult_karatsuba(Bignat x, Bignat y) {
+            short min = x.length() < y.length() ? x.length() : y.length();
+            short half = (short) ((x.length() > y.length() ? x.length() : y.length()) / 2);
+            if (min < KARATSUBA_MULT_THRESHOLD_LENGTH || min <= half) {
+                return false;
+            }
+
+            // sums of halves have at most half + 2 digits
+            return (short) (3 * (half + 2)) <= (short) fnc_mult_resultArray1.length
+                    && (short) (half + 2) <= (short) fnc_mult_resultArray2.length;
+        }
+
         /**
          * Erase all values stored in helper objects
          */
@@ -3122,6 +4198,147 @@ public class jcmathlib {
     }
 
 
+    /**
+     * Precomputed values of an odd modulus used by the Montgomery multiplication,
+     * see {@link Bignat#mont_mult}. Computing them costs one division, thus the context
+     * pays off when the same modulus is used for more multiplications.
+     */
+    public static class MontgomeryContext {
+        private final Bignat_Helper bnh;
+
+        /**
+         * The modulus n
+         */
+        final Bignat n;
+        /**
+         * R^2 mod n, where R = 2^(digit_len * n.length())
+         */
+        final Bignat r2;
+        /**
+         * -n^-1 mod base
+         */
+        short n0_inv;
+
+        /**
+         * Allocates a context for moduli of at most {@code size} bytes.
+         *
+         * @param size maximum length of the modulus in bytes
+         * @param allocatorType type of allocator storage, see {@link Bignat}
+         * @param bignatHelper {@code Bignat_Helper} class with helper objects
+         */
+        public MontgomeryContext(short size, byte allocatorType, Bignat_Helper bignatHelper) {
+            bnh = bignatHelper;
+            n = new Bignat(size, allocatorType, bignatHelper);
+            r2 = new Bignat(size, allocatorType, bignatHelper);
+        }
+
+        /**
+         * Sets the modulus and precomputes the values dependent on it.
+         *
+         * @param modulus odd modulus, its length has to be the length of this context
+         * @throws ISOException SW_BIGNAT_INVALIDMODULUS if the modulus is even
+         */
+        public void set_modulus(Bignat modulus) {
+            if (!modulus.is_odd()) {
+                ISOException.throwIt(ReturnCodes.SW_BIGNAT_INVALIDMODULUS);
+            }
+            n.copy(modulus);
+            short len = n.length();
+
+            // n^-1 mod 2^8 by Newton iteration, n * n = 1 mod 2^3 holds for every odd n
+            short n0 = (short) (n.as_byte_array()[(short) (len - 1)] & Bignat.digit_mask);
+            short inv = n0;
+            for (short i = 0; i < 2; i++) {
+                inv = (short) (inv * (short) (2 - (short) (n0 * inv)));
+            }
+            n0_inv = (short) ((short) -inv & Bignat.digit_mask);
+
+            // R^2 mod n
+            bnh.fnc_mont_r2_tmp.lock();
+            bnh.fnc_mont_r2_tmp.set_size((short) (2 * len + 1));
+            bnh.fnc_mont_r2_tmp.zero();
+            bnh.fnc_mont_r2_tmp.as_byte_array()[0] = 0x01;
+            bnh.fnc_mont_r2_tmp.mod(n);
+            r2.copy(bnh.fnc_mont_r2_tmp);
+            bnh.fnc_mont_r2_tmp.unlock();
+        }
+
+        /**
+         * Zeroes out the modulus and the precomputed values.
+         */
+        public void erase() {
+            n.erase();
+            r2.erase();
+            n0_inv = 0;
+        }
+    }
+
+    /**
+     * Precomputed values of a modulus used by the Barrett reduction, see
+     * {@link Bignat#mod(BarrettContext)}. Computing them costs one division, thus the
+     * context pays off when the same modulus is used for more reductions.
+     */
+    public static class BarrettContext {
+        private final Bignat_Helper bnh;
+
+        /**
+         * The modulus n of k digits
+         */
+        final Bignat n;
+        /**
+         * floor(b^(2k) / n), where b is the base of a digit, it has k + 2 digits
+         * as it reaches b^(k+1) for n = b^(k-1)
+         */
+        final Bignat mu;
+
+        /**
+         * Allocates a context for moduli of at most {@code size} bytes.
+         *
+         * @param size maximum length of the modulus in bytes
+         * @param allocatorType type of allocator storage, see {@link Bignat}
+         * @param bignatHelper {@code Bignat_Helper} class with helper objects
+         */
+        public BarrettContext(short size, byte allocatorType, Bignat_Helper bignatHelper) {
+            bnh = bignatHelper;
+            n = new Bignat(size, allocatorType, bignatHelper);
+            mu = new Bignat((short) (size + 2), allocatorType, bignatHelper);
+        }
+
+        /**
+         * Sets the modulus and precomputes the values dependent on it.
+         *
+         * @param modulus modulus with a nonzero leading digit, its length has to be
+         *                the length of this context
+         * @throws ISOException SW_BIGNAT_INVALIDMODULUS if the leading digit is zero
+         */
+        public void set_modulus(Bignat modulus) {
+            if (modulus.as_byte_array()[0] == 0) {
+                ISOException.throwIt(ReturnCodes.SW_BIGNAT_INVALIDMODULUS);
+            }
+            n.copy(modulus);
+            short len = n.length();
+
+            // b^(2k) / n
+            bnh.fnc_barrett_mu_tmp.lock();
+            try {
+                bnh.fnc_barrett_mu_tmp.set_size((short) (2 * len + 1));
+                bnh.fnc_barrett_mu_tmp.zero();
+                bnh.fnc_barrett_mu_tmp.as_byte_array()[0] = 0x01;
+                bnh.fnc_barrett_mu_tmp.remainder_divide(n, mu);
+            } finally {
+                bnh.fnc_barrett_mu_tmp.unlock();
+            }
+        }
+
+        /**
+         * Zeroes out the modulus and the precomputed values.
+         */
+        public void erase() {
+            n.erase();
+            mu.erase();
+        }
+    }
+
     /**
      * The control point for unified allocation of arrays and objects with customable
      * specification of allocator type (RAM/EEPROM) for particular array. Allows for 
@@ -3823,6 +5040,118 @@ public class jcmathlib {
     }
 
 
+    /**
+     * RSA engine keyed to a modulus used for the modular multiplication by squaring,
+     * see {@link Bignat#mod_mult(Bignat, Bignat, RSAModMultContext)}. Not all engines
+     * support the public exponent 2, thus the engine is probed when the modulus is set.
+     */
+    public static class RSAModMultContext {
+        private final Bignat_Helper bnh;
+
+        /**
+         * The modulus n
+         */
+        final Bignat n;
+
+        RSAPublicKey key = null;
+        Cipher cipher = null;
+
+        private boolean available = false;
+
+        /**
+         * Allocates a context for moduli of {@code size} bytes.
+         *
+         * @param size length of the modulus in bytes
+         * @param allocatorType type of allocator storage, see {@link Bignat}
+         * @param bignatHelper {@code Bignat_Helper} class with helper objects
+         */
+        public RSAModMultContext(short size, byte allocatorType, Bignat_Helper bignatHelper) {
+            bnh = bignatHelper;
+            n = new Bignat(size, allocatorType, bignatHelper);
+
+            try { // engines of the given length may not be available
+                key = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, (short) (size * 8), false);
+                cipher = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
+            } catch (Exception ignored) {
+            } // discard exception
+        }
+
+        /**
+         * Sets the modulus and probes whether the engine computes correct squares by two
+         * known answers, one reduced by the modulus and one with leading zero digits, which
+         * some engines omit. The second one requires the leading digit of the modulus to be
+         * nonzero, otherwise the engine is not used.
+         *
+         * @param modulus odd modulus, its length has to be the length of this context
+         */
+        public void set_modulus(Bignat modulus) {
+            n.copy(modulus);
+            available = false;
+            if (cipher == null) {
+                return;
+            }
+
+            try { // some cards refuse the exponent 2 - catch exception
+                key.setModulus(n.as_byte_array(), (short) 0, n.length());
+                key.setExponent(Bignat_Helper.CONST_TWO, (short) 0, (short) Bignat_Helper.CONST_TWO.length);
+                cipher.init(key, Cipher.MODE_ENCRYPT);
+
+                // (n - 1) * (n - 1) = 1 mod n
+                bnh.fnc_mod_mult_rsa_probe.lock();
+                bnh.fnc_mod_mult_rsa_probe.set_size(n.length());
+                bnh.fnc_mod_mult_rsa_probe.copy(n);
+                bnh.fnc_mod_mult_rsa_probe.decrement_one();
+                bnh.fnc_mod_mult_rsa_probe.mod_mult(bnh.fnc_mod_mult_rsa_probe, bnh.fnc_mod_mult_rsa_probe, this);
+                available = bnh.fnc_mod_mult_rsa_probe.is_one();
+
+                // b^h * b^h = b^(2h) is lesser than the modulus, the leading digits are zero
+                if (available) {
+                    byte[] probe = bnh.fnc_mod_mult_rsa_probe.as_byte_array();
+                    short h = (short) ((short) (n.length() - 2) / 2);
+                    short one = (short) (n.length() - 1 - 2 * h);
+
+                    bnh.fnc_mod_mult_rsa_probe.zero();
+                    probe[(short) (n.length() - 1 - h)] = 0x01;
+                    bnh.fnc_mod_mult_rsa_probe.mod_mult(bnh.fnc_mod_mult_rsa_probe, bnh.fnc_mod_mult_rsa_probe, this);
+
+                    available = probe[one] == 0x01;
+                    probe[one] = 0x00;
+                    available = available && bnh.fnc_mod_mult_rsa_probe.is_zero();
+                }
+                bnh.fnc_mod_mult_rsa_probe.unlock();
+            } catch (Exception ignored) {
+                // release the helpers possibly left locked by the failed operation
+                if (bnh.fnc_mod_mult_rsa_sum.isLocked()) {
+                    bnh.fnc_mod_mult_rsa_sum.unlock();
+                }
+                if (bnh.fnc_mod_mult_rsa_diff.isLocked()) {
+                    bnh.fnc_mod_mult_rsa_diff.unlock();
+                }
+                if (bnh.fnc_mod_mult_rsa_probe.isLocked()) {
+                    bnh.fnc_mod_mult_rsa_probe.unlock();
+                }
+            } // discard exception
+        }
+
+        /**
+         * @return true if the modulus is set and the engine passed the probe
+         */
+        public boolean is_available() {
+            return available;
+        }
+
+        /**
+         * Zeroes out the modulus and clears the key.
+         */
+        public void erase() {
+            n.erase();
+            if (key != null) {
+                key.clearKey();
+            }
+            available = false;
+        }
+    }
+
     /**
      *
      * @author Petr Svenda
@@ -4005,6 +5334,8 @@ public class jcmathlib {
         public static final short SW_ECPOINT_INVALIDLENGTH          = (short) 0x700a;
         public static final short SW_ECPOINT_UNEXPECTED_KA_LEN      = (short) 0x700b;
         public static final short SW_ALLOCATOR_INVALIDOBJID         = (short) 0x700c;
+        public static final short SW_BIGNAT_INVALIDMODULUS          = (short) 0x700d;
+        public static final short SW_BIGNAT_NOTINVERTIBLE           = (short) 0x700e;
 
 
         // Specific codes to propagate exceptions cought 
@@ -0,0 +1,21 @@
+package cardTools;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Receives every command transmitted by the {@link CardManager}
+ * together with its response and duration.
+ */
+public interface ApduListener {
+
+    /**
+     * Called after the response has been received
+     *
+     * @param cmd          transmitted command
+     * @param response     received response
+     * @param elapsedNanos duration of the transmission in nanoseconds
+     */
+    void transmitted(CommandAPDU cmd, ResponseAPDU response, long elapsedNanos);
+
+}
@@ -0,0 +1,164 @@
+package cardTools;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Trace of the commands transmitted by the {@link CardManager}. The card manager
+ * without a trace does not format anything, thus it should be disabled in load tests.
+ */
+public abstract class ApduTrace implements AutoCloseable {
+
+    /**
+     * Level of detail
+     */
+    public enum Level {
+        /** nothing is traced */
+        OFF,
+        /** header, lengths, status word and duration of each command */
+        SUMMARY,
+        /** whole commands and responses in hex */
+        FULL,
+        /** whole commands and responses written to a binary file, see {@link #capture(File)} */
+        CAPTURE
+    }
+
+    /**
+     * Called before the command is transmitted
+     *
+     * @param cmd command
+     */
+    public abstract void command(CommandAPDU cmd);
+
+    /**
+     * Called after the response has been received
+     *
+     * @param cmd          transmitted command
+     * @param response     received response
+     * @param elapsedNanos duration of the transmission in nanoseconds
+     */
+    public abstract void response(CommandAPDU cmd, ResponseAPDU response, long elapsedNanos);
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Creates the trace of given level printing to the standard output
+     *
+     * @param level level of detail
+     * @param captureFile target file of the {@code CAPTURE} level
+     * @return trace, or null if the level is {@code OFF}
+     * @throws IOException if the capture file cannot be created
+     */
+    public static ApduTrace create(Level level, File captureFile) throws IOException {
+        switch (level) {
+            case OFF:
+                return null;
+            case SUMMARY:
+                return summary(System.out);
+            case FULL:
+                return full(System.out);
+            case CAPTURE:
+                return capture(captureFile);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown trace level %s.", level));
+        }
+    }
+
+    /**
+     * Prints the header, lengths, status word and duration of each command
+     *
+     * @param out output
+     * @return trace
+     */
+    public static ApduTrace summary(PrintStream out) {
+        return new ApduTrace() {
+            @Override
+            public void command(CommandAPDU cmd) {
+            }
+
+            @Override
+            public void response(CommandAPDU cmd, ResponseAPDU response, long elapsedNanos) {
+                out.printf("%02X %02X %02X %02X Nc=%d Ne=%d -> %04X Nr=%d [%d ms]%n",
+                        cmd.getCLA(), cmd.getINS(), cmd.getP1(), cmd.getP2(), cmd.getNc(), cmd.getNe(),
+                        response.getSW(), response.getNr(), elapsedNanos / 1000000);
+            }
+        };
+    }
+
+    /**
+     * Prints whole commands and responses in hex
+     *
+     * @param out output
+     * @return trace
+     */
+    public static ApduTrace full(PrintStream out) {
+        return new ApduTrace() {
+            @Override
+            public void command(CommandAPDU cmd) {
+                out.printf("--> %s%n", Util.toHex(cmd.getBytes()));
+            }
+
+            @Override
+            public void response(CommandAPDU cmd, ResponseAPDU response, long elapsedNanos) {
+                byte[] data = response.getData();
+                long time = elapsedNanos / 1000000;
+
+                if (data.length > 0)
+                    out.printf("<-- %s %02X (%d) [%d ms]%n", Util.toHex(data), response.getSW(), data.length, time);
+                else
+                    out.printf("<-- %02X [%d ms]%n", response.getSW(), time);
+            }
+        };
+    }
+
+    /**
+     * Writes whole commands and responses into a binary file. Each exchange is stored as
+     * the length and bytes of the command, the length and bytes of the response including
+     * the status word and the duration in nanoseconds. Lengths are 16-bit and the duration
+     * is 64-bit, all in big endian.
+     *
+     * @param file target file
+     * @return trace, which must be closed to flush the file
+     * @throws IOException if the file cannot be created
+     */
+    public static ApduTrace capture(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        return new ApduTrace() {
+            @Override
+            public void command(CommandAPDU cmd) {
+            }
+
+            @Override
+            public synchronized void response(CommandAPDU cmd, ResponseAPDU response, long elapsedNanos) {
+                try {
+                    write(cmd.getBytes());
+                    write(response.getBytes());
+                    out.writeLong(elapsedNanos);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            private void write(byte[] bytes) throws IOException {
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+
+            @Override
+            public synchronized void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+}
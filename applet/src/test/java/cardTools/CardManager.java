@@ -7,6 +7,13 @@ import javacard.framework.AID;
 import javax.smartcardio.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -18,6 +25,19 @@ public class CardManager {
     protected Long lastTransmitTime = (long) 0;
     protected CommandAPDU lastCommand = null;
     protected CardChannel channel = null;
+    protected ApduListener apduListener = null;
+    protected ApduTrace trace = null;
+
+    /**
+     * Single writer of the channel for the asynchronous commands, created on the first use.
+     */
+    private ExecutorService executor = null;
+    private final Object executorLock = new Object();
+
+    /**
+     * Time to finish the queued asynchronous commands before the card is disconnected.
+     */
+    private static final long DISCONNECT_TIMEOUT_S = 120;
 
     /**
      * Add LC=0 byte to the APDU.
@@ -64,26 +84,97 @@ public class CardManager {
         return bConnected;
     }
 
+    /**
+     * Transmits the queued asynchronous commands and disconnects from the card
+     * @param bReset reset the card
+     * @throws CardException if the queued commands have not finished in time
+     */
     public void Disconnect(boolean bReset) throws CardException {
-        channel.getCard().disconnect(bReset); // Disconnect from the card
+        ExecutorService pending;
+        synchronized (executorLock) {
+            pending = executor;
+            executor = null;
+        }
+
+        try {
+            // not waiting under the channel lock, the queued commands need it
+            if (pending != null) {
+                awaitQueued(pending);
+            }
+        } finally {
+            channel.getCard().disconnect(bReset); // Disconnect from the card
+        }
+    }
+
+    private static void awaitQueued(ExecutorService pending) throws CardException {
+        pending.shutdown();
+        try {
+            if (!pending.awaitTermination(DISCONNECT_TIMEOUT_S, TimeUnit.SECONDS)) {
+                pending.shutdownNow();
+                throw new CardException("The queued commands have not finished in time.");
+            }
+        } catch (InterruptedException e) {
+            pending.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new CardException("Interrupted while waiting for the queued commands.");
+        }
+    }
+
+    /**
+     * Card connect to the card in given terminal and applet select
+     * @param terminal terminal with the card
+     * @return true if connected and the applet has been selected
+     * @throws CardException exceptions from underlying connects
+     */
+    public boolean Connect(CardTerminal terminal) throws CardException {
+        Card card = terminal.connect("*");
+        channel = card.getBasicChannel();
+
+        ResponseAPDU response = transmit(new CommandAPDU(0x00, 0xa4, 0x04, 0x00, appletId));
+        if (response.getSW() != 0x9000) {
+            card.disconnect(false);
+            channel = null;
+            return false;
+        }
+
+        return true;
     }
 
     public CardChannel ConnectPhysicalCard(int targetReaderIndex) throws Exception {
         // JCOP Simulators
         System.out.print("Looking for physical cards... ");
-        return connectToCardByTerminalFactory(TerminalFactory.getDefault(), targetReaderIndex);
+        return connectToCardByTerminalFactory(getTerminalFactory(RunConfig.CARD_TYPE.PHYSICAL), targetReaderIndex);
     }
 
     public CardChannel ConnectJCOPSimulator(int targetReaderIndex) throws Exception {
         // JCOP Simulators
         System.out.print("Looking for JCOP simulators...");
-        int[] ports = new int[]{8050};
-        return connectToCardByTerminalFactory(TerminalFactory.getInstance("JcopEmulator", ports), targetReaderIndex);
+        return connectToCardByTerminalFactory(getTerminalFactory(RunConfig.CARD_TYPE.JCOPSIM), targetReaderIndex);
+    }
+
+    /**
+     * Terminal factory of given card type
+     * @param cardType physical card or JCOP simulator
+     * @return terminal factory
+     * @throws Exception if the factory is not available
+     */
+    public static TerminalFactory getTerminalFactory(RunConfig.CARD_TYPE cardType) throws Exception {
+        switch (cardType) {
+            case PHYSICAL:
+                return TerminalFactory.getDefault();
+            case JCOPSIM:
+                int[] ports = new int[]{8050};
+                return TerminalFactory.getInstance("JcopEmulator", ports);
+            default:
+                throw new IllegalArgumentException(String.format("No terminals of the %s card type.", cardType));
+        }
     }
 
     private CardChannel ConnectJCardSimLocalSimulator(Class appletClass, byte[] installData) throws Exception {
-        System.setProperty("com.licel.jcardsim.terminal.type", "2");
-        CAD cad = new CAD(System.getProperties());
+        // own properties instead of the global ones, every call creates an independent simulator
+        Properties properties = new Properties();
+        properties.setProperty("com.licel.jcardsim.terminal.type", "2");
+        CAD cad = new CAD(properties);
         JavaxSmartCardInterface simulator = (JavaxSmartCardInterface) cad.getCardInterface();
         if (installData == null) {
             installData = new byte[0];
@@ -145,7 +236,54 @@ public class CardManager {
         }
     }
 
-    public ResponseAPDU transmit(CommandAPDU cmd)
+    /**
+     * Queues the command and returns immediately. The queued commands are transmitted
+     * by a single thread in the order of the calls, so the caller can prepare next commands
+     * while the card is computing. A blocking transmit should not be mixed with the pending
+     * asynchronous commands, the order is not guaranteed.
+     * @param cmd command
+     * @return future response, completed exceptionally with CardException on a transmission error
+     */
+    public CompletableFuture<ResponseAPDU> transmitAsync(CommandAPDU cmd) {
+        return submitAsync(() -> transmit(cmd));
+    }
+
+    /**
+     * Queues the work, e.g. a sequence of commands, with the asynchronous commands. The work holds
+     * the channel while it runs, so no other command is transmitted in between.
+     * @param work work using the channel
+     * @param <T> result type
+     * @return future result, completed exceptionally with the exception thrown by the work
+     */
+    public <T> CompletableFuture<T> submitAsync(Callable<T> work) {
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                try {
+                    return work.call();
+                } catch (CompletionException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, getExecutor());
+    }
+
+    private ExecutorService getExecutor() {
+        synchronized (executorLock) {
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "card-writer");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+
+            return executor;
+        }
+    }
+
+    public synchronized ResponseAPDU transmit(CommandAPDU cmd)
             throws CardException {
 
         if (isFixLc()){
@@ -153,40 +291,29 @@ public class CardManager {
         }
 
         lastCommand = cmd;
-        if (bDebug) {
-            log(cmd);
+        if (trace != null) {
+            trace.command(cmd);
         }
 
-        long elapsed = -System.currentTimeMillis();
+        long elapsed = -System.nanoTime();
         ResponseAPDU response = channel.transmit(cmd);
-        elapsed += System.currentTimeMillis();
-        lastTransmitTime = elapsed;
+        elapsed += System.nanoTime();
+        lastTransmitTime = elapsed / 1000000;
 
-        if (bDebug) {
-            log(response, lastTransmitTime);
+        if (apduListener != null) {
+            apduListener.transmitted(cmd, response, elapsed);
         }
 
-        return response;
-    }
-
-    private void log(CommandAPDU cmd) {
-        System.out.printf("--> %s\n", Util.toHex(cmd.getBytes()),
-                cmd.getBytes().length);
-    }
-
-    private void log(ResponseAPDU response, long time) {
-        String swStr = String.format("%02X", response.getSW());
-        byte[] data = response.getData();
-        if (data.length > 0) {
-            System.out.printf("<-- %s %s (%d) [%d ms]\n", Util.toHex(data), swStr,
-                    data.length, time);
-        } else {
-            System.out.printf("<-- %s [%d ms]\n", swStr, time);
+        if (trace != null) {
+            trace.response(cmd, response, elapsed);
         }
+
+        return response;
     }
 
     private CommandAPDU fixApduLc(CommandAPDU cmd){
-        if (cmd.getNc() != 0){
+        // extended length Le cannot be expressed by the single LC byte
+        if (cmd.getNc() != 0 || cmd.getNe() > 256){
             return cmd;
         }
 
@@ -200,10 +327,6 @@ public class CardManager {
         return new CommandAPDU(apdu);
     }
 
-    private void log(ResponseAPDU response) {
-        log(response, 0);
-    }
-
     private Card waitForCard(CardTerminals terminals)
             throws CardException {
         while (true) {
@@ -236,8 +359,22 @@ public class CardManager {
         return channel;
     }
 
+    public ApduListener getApduListener() {
+        return apduListener;
+    }
+
+    public ApduTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Debug messages are the FULL trace printed to the standard output
+     * @param bDebug truth value
+     * @return this
+     */
     public CardManager setbDebug(boolean bDebug) {
         this.bDebug = bDebug;
+        this.trace = bDebug ? ApduTrace.full(System.out) : null;
         return this;
     }
 
@@ -261,6 +398,22 @@ public class CardManager {
         return this;
     }
 
+    public CardManager setApduListener(ApduListener apduListener) {
+        this.apduListener = apduListener;
+        return this;
+    }
+
+    /**
+     * Trace of the transmitted commands, null disables tracing
+     * @param trace trace
+     * @return this
+     */
+    public CardManager setTrace(ApduTrace trace) {
+        this.trace = trace;
+        this.bDebug = trace != null;
+        return this;
+    }
+
     public boolean isFixLc() {
         return fixLc;
     }
@@ -11,6 +11,7 @@ public class RunConfig {
     public Class appletToSimulate;
     boolean bReuploadApplet = false;
     byte[] installData = null;
+    int simulatorCount = 1;
     
     public enum CARD_TYPE {
         PHYSICAL, JCOPSIM, JCARDSIMLOCAL, JCARDSIMREMOTE
@@ -51,6 +52,10 @@ public class RunConfig {
         return testCardType;
     }
 
+    public int getSimulatorCount() {
+        return simulatorCount;
+    }
+
     public RunConfig setTargetReaderIndex(int targetReaderIndex) {
         this.targetReaderIndex = targetReaderIndex;
         return this;
@@ -80,4 +85,18 @@ public class RunConfig {
         this.testCardType = testCardType;
         return this;
     }
+
+    /**
+     * Number of independent simulators, each with its own applet instance,
+     * started by a pool of JCARDSIMLOCAL cards
+     * @param simulatorCount number of simulators
+     * @return this
+     */
+    public RunConfig setSimulatorCount(int simulatorCount) {
+        if (simulatorCount < 1)
+            throw new IllegalArgumentException("The number of simulators must be positive.");
+
+        this.simulatorCount = simulatorCount;
+        return this;
+    }
 }
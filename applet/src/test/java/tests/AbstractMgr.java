@@ -1,5 +1,7 @@
 package tests;
 
+import cardTools.ApduListener;
+import cardTools.ApduTrace;
 import cardTools.CardManager;
 import cardTools.RunConfig;
 import cardTools.Util;
@@ -10,6 +12,9 @@ import javax.smartcardio.ResponseAPDU;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * General instruction handler of the RSA applets
@@ -20,12 +25,12 @@ import java.util.List;
  */
 public abstract class AbstractMgr {
 
-    private static final String CLIENT_KEYS_CLIENT_FILE = "client_card.key";
-    private static final String CLIENT_KEYS_SERVER_FILE = "for_server.key";
-    private static final String PUBLIC_KEY_FILE = "public.key";
-    private static final String MESSAGE_FILE = "message.txt";
-    private static final String CLIENT_SIG_SHARE_FILE = "client.sig";
-    private static final String FINAL_SIG_FILE = "final.sig";
+    public static final String CLIENT_KEYS_CLIENT_FILE = "client_card.key";
+    public static final String CLIENT_KEYS_SERVER_FILE = "for_server.key";
+    public static final String PUBLIC_KEY_FILE = "public.key";
+    public static final String MESSAGE_FILE = "message.txt";
+    public static final String CLIENT_SIG_SHARE_FILE = "client.sig";
+    public static final String FINAL_SIG_FILE = "final.sig";
 
     public static final byte P2_PART_0 = 0x00;
     public static final byte P2_PART_1 = 0x01;
@@ -49,6 +54,8 @@ public abstract class AbstractMgr {
     private static final int SW_NO_ERROR = 0x9000;
 
     private final CardManager cardMgr;
+    private boolean extendedApdu = false;
+    private String workPath = TEST_PATH;
 
     /**
      * Creates connection to the {@code applet} applet
@@ -59,11 +66,64 @@ public abstract class AbstractMgr {
      * @throws Exception if card error occurs
      */
     public AbstractMgr(String appletID, Class applet, boolean realCard) throws Exception {
+        this(appletID, applet, realCard, 0);
+    }
+
+    /**
+     * Creates connection to the {@code applet} applet
+     *
+     * @param appletID applet ID
+     * @param applet applet class
+     * @param realCard decides whether to use real card or emulator
+     * @param readerIndex index of the reader with the real card
+     * @throws Exception if card error occurs
+     */
+    public AbstractMgr(String appletID, Class applet, boolean realCard, int readerIndex) throws Exception {
+        this(appletID, createRunConfig(applet, realCard, readerIndex));
+    }
+
+    /**
+     * Creates connection to the applet with given run configuration, e.g. with custom install data
+     *
+     * @param appletID applet ID
+     * @param runCfg run configuration
+     * @throws Exception if card error occurs
+     */
+    public AbstractMgr(String appletID, RunConfig runCfg) throws Exception {
         cardMgr = new CardManager(Util.hexStringToByteArray(appletID));
+
+        System.out.print("Connecting to card...");
+        if (!cardMgr.Connect(runCfg)) {
+            System.err.println(" Fail.");
+            return;
+        }
+
+        System.out.println(" Done.");
+    }
+
+    /**
+     * Uses given connection to the applet, e.g. a card of the {@link CardPool}
+     *
+     * @param cardMgr connected card manager with the applet selected
+     */
+    public AbstractMgr(CardManager cardMgr) {
+        this.cardMgr = cardMgr;
+    }
+
+    /**
+     * Creates run configuration of the real card or emulator with the {@code applet} applet
+     *
+     * @param applet applet class
+     * @param realCard decides whether to use real card or emulator
+     * @param readerIndex index of the reader with the real card
+     * @return run configuration
+     */
+    public static RunConfig createRunConfig(Class applet, boolean realCard, int readerIndex) {
         final RunConfig runCfg = RunConfig.getDefaultConfig();
 
         if (realCard)
-            runCfg.setTestCardType(RunConfig.CARD_TYPE.PHYSICAL);
+            runCfg.setTestCardType(RunConfig.CARD_TYPE.PHYSICAL)
+                    .setTargetReaderIndex(readerIndex);
         else {
             runCfg.setAppletToSimulate(applet)
                     .setTestCardType(RunConfig.CARD_TYPE.JCARDSIMLOCAL)
@@ -71,13 +131,7 @@ public abstract class AbstractMgr {
                     .setInstallData(new byte[8]);
         }
 
-        System.out.print("Connecting to card...");
-        if (!cardMgr.Connect(runCfg)) {
-            System.err.println(" Fail.");
-            return;
-        }
-
-        System.out.println(" Done.");
+        return runCfg;
     }
 
     /**
@@ -91,6 +145,16 @@ public abstract class AbstractMgr {
         return cardMgr.transmit(cmd);
     }
 
+    /**
+     * Queues given command, the commands are transmitted in the order of the calls
+     *
+     * @param cmd command
+     * @return future response
+     */
+    public CompletableFuture<ResponseAPDU> transmitAsync(CommandAPDU cmd) {
+        return cardMgr.transmitAsync(cmd);
+    }
+
     /**
      * Toggles debug messages
      *
@@ -100,6 +164,73 @@ public abstract class AbstractMgr {
         cardMgr.setbDebug(isDebug);
     }
 
+    /**
+     * Sets the trace of transmitted commands, replaces the debug messages
+     *
+     * @param trace trace or null to disable tracing
+     */
+    public void setTrace(ApduTrace trace) {
+        cardMgr.setTrace(trace);
+    }
+
+    /**
+     * Sets the listener notified about every transmitted command
+     *
+     * @param listener listener or null to remove it
+     */
+    public void setApduListener(ApduListener listener) {
+        cardMgr.setApduListener(listener);
+    }
+
+    /**
+     * Toggles the use of extended length APDUs, i.e. whether numbers are transferred
+     * in a single command or response instead of being divided into short APDUs.
+     * Both the card and the terminal must support them.
+     *
+     * @param extendedApdu truth value
+     */
+    public void setExtendedApdu(boolean extendedApdu) {
+        this.extendedApdu = extendedApdu;
+    }
+
+    /**
+     * Returns whether numbers are transferred in extended length APDUs
+     *
+     * @return truth value
+     */
+    public boolean isExtendedApdu() {
+        return extendedApdu;
+    }
+
+    /**
+     * Sets the folder with the key, message and signature files, e.g. to run
+     * several protocol instances in parallel. The {@code TEST_PATH} is used by default.
+     *
+     * @param workPath path to the folder ending with a separator
+     */
+    public void setWorkPath(String workPath) {
+        this.workPath = workPath;
+    }
+
+    /**
+     * Returns the folder with the key, message and signature files
+     *
+     * @return path to the folder ending with a separator
+     */
+    public String getWorkPath() {
+        return workPath;
+    }
+
+    /**
+     * Returns the path of given file in the work folder
+     *
+     * @param file file name
+     * @return path to the file
+     */
+    protected String getFilePath(String file) {
+        return workPath + file;
+    }
+
     /**
      * Transmits given commands and check their result
      *
@@ -113,6 +244,65 @@ public abstract class AbstractMgr {
         }
     }
 
+    /**
+     * Queues given commands and checks their result. The commands are transmitted as a single
+     * queued task, no other command is transmitted in between. The next command is transmitted
+     * only if the previous one has ended successfully.
+     *
+     * @param cmd commands
+     * @param operation name of the operation
+     * @return future completed exceptionally with {@link CardException} if any command fails
+     */
+    protected CompletableFuture<Void> transmitNumberAsync(List<CommandAPDU> cmd, String operation) {
+        return transmitNumberAsync(cmd, operation, CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Queues given commands after the previously queued operation. The commands are not
+     * transmitted if the previous operation fails.
+     *
+     * @param cmd commands
+     * @param operation name of the operation
+     * @param previous operation queued with this manager before
+     * @return future completed exceptionally with the first failure
+     */
+    protected CompletableFuture<Void> transmitNumberAsync(List<CommandAPDU> cmd, String operation,
+                                                          CompletableFuture<Void> previous) {
+        // the queue is processed in order, the previous operation has already completed
+        return cardMgr.submitAsync(() -> {
+            try {
+                previous.join();
+            } catch (CompletionException e) {
+                // report the original failure, not its wrapper
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+            transmitNumber(cmd, operation);
+            return null;
+        });
+    }
+
+    /**
+     * Waits for the result of an asynchronous operation
+     *
+     * @param future future result
+     * @param <T> result
+     * @return result
+     * @throws Exception the exception the operation failed with
+     */
+    protected static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+
+            throw e;
+        }
+    }
+
     /**
      * Checks the result of given response.
      *
@@ -127,6 +317,7 @@ public abstract class AbstractMgr {
 
     /**
      * Takes care of segmentation of given {@code num} byte array.
+     * If extended length APDUs are used, the array is not divided.
      *
      * @param num byte array
      * @param cla cla byte
@@ -134,10 +325,10 @@ public abstract class AbstractMgr {
      * @param p1 p1 byte
      * @return list of commands
      */
-    protected static List<CommandAPDU> setNumber(byte[] num, byte cla, byte ins, byte p1) {
+    protected List<CommandAPDU> setNumber(byte[] num, byte cla, byte ins, byte p1) {
         List<CommandAPDU> cmds = new ArrayList<>();
 
-        if (num.length <= MAX_APDU_LENGTH) {
+        if (num.length <= MAX_APDU_LENGTH || extendedApdu) {
             cmds.add(new CommandAPDU(cla, ins, p1, P2_PART_0 | P2_SINGLE, num));
             return cmds;
         }
@@ -0,0 +1,352 @@
+package tests;
+
+import cardTools.CardManager;
+import cardTools.RunConfig;
+import cardTools.Util;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of cards with the same applet dispatching jobs to idle cards. Every card has
+ * its own instruction handler and a worker thread taking the jobs from a shared queue,
+ * thus the throughput scales with the number of readers.
+ * <p>
+ * Every card has its own empty work folder with the key, message and signature files
+ * ({@link AbstractMgr#getWorkPath()}), so the jobs running in parallel do not overwrite
+ * the files of each other. A job may set another folder, it is kept for the next jobs of the card.
+ * <p>
+ * A card failing {@link #MAX_CONSECUTIVE_FAILURES} jobs in a row with a {@link CardException}
+ * is considered unhealthy and does not take any more jobs.
+ *
+ * @param <M> instruction handler of the applet
+ */
+public class CardPool<M extends AbstractMgr> implements AutoCloseable {
+
+    public static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+    private static final String SIMULATOR_NAME = "jcardsim";
+    private static final long POLL_TIMEOUT_MS = 100;
+    private static final String WORK_PATH = "build/tmp/cardPool/";
+
+    private final BlockingQueue<Job<M, ?>> queue = new LinkedBlockingQueue<>();
+    private final List<Worker> workers = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates the instruction handler using given connection
+     *
+     * @param <M> instruction handler of the applet
+     */
+    public interface MgrFactory<M extends AbstractMgr> {
+        M create(CardManager cardMgr) throws Exception;
+    }
+
+    /**
+     * Work done with a single card
+     *
+     * @param <M> instruction handler of the applet
+     * @param <T> result
+     */
+    public interface CardJob<M extends AbstractMgr, T> {
+        T run(M mgr) throws Exception;
+    }
+
+    /**
+     * Health of a single card at the time of the {@link #getHealth()} call
+     */
+    public static class CardHealth {
+        public final String reader;
+        public final int jobs;
+        public final int failures;
+        public final boolean healthy;
+
+        CardHealth(String reader, int jobs, int failures, boolean healthy) {
+            this.reader = reader;
+            this.jobs = jobs;
+            this.failures = failures;
+            this.healthy = healthy;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d jobs, %d failed, %s", reader, jobs, failures, healthy ? "healthy" : "unhealthy");
+        }
+    }
+
+    private static class Job<M extends AbstractMgr, T> {
+        final CardJob<M, T> work;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        T value;
+        Throwable failure;
+
+        Job(CardJob<M, T> work) {
+            this.work = work;
+        }
+
+        /**
+         * Runs the job, the result is published by the {@link #complete()}
+         *
+         * @param mgr instruction handler of the card
+         */
+        void run(M mgr) {
+            try {
+                value = work.run(mgr);
+            } catch (Exception | AssertionError e) {
+                failure = e;
+            }
+        }
+
+        void complete() {
+            if (failure == null)
+                result.complete(value);
+            else
+                result.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Thread serving a single card
+     */
+    private class Worker extends Thread {
+        final String reader;
+        final CardManager cardMgr;
+        final M mgr;
+
+        int jobs = 0;
+        int failures = 0;
+        int consecutiveFailures = 0;
+        volatile boolean healthy = true;
+
+        Worker(String reader, CardManager cardMgr, M mgr) {
+            super("card-pool-" + reader);
+            setDaemon(true);
+
+            this.reader = reader;
+            this.cardMgr = cardMgr;
+            this.mgr = mgr;
+        }
+
+        @Override
+        public void run() {
+            while (healthy && !(closed && queue.isEmpty())) {
+                Job<M, ?> job;
+                try {
+                    job = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                if (job != null)
+                    runJob(job);
+            }
+        }
+
+        private void runJob(Job<M, ?> job) {
+            job.run(mgr);
+
+            // the health is updated before the result is published
+            synchronized (this) {
+                jobs++;
+
+                if (job.failure instanceof CardException) {
+                    failures++;
+                    consecutiveFailures++;
+
+                    if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                        System.err.printf("Card in '%s' failed %d jobs in a row, removed from the pool.%n",
+                                reader, consecutiveFailures);
+                        healthy = false;
+                    }
+                } else {
+                    consecutiveFailures = 0;
+                }
+            }
+
+            job.complete();
+
+            if (!healthy)
+                failPendingJobs();
+        }
+
+        synchronized CardHealth getHealth() {
+            return new CardHealth(reader, jobs, failures, healthy);
+        }
+    }
+
+    /**
+     * Connects to all cards with the applet. Real cards are looked for in all readers
+     * of given card type, the emulator provides {@link RunConfig#getSimulatorCount()}
+     * independent simulators.
+     *
+     * @param appletID applet ID
+     * @param runCfg run configuration, the target reader index is ignored
+     * @param factory creates the instruction handler of each card
+     * @throws Exception if no card is connected or card error occurs
+     */
+    public CardPool(String appletID, RunConfig runCfg, MgrFactory<M> factory) throws Exception {
+        byte[] aid = Util.hexStringToByteArray(appletID);
+
+        if (runCfg.getTestCardType() == RunConfig.CARD_TYPE.JCARDSIMLOCAL) {
+            for (int i = 0; i < runCfg.getSimulatorCount(); i++) {
+                CardManager cardMgr = new CardManager(aid);
+                if (cardMgr.Connect(runCfg))
+                    addWorker(SIMULATOR_NAME + "-" + i, cardMgr, factory);
+            }
+        } else {
+            CardTerminals terminals = CardManager.getTerminalFactory(runCfg.getTestCardType()).terminals();
+
+            for (CardTerminal terminal : terminals.list(CardTerminals.State.CARD_PRESENT)) {
+                CardManager cardMgr = new CardManager(aid);
+
+                try {
+                    if (!cardMgr.Connect(terminal))
+                        continue;
+                } catch (CardException e) {
+                    System.err.printf("Cannot connect to the card in '%s': %s%n", terminal.getName(), e.getMessage());
+                    continue;
+                }
+
+                addWorker(terminal.getName(), cardMgr, factory);
+            }
+        }
+
+        if (workers.isEmpty())
+            throw new CardException("No card with the applet found.");
+
+        for (Worker w : workers)
+            w.start();
+    }
+
+    private void addWorker(String reader, CardManager cardMgr, MgrFactory<M> factory) throws Exception {
+        M mgr = factory.create(cardMgr);
+        mgr.setWorkPath(createWorkPath());
+
+        workers.add(new Worker(reader, cardMgr, mgr));
+    }
+
+    /**
+     * Creates an empty work folder of a single card
+     */
+    private static String createWorkPath() throws IOException {
+        Path parent = Paths.get(WORK_PATH);
+        Files.createDirectories(parent);
+
+        return Files.createTempDirectory(parent, "card-").toString() + File.separator;
+    }
+
+    /**
+     * Queues given job, it is run by the first idle card
+     *
+     * @param job work done with a single card
+     * @param <T> result
+     * @return future result of the job
+     * @throws IllegalStateException if the pool is closed or there is no healthy card
+     */
+    public <T> CompletableFuture<T> submit(CardJob<M, T> job) {
+        if (closed)
+            throw new IllegalStateException("The pool is closed.");
+
+        if (getHealthyCount() == 0)
+            throw new IllegalStateException("There is no healthy card in the pool.");
+
+        Job<M, T> j = new Job<>(job);
+        queue.add(j);
+
+        // the last card might have failed in the meantime
+        if (getHealthyCount() == 0)
+            failPendingJobs();
+
+        return j.result;
+    }
+
+    /**
+     * Returns the number of cards in the pool
+     *
+     * @return number of cards
+     */
+    public int size() {
+        return workers.size();
+    }
+
+    /**
+     * Returns the number of cards taking jobs
+     *
+     * @return number of healthy cards
+     */
+    public int getHealthyCount() {
+        int count = 0;
+        for (Worker w : workers) {
+            if (w.healthy)
+                count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the health of each card in the pool
+     *
+     * @return list of card health
+     */
+    public List<CardHealth> getHealth() {
+        List<CardHealth> res = new ArrayList<>();
+        for (Worker w : workers)
+            res.add(w.getHealth());
+
+        return Collections.unmodifiableList(res);
+    }
+
+    /**
+     * Toggles debug messages of all cards
+     *
+     * @param isDebug truth value
+     */
+    public void setDebug(boolean isDebug) {
+        for (Worker w : workers)
+            w.mgr.setDebug(isDebug);
+    }
+
+    /**
+     * Finishes the queued jobs and disconnects all cards
+     *
+     * @throws Exception if IO or card error occurs
+     */
+    @Override
+    public void close() throws Exception {
+        closed = true;
+
+        for (Worker w : workers)
+            w.join();
+
+        // jobs left after all cards have failed
+        failPendingJobs();
+
+        for (Worker w : workers)
+            w.cardMgr.Disconnect(false);
+    }
+
+    private void failPendingJobs() {
+        if (getHealthyCount() != 0)
+            return;
+
+        Job<M, ?> job;
+        while ((job = queue.poll()) != null)
+            job.result.completeExceptionally(new IllegalStateException("There is no healthy card in the pool."));
+    }
+
+}
@@ -0,0 +1,195 @@
+package tests;
+
+import cardTools.RunConfig;
+import cardTools.Util;
+
+import org.junit.Assert;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs the applet against the reference implementation repeatedly. The runs are
+ * dispatched by the {@link CardPool} to one simulator per core, or to all real cards,
+ * and each of them uses its own folder with the key, message and signature files.
+ */
+public class StressTest {
+
+    public static final String REFERENCE = "smpc_rsa";
+    public static final String REFERENCE_PATH = AbstractMgr.TEST_PATH + REFERENCE;
+
+    private static final String WORK_PATH = "build/tmp/stressTest/";
+
+    /**
+     * Result of a single run
+     */
+    public enum Result {
+        OK, GENERATE_FAILED, SIGN_FAILED
+    }
+
+    /**
+     * Single run of the protocol with given card
+     *
+     * @param <M> instruction handler of the applet
+     */
+    public interface Run<M extends AbstractMgr> {
+        Result run(M mgr, String workPath) throws Exception;
+    }
+
+    /**
+     * Runs the protocol {@code count} times and prints the results
+     *
+     * @param appletID applet ID
+     * @param applet applet class
+     * @param realCard decides whether to use real cards or emulators
+     * @param factory creates the instruction handler of each card
+     * @param count number of runs
+     * @param run single run of the protocol
+     * @param <M> instruction handler of the applet
+     * @throws Exception if IO or card error occurs or any run fails unexpectedly
+     */
+    public static <M extends AbstractMgr> void run(String appletID, Class applet, boolean realCard,
+                                                   CardPool.MgrFactory<M> factory, int count, Run<M> run)
+            throws Exception {
+        if (!new File(REFERENCE_PATH).isFile())
+            Assert.fail("This test requires the reference 'smpc_rsa' in the tests (../) folder.");
+
+        RunConfig runCfg = AbstractMgr.createRunConfig(applet, realCard, 0)
+                .setSimulatorCount(Runtime.getRuntime().availableProcessors());
+
+        int nokGenCount = 0;
+        int nokSignCount = 0;
+
+        try (CardPool<M> pool = new CardPool<>(appletID, runCfg, factory)) {
+            pool.setDebug(false);
+            System.out.printf("Running on %d cards.%n", pool.size());
+
+            List<CompletableFuture<Result>> results = new ArrayList<>();
+            for (int i = 1; i <= count; i++) {
+                String workPath = createWorkPath(i);
+                results.add(pool.submit(mgr -> {
+                    mgr.setWorkPath(workPath);
+                    return run.run(mgr, workPath);
+                }));
+            }
+
+            for (int i = 0; i < count; i++) {
+                Result res;
+                try {
+                    res = results.get(i).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof AssertionError)
+                        throw (AssertionError) e.getCause();
+
+                    throw e;
+                }
+
+                if (res == Result.GENERATE_FAILED)
+                    nokGenCount++;
+                else if (res == Result.SIGN_FAILED)
+                    nokSignCount++;
+
+                System.out.printf("TEST %d: %s%n", i + 1,
+                        res == Result.OK ? "\u001B[1;32mOK\u001B[0m" : "\u001B[1;31mNOK\u001B[0m");
+            }
+        }
+
+        System.out.printf("Result: Fail Generate/Fail Sign/All: %d/%d/%d (%.02f %% failed)%n",
+                nokGenCount, nokSignCount, count, (double) (nokGenCount + nokSignCount) * 100 / count
+        );
+    }
+
+    /**
+     * Creates the reference implementation command running in given folder
+     *
+     * @param workPath work folder of the run
+     * @param args arguments
+     * @return process builder
+     */
+    public static ProcessBuilder reference(String workPath, String... args) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add("./" + REFERENCE);
+        for (String arg : args)
+            cmd.add(arg);
+
+        return new ProcessBuilder(cmd).directory(new File(workPath));
+    }
+
+    /**
+     * Starts given reference command and prints its error output if it fails
+     *
+     * @param builder reference command
+     * @param confirm whether to confirm overwriting of existing key files
+     * @return whether the command succeeded
+     * @throws Exception if IO error occurs
+     */
+    public static boolean runReference(ProcessBuilder builder, boolean confirm) throws Exception {
+        Process proc = builder.start();
+
+        if (confirm) {
+            OutputStreamWriter writer = new OutputStreamWriter(new BufferedOutputStream(proc.getOutputStream()));
+            writer.write("y\n");
+            writer.flush();
+        }
+
+        if (proc.waitFor() == 0)
+            return true;
+
+        BufferedReader errReader = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
+        String line;
+        while ((line = errReader.readLine()) != null)
+            System.out.println(line);
+
+        return false;
+    }
+
+    /**
+     * Stores a random message shorter than the modulus
+     *
+     * @param workPath work folder of the run
+     * @throws Exception if IO error occurs
+     */
+    public static void generateMessage(String workPath) throws Exception {
+        try (OutputStream os = new FileOutputStream(workPath + AbstractMgr.MESSAGE_FILE)) {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
+
+            byte[] bytes = new byte[AbstractMgr.ARR_LENGTH];
+            new Random().nextBytes(bytes);
+            bytes[0] &= 0x0F; // to avoid messages longer than modulus
+
+            bw.write(Util.toHex(bytes));
+            bw.flush();
+        }
+    }
+
+    /**
+     * Creates the work folder of given run with a link to the reference implementation
+     */
+    private static String createWorkPath(int run) throws IOException {
+        Path dir = Paths.get(WORK_PATH, Integer.toString(run));
+        Files.createDirectories(dir);
+
+        Path reference = dir.resolve(REFERENCE);
+        if (!Files.exists(reference, LinkOption.NOFOLLOW_LINKS))
+            Files.createSymbolicLink(reference, Paths.get(REFERENCE_PATH).toAbsolutePath());
+
+        return dir.toString() + File.separator;
+    }
+
+}
@@ -0,0 +1,279 @@
+package tests.benchmark;
+
+import cardTools.ApduListener;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects commands transmitted to several cards and computes latency percentiles,
+ * command counts and traffic per instruction. Durations of whole protocol runs
+ * are collected as well.
+ */
+public class ApduStatistics {
+
+    private static final double[] PERCENTILES = new double[]{50, 95, 99};
+
+    private final List<Sample> samples = new ArrayList<>();
+    private final List<Long> runs = new ArrayList<>();
+    private int iteration = 0;
+    private int failures = 0;
+
+    /**
+     * A single transmitted command
+     */
+    private static class Sample {
+        final String card;
+        final int iteration;
+        final int cla;
+        final int ins;
+        final int p1;
+        final int p2;
+        final int sw;
+        final int sent;
+        final int received;
+        final long nanos;
+
+        Sample(String card, int iteration, int cla, int ins, int p1, int p2, int sw,
+               int sent, int received, long nanos) {
+            this.card = card;
+            this.iteration = iteration;
+            this.cla = cla;
+            this.ins = ins;
+            this.p1 = p1;
+            this.p2 = p2;
+            this.sw = sw;
+            this.sent = sent;
+            this.received = received;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Statistics of a single instruction of the given card
+     */
+    public static class Summary {
+        public final String card;
+        public final int ins;
+        public final int count;
+        public final long sent;
+        public final long received;
+        public final long mean;
+        public final long[] percentiles;
+        public final long max;
+
+        Summary(String card, int ins, List<Sample> samples) {
+            this.card = card;
+            this.ins = ins;
+            this.count = samples.size();
+
+            long sentSum = 0;
+            long receivedSum = 0;
+            long[] nanos = new long[count];
+
+            for (int i = 0; i < count; i++) {
+                Sample s = samples.get(i);
+                sentSum += s.sent;
+                receivedSum += s.received;
+                nanos[i] = s.nanos;
+            }
+
+            this.sent = sentSum;
+            this.received = receivedSum;
+            this.mean = mean(nanos);
+            this.percentiles = percentiles(nanos);
+            this.max = nanos[count - 1];
+        }
+    }
+
+    /**
+     * Returns a listener recording the commands transmitted to the given card
+     *
+     * @param card name of the card
+     * @return listener
+     */
+    public ApduListener listener(String card) {
+        return (cmd, response, elapsedNanos) -> samples.add(new Sample(
+                card, iteration, cmd.getCLA(), cmd.getINS(), cmd.getP1(), cmd.getP2(), response.getSW(),
+                cmd.getBytes().length, response.getBytes().length, elapsedNanos
+        ));
+    }
+
+    /**
+     * Sets the number of the protocol run recorded samples belong to
+     *
+     * @param iteration number of the run
+     */
+    public void setIteration(int iteration) {
+        this.iteration = iteration;
+    }
+
+    /**
+     * Records duration of the whole protocol run
+     *
+     * @param nanos    duration in nanoseconds
+     * @param verified whether the final signature has been verified
+     */
+    public void recordRun(long nanos, boolean verified) {
+        runs.add(nanos);
+        if (!verified)
+            failures++;
+    }
+
+    /**
+     * Computes statistics of each instruction ordered by the card and instruction code
+     *
+     * @return list of summaries
+     */
+    public List<Summary> summarize() {
+        Map<String, List<Sample>> groups = new TreeMap<>();
+        for (Sample s : samples)
+            groups.computeIfAbsent(String.format("%s %02X", s.card, s.ins), k -> new ArrayList<>()).add(s);
+
+        List<Summary> summaries = new ArrayList<>();
+        for (List<Sample> group : groups.values())
+            summaries.add(new Summary(group.get(0).card, group.get(0).ins, group));
+
+        return summaries;
+    }
+
+    /**
+     * Prints the statistics in a human readable table
+     */
+    public void print() {
+        System.out.printf("%-8s %-4s %7s %10s %10s %9s %9s %9s %9s%n",
+                "card", "ins", "count", "sent [B]", "recv [B]", "mean [ms]", "p50 [ms]", "p95 [ms]", "p99 [ms]");
+
+        for (Summary s : summarize()) {
+            System.out.printf("%-8s %02X   %7d %10d %10d %9.2f %9.2f %9.2f %9.2f%n",
+                    s.card, s.ins, s.count, s.sent, s.received, millis(s.mean),
+                    millis(s.percentiles[0]), millis(s.percentiles[1]), millis(s.percentiles[2]));
+        }
+
+        if (runs.isEmpty())
+            return;
+
+        long[] nanos = runNanos();
+        long[] p = percentiles(nanos);
+        System.out.printf("%nprotocol runs: %d, failed: %d, mean: %.2f ms, p50: %.2f ms, p95: %.2f ms, p99: %.2f ms%n",
+                runs.size(), failures, millis(mean(nanos)), millis(p[0]), millis(p[1]), millis(p[2]));
+    }
+
+    /**
+     * Writes every transmitted command into a CSV file, e.g. to plot latency histograms
+     *
+     * @param file target file
+     * @throws FileNotFoundException if the file cannot be created
+     */
+    public void writeSamplesCsv(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("card,iteration,cla,ins,p1,p2,sw,sent_bytes,received_bytes,nanos");
+
+            for (Sample s : samples) {
+                out.printf("%s,%d,%02X,%02X,%02X,%02X,%04X,%d,%d,%d%n", s.card, s.iteration,
+                        s.cla, s.ins, s.p1, s.p2, s.sw, s.sent, s.received, s.nanos);
+            }
+        }
+    }
+
+    /**
+     * Writes the statistics of each instruction into a CSV file
+     *
+     * @param file target file
+     * @throws FileNotFoundException if the file cannot be created
+     */
+    public void writeSummaryCsv(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("card,ins,count,sent_bytes,received_bytes,mean_ms,p50_ms,p95_ms,p99_ms,max_ms");
+
+            for (Summary s : summarize()) {
+                out.printf("%s,%02X,%d,%d,%d,%s,%s,%s,%s,%s%n", s.card, s.ins, s.count, s.sent, s.received,
+                        format(s.mean), format(s.percentiles[0]), format(s.percentiles[1]),
+                        format(s.percentiles[2]), format(s.max));
+            }
+        }
+    }
+
+    /**
+     * Writes the statistics of each instruction and of the whole protocol runs into a JSON file
+     *
+     * @param file target file
+     * @throws FileNotFoundException if the file cannot be created
+     */
+    public void writeJson(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("{");
+
+            if (!runs.isEmpty()) {
+                long[] nanos = runNanos();
+                long[] p = percentiles(nanos);
+                out.printf("  \"runs\": {\"count\": %d, \"failed\": %d, \"mean_ms\": %s, " +
+                                "\"p50_ms\": %s, \"p95_ms\": %s, \"p99_ms\": %s, \"max_ms\": %s},%n",
+                        runs.size(), failures, format(mean(nanos)), format(p[0]), format(p[1]), format(p[2]),
+                        format(nanos[nanos.length - 1]));
+            }
+
+            out.println("  \"instructions\": [");
+
+            List<Summary> summaries = summarize();
+            for (int i = 0; i < summaries.size(); i++) {
+                Summary s = summaries.get(i);
+                out.printf("    {\"card\": \"%s\", \"ins\": \"%02X\", \"count\": %d, \"sent_bytes\": %d, " +
+                                "\"received_bytes\": %d, \"mean_ms\": %s, \"p50_ms\": %s, \"p95_ms\": %s, " +
+                                "\"p99_ms\": %s, \"max_ms\": %s}%s%n",
+                        s.card, s.ins, s.count, s.sent, s.received, format(s.mean), format(s.percentiles[0]),
+                        format(s.percentiles[1]), format(s.percentiles[2]), format(s.max),
+                        i + 1 < summaries.size() ? "," : "");
+            }
+
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    private long[] runNanos() {
+        long[] nanos = new long[runs.size()];
+        for (int i = 0; i < nanos.length; i++)
+            nanos[i] = runs.get(i);
+
+        return nanos;
+    }
+
+    /**
+     * Sorts the given array and computes the nearest-rank percentiles.
+     */
+    private static long[] percentiles(long[] nanos) {
+        Arrays.sort(nanos);
+
+        long[] res = new long[PERCENTILES.length];
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            int rank = (int) Math.ceil(PERCENTILES[i] / 100 * nanos.length);
+            res[i] = nanos[Math.max(rank, 1) - 1];
+        }
+
+        return res;
+    }
+
+    private static long mean(long[] nanos) {
+        long sum = 0;
+        for (long n : nanos)
+            sum += n;
+
+        return sum / nanos.length;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static String format(long nanos) {
+        return String.format(java.util.Locale.ROOT, "%.3f", millis(nanos));
+    }
+
+}
@@ -0,0 +1,320 @@
+package tests.benchmark;
+
+import cardTools.ApduTrace;
+import cardTools.Util;
+
+import tests.AbstractMgr;
+import tests.client_full.ClientFullMgr;
+import tests.client_sign.ClientSignMgr;
+import tests.server.ServerMgr;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Runs the whole protocol, i.e. key generation, client signature share, final signature
+ * and its verification, repeatedly and measures latency of each instruction.
+ * <p>
+ * Usage: {@code ProtocolBenchmark [-n iterations] [-c full|sign] [-crt] [-e] [-r client server] [-t level]
+ * [-o directory]}
+ * <ul>
+ * <li>{@code -n} number of protocol runs, 20 by default</li>
+ * <li>{@code -c} the {@code RSAClient} (default) or {@code RSAClientSign} applet with keys generated
+ * by the host</li>
+ * <li>{@code -crt} client keys in the CRT form</li>
+ * <li>{@code -e} extended length APDUs</li>
+ * <li>{@code -r} real cards in the readers with given indices instead of the simulator</li>
+ * <li>{@code -t} trace of the commands, i.e. {@code off} (default), {@code summary}, {@code full}
+ * or {@code capture} into the {@code client-trace.bin} and {@code server-trace.bin} files</li>
+ * <li>{@code -o} output directory, {@code build/reports/protocol-benchmark} by default</li>
+ * </ul>
+ * The statistics of each instruction are stored in the {@code summary.csv} and {@code summary.json}
+ * files, every transmitted command in the {@code samples.csv} file.
+ */
+public class ProtocolBenchmark {
+
+    private static final int SW_NO_ERROR = 0x9000;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+
+    private static final int MAX_KEYGEN_ATTEMPTS = 5;
+    private static final BigInteger E = BigInteger.valueOf(0x10001);
+
+    private int iterations = 20;
+    private boolean signClient = false;
+    private boolean crt = false;
+    private boolean extendedApdu = false;
+    private boolean realCard = false;
+    private int clientReader = 0;
+    private int serverReader = 1;
+    private ApduTrace.Level traceLevel = ApduTrace.Level.OFF;
+    private File outputDir = new File("build/reports/protocol-benchmark");
+
+    private final ApduStatistics statistics = new ApduStatistics();
+    private final Random rnd = new SecureRandom();
+
+    private int keygenRetries = 0;
+
+    private ClientFullMgr clientFull;
+    private ClientSignMgr clientSign;
+    private ServerMgr server;
+
+    public static void main(String[] args) throws Exception {
+        ProtocolBenchmark benchmark = new ProtocolBenchmark();
+        benchmark.parseArgs(args);
+        benchmark.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-n":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-c":
+                    String client = args[++i];
+                    if (!client.equals("full") && !client.equals("sign"))
+                        throw new IllegalArgumentException(String.format("Unknown client applet '%s'.", client));
+
+                    signClient = client.equals("sign");
+                    break;
+                case "-crt":
+                    crt = true;
+                    break;
+                case "-e":
+                    extendedApdu = true;
+                    break;
+                case "-r":
+                    realCard = true;
+                    clientReader = Integer.parseInt(args[++i]);
+                    serverReader = Integer.parseInt(args[++i]);
+                    break;
+                case "-t":
+                    String level = args[++i];
+                    try {
+                        traceLevel = ApduTrace.Level.valueOf(level.toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException(String.format("Unknown trace level '%s'.", level));
+                    }
+                    break;
+                case "-o":
+                    outputDir = new File(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown option '%s'.", args[i]));
+            }
+        }
+
+        if (iterations < 1)
+            throw new IllegalArgumentException("The number of iterations must be positive.");
+    }
+
+    private void run() throws Exception {
+        AbstractMgr client;
+        if (signClient)
+            client = clientSign = new ClientSignMgr(realCard, clientReader);
+        else
+            client = clientFull = new ClientFullMgr(realCard, clientReader);
+
+        server = new ServerMgr(realCard, serverReader);
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs())
+            throw new IOException(String.format("Cannot create '%s' directory.", outputDir));
+
+        ApduTrace clientTrace = ApduTrace.create(traceLevel, new File(outputDir, "client-trace.bin"));
+        ApduTrace serverTrace = ApduTrace.create(traceLevel, new File(outputDir, "server-trace.bin"));
+
+        for (AbstractMgr mgr : new AbstractMgr[]{client, server}) {
+            mgr.setDebug(false);
+            mgr.setExtendedApdu(extendedApdu);
+        }
+
+        client.setTrace(clientTrace);
+        server.setTrace(serverTrace);
+
+        client.setApduListener(statistics.listener("client"));
+        server.setApduListener(statistics.listener("server"));
+
+        for (int i = 1; i <= iterations; i++) {
+            statistics.setIteration(i);
+
+            long start = System.nanoTime();
+            boolean verified = runProtocol() && verifySignature();
+            statistics.recordRun(System.nanoTime() - start, verified);
+
+            System.out.printf("RUN %d: %s%n", i, verified ? "OK" : "NOK");
+        }
+
+        System.out.printf("%nclient: %s%s, %s APDUs, %s%n", signClient ? "RSAClientSign" : "RSAClient",
+                crt ? " (CRT)" : "", extendedApdu ? "extended" : "short", realCard ? "real cards" : "simulator");
+        System.out.printf("server key generation retries: %d%n%n", keygenRetries);
+        statistics.print();
+
+        for (ApduTrace trace : new ApduTrace[]{clientTrace, serverTrace}) {
+            if (trace != null)
+                trace.close();
+        }
+
+        statistics.writeSummaryCsv(new File(outputDir, "summary.csv"));
+        statistics.writeSamplesCsv(new File(outputDir, "samples.csv"));
+        statistics.writeJson(new File(outputDir, "summary.json"));
+        System.out.printf("%nResults stored in '%s'.%n", outputDir);
+    }
+
+    /**
+     * Runs a single instance of the protocol
+     *
+     * @return whether the final signature was computed
+     * @throws Exception if IO or card error occurs
+     */
+    private boolean runProtocol() throws Exception {
+        generateMessage();
+
+        if (signClient) {
+            clientSign.transmit(new CommandAPDU(
+                    ClientSignMgr.CLA_RSA_SMPC_CLIENT_SIGN, ClientSignMgr.INS_RESET, AbstractMgr.NONE, AbstractMgr.NONE
+            ));
+            generateClientKeys();
+            clientSign.setKeys();
+            clientSign.signMessage();
+        } else {
+            clientFull.transmit(new CommandAPDU(
+                    ClientFullMgr.CLA_RSA_SMPC_CLIENT, ClientFullMgr.INS_RESET, AbstractMgr.NONE, AbstractMgr.NONE
+            ));
+            clientFull.generateKeys(crt);
+            clientFull.getKeys();
+            clientFull.signMessage();
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            server.transmit(new CommandAPDU(
+                    ServerMgr.CLA_RSA_SMPC_SERVER, ServerMgr.INS_RESET, AbstractMgr.NONE, AbstractMgr.NONE
+            ));
+            server.generateKeys();
+            server.setClientKeys();
+
+            // the server modulus may be shorter than required, the keys must be generated again
+            int sw = server.getPublicModulus().get(0).getSW();
+            if (sw == SW_NO_ERROR)
+                break;
+
+            if (sw != SW_WRONG_LENGTH || attempt == MAX_KEYGEN_ATTEMPTS) {
+                System.err.printf("Server keygen failed with SW: %04X%n", sw);
+                return false;
+            }
+
+            keygenRetries++;
+        }
+
+        ResponseAPDU res = server.signMessage();
+        if (res.getSW() != SW_NO_ERROR) {
+            System.err.printf("Final signature failed with SW: %04X%n", res.getSW());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Generates the client keys on the host in the same way as the reference
+     * implementation and stores both the client and the server share
+     *
+     * @throws Exception if IO error occurs
+     */
+    private void generateClientKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(AbstractMgr.ARR_LENGTH * 8);
+        RSAPrivateCrtKey key = (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+
+        BigInteger d = key.getPrivateExponent();
+        BigInteger n = key.getModulus();
+        BigInteger p = key.getPrimeP();
+        BigInteger q = key.getPrimeQ();
+
+        BigInteger d1Client;
+        do {
+            d1Client = new BigInteger(d.bitLength(), rnd);
+        } while (d1Client.compareTo(d) >= 0);
+
+        try (OutputStream os = new FileOutputStream(AbstractMgr.CLIENT_KEYS_CLIENT_FILE_PATH)) {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
+
+            if (crt) {
+                bw.write(String.format("%s%n%s%n%s%n%s%n%s%n", toHex(p), toHex(q),
+                        toHex(d1Client.mod(p.subtract(BigInteger.ONE))),
+                        toHex(d1Client.mod(q.subtract(BigInteger.ONE))),
+                        toHex(key.getCrtCoefficient())
+                ));
+            } else {
+                bw.write(String.format("%s%n%s%n", toHex(d1Client), toHex(n)));
+            }
+
+            bw.flush();
+        }
+
+        try (OutputStream os = new FileOutputStream(AbstractMgr.CLIENT_KEYS_SERVER_FILE_PATH)) {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
+            bw.write(String.format("%s%n%s%n", toHex(d.subtract(d1Client)), toHex(n)));
+            bw.flush();
+        }
+    }
+
+    private void generateMessage() throws Exception {
+        try (OutputStream os = new FileOutputStream(AbstractMgr.MESSAGE_FILE_PATH)) {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
+
+            byte[] bytes = new byte[AbstractMgr.ARR_LENGTH];
+            rnd.nextBytes(bytes);
+            bytes[0] &= 0x0F; // to avoid messages longer than modulus
+
+            bw.write(Util.toHex(bytes));
+            bw.flush();
+        }
+    }
+
+    /**
+     * Verifies the final signature with the public key returned by the server
+     *
+     * @return truth value
+     * @throws Exception if IO error occurs
+     */
+    private boolean verifySignature() throws Exception {
+        BigInteger modulus;
+        try (BufferedReader reader = new BufferedReader(new FileReader(AbstractMgr.PUBLIC_KEY_FILE_PATH))) {
+            reader.readLine(); // public exponent is always 0x10001
+            modulus = new BigInteger(1, Util.hexStringToByteArray(reader.readLine()));
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(AbstractMgr.FINAL_SIG_FILE_PATH))) {
+            BigInteger message = new BigInteger(1, Util.hexStringToByteArray(reader.readLine()));
+            BigInteger signature = new BigInteger(1, Util.hexStringToByteArray(reader.readLine()));
+
+            return signature.modPow(E, modulus).equals(message);
+        }
+    }
+
+    private static String toHex(BigInteger num) {
+        byte[] bytes = num.toByteArray();
+        if (bytes[0] == 0x00 && bytes.length > 1)
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+
+        return Util.toHex(bytes);
+    }
+
+}
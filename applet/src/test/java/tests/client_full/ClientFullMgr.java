@@ -2,8 +2,10 @@ package tests.client_full;
 
 import smpc_rsa.RSAClient;
 
+import cardTools.CardManager;
 import cardTools.Util;
 import tests.AbstractMgr;
+import tests.CardPool;
 
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
@@ -36,12 +38,19 @@ public class ClientFullMgr extends AbstractMgr {
     public static final byte INS_SET_MESSAGE = 0x14;
     public static final byte INS_SIGNATURE = 0x16;
     public static final byte INS_RESET = 0x18;
+    public static final byte INS_GENERATE_SPARE_KEYS = 0x1A;
+    public static final byte INS_ROTATE_KEYS = 0x1C;
+
+    public static final byte P1_GENERATE_STANDARD = 0x00;
+    public static final byte P1_GENERATE_CRT = 0x01;
 
     public static final byte P1_GET_D1_SERVER = 0x00;
     public static final byte P1_GET_N = 0x01;
 
     public static final String APPLET_AID = "0102030405060708090103";
 
+    private static final int SW_COMMAND_NOT_ALLOWED = 0x6986;
+
     /**
      * Creates connection to the {@link RSAClient} applet
      *
@@ -49,7 +58,27 @@ public class ClientFullMgr extends AbstractMgr {
      * @throws Exception if card error occurs
      */
     public ClientFullMgr(boolean realCard) throws Exception {
-       super(APPLET_AID, RSAClient.class, realCard);
+        this(realCard, 0);
+    }
+
+    /**
+     * Creates connection to the {@link RSAClient} applet
+     *
+     * @param realCard decides whether to use real card or emulator
+     * @param readerIndex index of the reader with the real card
+     * @throws Exception if card error occurs
+     */
+    public ClientFullMgr(boolean realCard, int readerIndex) throws Exception {
+        super(APPLET_AID, RSAClient.class, realCard, readerIndex);
+    }
+
+    /**
+     * Uses given connection to the {@link RSAClient} applet, e.g. a card of the {@link CardPool}
+     *
+     * @param cardMgr connected card manager with the applet selected
+     */
+    public ClientFullMgr(CardManager cardMgr) {
+        super(cardMgr);
     }
 
     /**
@@ -58,8 +87,19 @@ public class ClientFullMgr extends AbstractMgr {
      * @throws Exception if card error occurs
      */
     public ResponseAPDU generateKeys() throws Exception {
+        return generateKeys(false);
+    }
+
+    /**
+     * Generates client keys with the client share stored either as a plain exponent
+     * or as CRT parameters
+     *
+     * @param crt decides whether to use the CRT form
+     * @throws Exception if card error occurs
+     */
+    public ResponseAPDU generateKeys(boolean crt) throws Exception {
         ResponseAPDU res = transmit(new CommandAPDU(
-                CLA_RSA_SMPC_CLIENT, INS_GENERATE_KEYS, NONE, NONE
+                CLA_RSA_SMPC_CLIENT, INS_GENERATE_KEYS, crt ? P1_GENERATE_CRT : P1_GENERATE_STANDARD, NONE
         ));
 
         handleError(res, "Key generation");
@@ -67,6 +107,65 @@ public class ClientFullMgr extends AbstractMgr {
         return res;
     }
 
+    /**
+     * Generates a spare pair of client keys, which can be later made active by {@link #rotateKeys()}
+     *
+     * @param crt decides whether to use the CRT form
+     * @return response with the number of spare key pairs
+     * @throws Exception if card error occurs
+     */
+    public ResponseAPDU generateSpareKeys(boolean crt) throws Exception {
+        ResponseAPDU res = transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_GENERATE_SPARE_KEYS, crt ? P1_GENERATE_CRT : P1_GENERATE_STANDARD, NONE, 1
+        ));
+
+        handleError(res, "Spare key generation");
+
+        return res;
+    }
+
+    /**
+     * Generates spare pairs of client keys until all slots on the card are used.
+     * Should be called while the card is otherwise idle, e.g. after the signing,
+     * so that the next {@link #rotateKeys()} does not have to wait for the key generation.
+     *
+     * @param crt decides whether to use the CRT form
+     * @return number of newly generated spare key pairs
+     * @throws Exception if card error occurs
+     */
+    public int refillSpareKeys(boolean crt) throws Exception {
+        int count = 0;
+
+        while (true) {
+            ResponseAPDU res = transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_CLIENT, INS_GENERATE_SPARE_KEYS, crt ? P1_GENERATE_CRT : P1_GENERATE_STANDARD, NONE, 1
+            ));
+
+            // all slots are used
+            if (res.getSW() == SW_COMMAND_NOT_ALLOWED)
+                return count;
+
+            handleError(res, "Spare key generation");
+            count++;
+        }
+    }
+
+    /**
+     * Replaces the client keys with a spare pair, the keys must be then retrieved by {@link #getKeys()}
+     *
+     * @return response with the number of remaining spare key pairs
+     * @throws Exception if card error occurs
+     */
+    public ResponseAPDU rotateKeys() throws Exception {
+        ResponseAPDU res = transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_ROTATE_KEYS, NONE, NONE, 1
+        ));
+
+        handleError(res, "Key rotation");
+
+        return res;
+    }
+
     /**
      * Gets server share of client keys
      *
@@ -83,7 +182,7 @@ public class ClientFullMgr extends AbstractMgr {
         ));
         handleError(n, "Get n");
 
-        try (OutputStream out = new FileOutputStream(CLIENT_KEYS_SERVER_FILE_PATH)) {
+        try (OutputStream out = new FileOutputStream(getFilePath(CLIENT_KEYS_SERVER_FILE))) {
             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
 
             writer.write(String.format("%s%n%s%n", Util.toHex(dServer.getData()),
@@ -103,7 +202,7 @@ public class ClientFullMgr extends AbstractMgr {
         List<CommandAPDU> messageCmd;
         String message;
 
-        try (InputStream in = new FileInputStream(MESSAGE_FILE_PATH)) {
+        try (InputStream in = new FileInputStream(getFilePath(MESSAGE_FILE))) {
             BufferedReader reader = new BufferedReader(new InputStreamReader(in));
 
             message = reader.readLine();
@@ -115,7 +214,7 @@ public class ClientFullMgr extends AbstractMgr {
             messageCmd = setNumber(num, CLA_RSA_SMPC_CLIENT, INS_SET_MESSAGE, NONE);
 
             if (reader.readLine() != null)
-                throw new IOException(String.format("Wrong '%s' file format.", MESSAGE_FILE_PATH));
+                throw new IOException(String.format("Wrong '%s' file format.", getFilePath(MESSAGE_FILE)));
         }
 
         for (CommandAPDU cmd : messageCmd)
@@ -126,7 +225,7 @@ public class ClientFullMgr extends AbstractMgr {
         ));
         handleError(res, "Signing");
 
-        try (OutputStream out = new FileOutputStream(CLIENT_SIG_SHARE_FILE_PATH)) {
+        try (OutputStream out = new FileOutputStream(getFilePath(CLIENT_SIG_SHARE_FILE))) {
             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
             writer.write(String.format("%s%n%s%n", message, Util.toHex(res.getData())));
             writer.flush();
@@ -1,6 +1,11 @@
 package tests.client_full;
 
 import cardTools.Util;
+
+import smpc_rsa.RSAClient;
+
+import tests.StressTest;
+
 import org.junit.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
@@ -10,6 +15,7 @@ import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.util.Random;
 
 import static javacard.framework.ISO7816.*;
@@ -665,6 +671,238 @@ public class ClientFullTest {
         Assert.assertNotEquals(0, res.getData().length);
     }
 
+    @Test(groups = "clientFullExtendedApdu", dependsOnGroups = "clientFullSignature")
+    public void clientFullExtendedSign() throws Exception {
+        generateMessage();
+
+        ResponseAPDU res = client.generateKeys();
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        client.getKeys();
+
+        res = client.signMessage();
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertNotEquals(0, res.getData().length);  // can be 255-256 bytes long
+
+        ResponseAPDU extRes;
+        try {
+            client.setExtendedApdu(true);
+            extRes = client.signMessage();
+        } finally {
+            client.setExtendedApdu(false);
+        }
+
+        Assert.assertEquals(SW_NO_ERROR, extRes.getSW());
+        Assert.assertArrayEquals(res.getData(), extRes.getData());
+    }
+
+    @Test(groups = "clientFullCrt", dependsOnGroups = "clientFullSignature")
+    public void clientFullCrtGenerateWrongP1() throws Exception {
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_GENERATE_KEYS, P1_GENERATE_CRT + 1, NONE
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INCORRECT_P1P2, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "clientFullCrt", dependsOnGroups = "clientFullSignature")
+    public void clientFullCrtGenerateTwice() throws Exception {
+        ResponseAPDU res = client.generateKeys(true);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_GENERATE_KEYS, P1_GENERATE_STANDARD, NONE
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_COMMAND_NOT_ALLOWED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_GENERATE_KEYS, P1_GENERATE_CRT, NONE
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_COMMAND_NOT_ALLOWED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "clientFullCrt", dependsOnGroups = "clientFullSignature")
+    public void clientFullCrtSign() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            clientFullResetCard();
+            generateMessage();
+
+            ResponseAPDU res = client.generateKeys(true);
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+            Assert.assertEquals(0, res.getData().length);
+
+            client.getKeys();
+
+            res = client.signMessage();
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+            Assert.assertNotEquals(0, res.getData().length);  // can be 255-256 bytes long
+            verifyClientSignature(res.getData());
+        }
+    }
+
+    @Test(groups = "clientFullCrt", dependsOnGroups = "clientFullSignature")
+    public void clientFullCrtStandardSign() throws Exception {
+        generateMessage();
+
+        ResponseAPDU res = client.generateKeys(false);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        client.getKeys();
+
+        res = client.signMessage();
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        verifyClientSignature(res.getData());
+    }
+
+    @Test(groups = "clientFullSpareKeys", dependsOnGroups = "clientFullSignature")
+    public void clientFullRotateWithoutSpare() throws Exception {
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_ROTATE_KEYS, NONE, NONE
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "clientFullSpareKeys", dependsOnGroups = "clientFullSignature")
+    public void clientFullSpareKeysBadP1P2() throws Exception {
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_GENERATE_SPARE_KEYS, P1_GENERATE_CRT + 1, NONE
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INCORRECT_P1P2, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_GENERATE_SPARE_KEYS, NONE, 0xFF
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INCORRECT_P1P2, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        client.generateSpareKeys(false);
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_ROTATE_KEYS, 0xFF, NONE
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INCORRECT_P1P2, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "clientFullSpareKeys", dependsOnGroups = "clientFullSignature")
+    public void clientFullSpareKeysFull() throws Exception {
+        ResponseAPDU res = client.generateSpareKeys(false);
+        Assert.assertArrayEquals(new byte[]{1}, res.getData());
+
+        res = client.generateSpareKeys(true);
+        Assert.assertArrayEquals(new byte[]{2}, res.getData());
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_GENERATE_SPARE_KEYS, NONE, NONE
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_COMMAND_NOT_ALLOWED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        Assert.assertEquals(0, client.refillSpareKeys(false));
+
+        res = client.rotateKeys();
+        Assert.assertArrayEquals(new byte[]{1}, res.getData());
+        Assert.assertEquals(1, client.refillSpareKeys(false));
+    }
+
+    @Test(groups = "clientFullSpareKeys", dependsOnGroups = "clientFullSignature")
+    public void clientFullRotateSign() throws Exception {
+        generateMessage();
+
+        ResponseAPDU res = client.generateKeys();
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        client.getKeys();
+
+        // the active keys are kept while the spares are generated
+        Assert.assertEquals(2, client.refillSpareKeys(true));
+
+        res = client.signMessage();
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        verifyClientSignature(res.getData());
+
+        for (int remaining = 1; remaining >= 0; remaining--) {
+            res = client.rotateKeys();
+            Assert.assertArrayEquals(new byte[]{(byte) remaining}, res.getData());
+
+            res = client.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_CLIENT, INS_SET_MESSAGE, NONE, NONE, new byte[]{0x01}
+            ));
+            Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, res.getSW());
+
+            client.getKeys();
+
+            res = client.signMessage();
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+            verifyClientSignature(res.getData());
+        }
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_ROTATE_KEYS, NONE, NONE
+        ));
+        Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, res.getSW());
+    }
+
+    @Test(groups = "clientFullSpareKeys", dependsOnGroups = "clientFullSignature")
+    public void clientFullResetSpareKeys() throws Exception {
+        client.generateSpareKeys(false);
+        clientFullResetCard();
+
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT, INS_ROTATE_KEYS, NONE, NONE
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    /**
+     * Checks that the client signature share combined with the server share
+     * of the client exponent gives a valid signature under the client modulus.
+     *
+     * @param signature client signature share
+     */
+    private void verifyClientSignature(byte[] signature) throws Exception {
+        BigInteger message;
+        BigInteger dServer;
+        BigInteger n;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(MESSAGE_FILE_PATH))) {
+            message = new BigInteger(1, Util.hexStringToByteArray(reader.readLine()));
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(CLIENT_KEYS_SERVER_FILE_PATH))) {
+            dServer = new BigInteger(1, Util.hexStringToByteArray(reader.readLine()));
+            n = new BigInteger(1, Util.hexStringToByteArray(reader.readLine()));
+        }
+
+        BigInteger sig = new BigInteger(1, signature).multiply(message.modPow(dServer, n)).mod(n);
+        Assert.assertEquals(message, sig.modPow(BigInteger.valueOf(65537), n));
+    }
+
     private void generateMessage() throws Exception {
         try (OutputStream os = new FileOutputStream(MESSAGE_FILE_PATH)) {
             BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
@@ -680,85 +918,39 @@ public class ClientFullTest {
 
     @Test(groups = "clientFullStressTest", dependsOnGroups = "clientFullSignature")
     public void clientFullStressTest() throws Exception {
-        if (!new File(TEST_PATH + "smpc_rsa").isFile())
-            Assert.fail("This test requires the reference 'smpc_rsa' in the tests (../) folder.");
-
-        ProcessBuilder serverGenerate = new ProcessBuilder("./smpc_rsa", "server", "generate").directory(new File(TEST_PATH));
-        ProcessBuilder serverSign = new ProcessBuilder("./smpc_rsa", "server", "sign").directory(new File(TEST_PATH));
-        ProcessBuilder serverVerify = new ProcessBuilder("./smpc_rsa", "server", "verify").directory(new File(TEST_PATH));
-
-        client.setDebug(false);
-
-        int nokGenCount = 0;
-        int nokSignCount = 0;
-
         System.out.println("Running the sign client applet against reference implementation.");
         System.out.println("Each test should fail only when the modulus is unusable.");
         System.out.println("Due to a bug in emulator, the test may very rarely fail with a wrong signature.");
 
-        for (int i = 1; i <= TEST_COUNT; i++) {
-            System.out.printf("TEST %d: ", i);
-            System.out.flush();
+        StressTest.run(APPLET_AID, RSAClient.class, REAL_CARD, ClientFullMgr::new, TEST_COUNT, (mgr, workPath) -> {
+            ResponseAPDU res = mgr.transmit(new CommandAPDU(CLA_RSA_SMPC_CLIENT, INS_RESET, NONE, NONE));
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
 
-            clientFullResetCard();
-            generateMessage();
+            StressTest.generateMessage(workPath);
 
-            ResponseAPDU responseAPDU = client.generateKeys();
-            Assert.assertEquals(SW_NO_ERROR, responseAPDU.getSW());
-            Assert.assertEquals(0, responseAPDU.getData().length);
+            res = mgr.generateKeys();
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+            Assert.assertEquals(0, res.getData().length);
 
-            client.getKeys();
+            mgr.getKeys();
 
-            Process serverGenProc = serverGenerate.start();
-            final BufferedReader errReader = new BufferedReader(
-                    new InputStreamReader(new BufferedInputStream(serverGenProc.getErrorStream()))
-            );
-
-            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(
-                    new BufferedOutputStream(serverGenProc.getOutputStream())
-            );
-            outputStreamWriter.write("y\n");
-            outputStreamWriter.flush();
-
-            if (serverGenProc.waitFor() != 0) {
-                String line;
-                while ((line = errReader.readLine()) != null) {
-                    System.out.println(line);
-                }
-
-                nokGenCount++;
-                continue;
-            }
+            if (!StressTest.runReference(StressTest.reference(workPath, "server", "generate"), true))
+                return StressTest.Result.GENERATE_FAILED;
 
-            responseAPDU = client.signMessage();
-            Assert.assertNotNull(responseAPDU);
-            Assert.assertEquals(SW_NO_ERROR, responseAPDU.getSW());
-
-            Process serverSignProc = serverSign.start();
-            final BufferedReader errReader1 = new BufferedReader(
-                    new InputStreamReader(new BufferedInputStream(serverSignProc.getErrorStream()))
-            );
-
-            if (serverSignProc.waitFor() != 0) {
-                String line;
-                while ((line = errReader1.readLine()) != null) {
-                    System.out.println(line);
-                }
+            res = mgr.signMessage();
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
 
+            if (!StressTest.runReference(StressTest.reference(workPath, "server", "sign"), false)) {
                 if (REAL_CARD)
                     Assert.fail("Final signature computation on a real card should never fail.");
 
-                nokSignCount++;
-                continue;
+                return StressTest.Result.SIGN_FAILED;
             }
 
-            Assert.assertEquals(0, serverVerify.start().waitFor());
-            System.out.println("\u001B[1;32mOK\u001B[0m");
-        }
-
-        System.out.printf("Result: Fail Generate/Fail Sign/All: %d/%d/%d (%.02f %% failed)",
-                nokGenCount, nokSignCount, TEST_COUNT, (double) (nokGenCount + nokSignCount) * 100 / TEST_COUNT
-        );
+            Assert.assertTrue(StressTest.runReference(StressTest.reference(workPath, "server", "verify"), false));
+            return StressTest.Result.OK;
+        });
     }
 
 }
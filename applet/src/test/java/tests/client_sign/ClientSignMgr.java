@@ -2,15 +2,18 @@ package tests.client_sign;
 
 import smpc_rsa.RSAClientSign;
 
+import cardTools.CardManager;
 import cardTools.Util;
 
 import tests.AbstractMgr;
+import tests.CardPool;
 
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -20,6 +23,8 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -32,14 +37,27 @@ import java.util.List;
 public class ClientSignMgr extends AbstractMgr {
 
     public static final byte CLA_RSA_SMPC_CLIENT_SIGN = (byte) 0x80;
+    public static final byte CLA_RSA_SMPC_CLIENT_SIGN_CHAINING = (byte) 0x90;
+    public static final byte CLA_GET_RESPONSE = 0x00;
 
     public static final byte INS_SET_KEYS = 0x10;
     public static final byte INS_SET_MESSAGE = 0x12;
     public static final byte INS_SIGNATURE = 0x14;
     public static final byte INS_RESET = 0x16;
+    public static final byte INS_SIGN_BATCH = 0x18;
+    public static final byte INS_GET_RESPONSE = (byte) 0xC0;
 
     public static final byte P1_SET_D = 0x00;
     public static final byte P1_SET_N = 0x01;
+    public static final byte P1_SET_P = 0x02;
+    public static final byte P1_SET_Q = 0x03;
+    public static final byte P1_SET_DP1 = 0x04;
+    public static final byte P1_SET_DQ1 = 0x05;
+    public static final byte P1_SET_PQ = 0x06;
+
+    public static final short CRT_PARAMETER_LENGTH = ARR_LENGTH / 2;
+
+    private static final int SW1_BYTES_REMAINING = 0x61;
 
     public static final String APPLET_AID = "0102030405060708090102";
 
@@ -50,45 +68,113 @@ public class ClientSignMgr extends AbstractMgr {
      * @throws Exception if card error occurs
      */
     public ClientSignMgr(boolean realCard) throws Exception {
-        super(APPLET_AID, RSAClientSign.class, realCard);
+        this(realCard, 0);
+    }
+
+    /**
+     * Creates connection to the {@link RSAClientSign} applet
+     *
+     * @param realCard decides whether to use real card or emulator
+     * @param readerIndex index of the reader with the real card
+     * @throws Exception if card error occurs
+     */
+    public ClientSignMgr(boolean realCard, int readerIndex) throws Exception {
+        super(APPLET_AID, RSAClientSign.class, realCard, readerIndex);
+    }
+
+    /**
+     * Uses given connection to the {@link RSAClientSign} applet, e.g. a card of the {@link CardPool}
+     *
+     * @param cardMgr connected card manager with the applet selected
+     */
+    public ClientSignMgr(CardManager cardMgr) {
+        super(cardMgr);
     }
 
     /**
      * Sets client keys
+     * <p>
+     * The key file contains either the private exponent and modulus,
+     * or the CRT parameters P, Q, DP1, DQ1 and PQ, each on a separate line.
      *
      * @throws Exception if IO or card error occurs
      */
     public void setKeys() throws Exception {
-        List<CommandAPDU> setDcmd;
-        List<CommandAPDU> setNcmd;
+        List<String> lines = new ArrayList<>();
 
-        try (InputStream in = new FileInputStream(CLIENT_KEYS_CLIENT_FILE_PATH)) {
+        try (InputStream in = new FileInputStream(getFilePath(CLIENT_KEYS_CLIENT_FILE))) {
             BufferedReader reader = new BufferedReader(new InputStreamReader(in));
 
-            byte[] num = Util.hexStringToByteArray(reader.readLine());
-            BigInteger d = new BigInteger(1, num);
+            String line;
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+        }
+
+        switch (lines.size()) {
+            case 2:
+                setStandardKeys(lines);
+                break;
 
-            setDcmd = setNumber(num, CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_D);
+            case 5:
+                setCrtKeys(lines);
+                break;
+
+            default:
+                throw new IOException(String.format("Wrong '%s' file format.", getFilePath(CLIENT_KEYS_CLIENT_FILE)));
+        }
+    }
+
+    /**
+     * Sets client private exponent and modulus
+     *
+     * @param lines lines of the key file
+     * @throws Exception if card error occurs
+     */
+    private void setStandardKeys(List<String> lines) throws Exception {
+        byte[] num = Util.hexStringToByteArray(lines.get(0));
+        BigInteger d = new BigInteger(1, num);
 
-            num = Util.hexStringToByteArray(reader.readLine());
-            BigInteger n = new BigInteger(1, num);
+        List<CommandAPDU> setDcmd = setNumber(num, CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_D);
 
-            if (num.length != ARR_LENGTH)
-                throw new IllegalArgumentException("Modulus is not a 256-bit number.");
+        num = Util.hexStringToByteArray(lines.get(1));
+        BigInteger n = new BigInteger(1, num);
 
-            if (d.compareTo(n) > 0)
-                throw new IllegalArgumentException("Private key cannot be larger than modulus.");
+        if (num.length != ARR_LENGTH)
+            throw new IllegalArgumentException("Modulus is not a 256-bit number.");
 
-            setNcmd = setNumber(num, CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_N);
+        if (d.compareTo(n) > 0)
+            throw new IllegalArgumentException("Private key cannot be larger than modulus.");
 
-            if (reader.readLine() != null)
-                throw new IOException(String.format("Wrong '%s' file format.", CLIENT_KEYS_CLIENT_FILE_PATH));
-        }
+        List<CommandAPDU> setNcmd = setNumber(num, CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_N);
 
         transmitNumber(setDcmd, "Set D");
         transmitNumber(setNcmd, "Set N");
     }
 
+    /**
+     * Sets client CRT parameters
+     *
+     * @param lines lines of the key file
+     * @throws Exception if card error occurs
+     */
+    private void setCrtKeys(List<String> lines) throws Exception {
+        final byte[] p1 = new byte[]{P1_SET_P, P1_SET_Q, P1_SET_DP1, P1_SET_DQ1, P1_SET_PQ};
+        final String[] names = new String[]{"P", "Q", "DP1", "DQ1", "PQ"};
+        List<CommandAPDU> cmds = new ArrayList<>();
+
+        for (int i = 0; i < p1.length; i++) {
+            byte[] num = Util.hexStringToByteArray(lines.get(i));
+
+            if (num.length > CRT_PARAMETER_LENGTH)
+                throw new IllegalArgumentException(String.format("%s is longer than a prime.", names[i]));
+
+            cmds.add(new CommandAPDU(CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, p1[i], P2_SINGLE, num));
+        }
+
+        for (int i = 0; i < cmds.size(); i++)
+            handleError(transmit(cmds.get(i)), "Set " + names[i]);
+    }
+
     /**
      * Signs given message
      *
@@ -99,7 +185,7 @@ public class ClientSignMgr extends AbstractMgr {
         String message;
         List<CommandAPDU> messageCmd;
 
-        try (InputStream in = new FileInputStream(MESSAGE_FILE_PATH)) {
+        try (InputStream in = new FileInputStream(getFilePath(MESSAGE_FILE))) {
             BufferedReader reader = new BufferedReader(new InputStreamReader(in));
 
             message = reader.readLine();
@@ -111,7 +197,7 @@ public class ClientSignMgr extends AbstractMgr {
             messageCmd = setNumber(num, CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_MESSAGE, NONE);
 
             if (reader.readLine() != null)
-                throw new IOException(String.format("Wrong '%s' file format.", MESSAGE_FILE_PATH));
+                throw new IOException(String.format("Wrong '%s' file format.", getFilePath(MESSAGE_FILE)));
         }
 
         transmitNumber(messageCmd, "Set message");
@@ -120,7 +206,7 @@ public class ClientSignMgr extends AbstractMgr {
         ));
         handleError(res, "Signing");
 
-        try (OutputStream out = new FileOutputStream(CLIENT_SIG_SHARE_FILE_PATH)) {
+        try (OutputStream out = new FileOutputStream(getFilePath(CLIENT_SIG_SHARE_FILE))) {
             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
             writer.write(String.format(
                     "%s%n%s%n", message, Util.toHex(res.getData())
@@ -131,6 +217,58 @@ public class ClientSignMgr extends AbstractMgr {
         return res;
     }
 
+    /**
+     * Signs given messages in a single batch. The messages are streamed by the command
+     * chaining, one per extended length APDU or divided into short APDUs. Each signature
+     * is returned in the response to the command completing its message, the rest
+     * that did not fit into the response is retrieved by the GET RESPONSE command.
+     *
+     * @param messages messages to sign
+     * @return signatures in the order of the messages
+     * @throws Exception if card error occurs
+     */
+    public List<byte[]> signBatch(List<byte[]> messages) throws Exception {
+        if (messages.isEmpty())
+            throw new IllegalArgumentException("There are no messages to sign.");
+
+        byte[] data = new byte[messages.size() * ARR_LENGTH];
+        for (int i = 0; i < messages.size(); i++) {
+            byte[] num = messages.get(i);
 
+            if (num.length > ARR_LENGTH)
+                throw new IllegalArgumentException("Message cannot be larger than modulus.");
+
+            System.arraycopy(num, 0, data, (i + 1) * ARR_LENGTH - num.length, num.length);
+        }
+
+        int chunk = isExtendedApdu() ? ARR_LENGTH : MAX_APDU_LENGTH;
+        List<byte[]> signatures = new ArrayList<>();
+
+        for (int offset = 0; offset < data.length; offset += chunk) {
+            int end = Math.min(offset + chunk, data.length);
+
+            ResponseAPDU res = transmit(new CommandAPDU(
+                    end < data.length ? CLA_RSA_SMPC_CLIENT_SIGN_CHAINING : CLA_RSA_SMPC_CLIENT_SIGN,
+                    INS_SIGN_BATCH, NONE, NONE, Arrays.copyOfRange(data, offset, end), ARR_LENGTH
+            ));
+
+            ByteArrayOutputStream signature = new ByteArrayOutputStream();
+            signature.write(res.getData());
+
+            while (res.getSW1() == SW1_BYTES_REMAINING) {
+                res = transmit(new CommandAPDU(
+                        CLA_GET_RESPONSE, INS_GET_RESPONSE, NONE, NONE, res.getSW2() == 0 ? ARR_LENGTH : res.getSW2()
+                ));
+                signature.write(res.getData());
+            }
+
+            handleError(res, "Batch signing");
+
+            if (signature.size() != 0)
+                signatures.add(signature.toByteArray());
+        }
+
+        return signatures;
+    }
 
 }
@@ -5,15 +5,31 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import java.io.*;
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import cardTools.Util;
 
+import smpc_rsa.RSAClientSign;
+
+import tests.AbstractMgr;
+import tests.CardPool;
+import tests.StressTest;
+
 import static javacard.framework.ISO7816.*;
+import static tests.CardPool.MAX_CONSECUTIVE_FAILURES;
 import static tests.client_sign.ClientSignMgr.*;
 
 /**
@@ -830,114 +846,531 @@ public class ClientSignTest {
                 res.getData());
     }
 
-    private void generateMessage() throws Exception {
-        try (OutputStream os = new FileOutputStream(MESSAGE_FILE_PATH)) {
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
+    @Test(groups = "clientSignExtendedApdu", dependsOnGroups = "clientSignSignature")
+    public void clientSignExtendedSetKeysDividedTooLong() throws Exception {
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_D, P2_DIVIDED | P2_PART_0, new byte[ARR_LENGTH]
+        ));
 
-            byte[] bytes = new byte[ARR_LENGTH];
-            new Random().nextBytes(bytes);
-            bytes[0] &= 0x0F; // to avoid messages longer than modulus
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_LENGTH, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
 
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_D, P2_SINGLE, new byte[ARR_LENGTH + 1]
+        ));
 
-            bw.write(Util.toHex(bytes));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_LENGTH, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "clientSignExtendedApdu", dependsOnGroups = "clientSignSignature")
+    public void clientSignExtendedSign() throws Exception {
+        // the same keys as in clientSignSimpleSign, each in a single extended APDU
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_D, P2_SINGLE,
+                Util.hexStringToByteArray("3B96CECCABBD3CA81A2F23FA606AC4720D49B48A9C5D841CBE5E2A85C477A44310E8CAEABF238A42F26FE680AA01513D16776856AC23354C8D6312E756C055FB88C5B2C899F34E0F62B6813EC20E8DFE6778ADCE57C7EC0A4FBADD820451B29904F1E01275326D417486760A716B4921AE46C09138CFCA083270C1E45456E014EFB17F911DCE427023FC484189D3F92983B05CF849D05C77E4D9BF053A6618885DA544D0C583370F9F9FAFA962ABBCEDD2DBB81F3322469BC3607FB7B5B9C618E8959B95FE770E85B6D7BA864E8CF5423978AD936392D82BFE1A3970289924D06FEEE8DD9ABEF01B2D45314B9E5FBDADDD28ECAB282EEAB0A277DFB3CF948BFD")
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_N, P2_SINGLE,
+                Util.hexStringToByteArray("DA5618288D09B6D1034168D4534AAD4B7DDB90AEEFF22C47A2BAF25C45AEBE28A34C39C1A8671DD74A302E794FAF0933BD13F56236D91DFA245B328A161B80FC7AEFFA8DDC242A529F1C756D0D437DD2977312A667E64EEA2FDA6660295FAFD67A758A534E76E1BF0B20E7F62A4E34994B398E4448F386CC008FA927582363864CE6577FA3932C79420F152A5C81671EA15977C74CC30D8412E8CF34F1EC5E23797D1394E2292F8E1DECCF7E8472DE96C83776BED2E979D6AD9F78FB0F91C02C604363007810B15C7FB665F1382FB478FF69A0BF008599EC62BBB107F3A8435C9A0994CA45C275C2B117682761EEABC1E6A9A00AAE8BE970FCA364745D5C849F")
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_MESSAGE, NONE, P2_SINGLE,
+                Util.hexStringToByteArray("000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000F9822B96C3DCCA942368507AEAAD9C57267E6DAB7EE42DFAF7DBBD2D499A75D623C65479217D89764923987FEFD20ECC3EAF1247F09A7C3060091A4CA1251816F3E7C532894A42A1BE3BDD0BBD1985F69E6784195CC7F9E45A9BE6A4C80DC5DB0CA7B08A")
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SIGNATURE, NONE, NONE, ARR_LENGTH
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(ARR_LENGTH, res.getData().length);
+        Assert.assertArrayEquals(Util.hexStringToByteArray("01C86B7D2282ACDE771B705A2FEE6A6C621D942130A644CCFBA76D5A84ACCF2C6A98B20A023CDC85F1F1A50BF77C9B77FCC9DA206ED6F8FFFD69DE16C786DB19442FCB75B340C2527DEEF6046CAAED6020893C693CD9BA9FF88CD0E554F6185641F0CD47F406AFC79B59130E1DEC1F2D8E8E0D8F4CC94CFB9EF17156E43F4B2FF9D3666583AD2F8CBD8AEC9D16F546D0874B16DEB86892BE331313F5AC4463D28B73C2B0DCF3AD1937518C1D088AD36F7ED29F30542583FB0E67BC17330F519090733825B26730DA236BFDF11EE01F0FA38FE6F5EBD56AB4E37340552A829560DE32C7947E50B97C67649776DB3C18A26399DD2A985E711885A5D827EE3970B2"),
+                res.getData());
+    }
+
+    @Test(groups = "clientSignCrt", dependsOnGroups = "clientSignSignature")
+    public void clientSignCrtMixedForms() throws Exception {
+        clientSignSetSingleD();
+
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_DP1, P2_SINGLE, new byte[]{(byte) 0xFF}
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_COMMAND_NOT_ALLOWED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        clientSignResetCard();
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_DP1, P2_SINGLE, new byte[]{(byte) 0xFF}
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_D, P2_SINGLE, new byte[]{(byte) 0xFF}
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_COMMAND_NOT_ALLOWED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "clientSignCrt", dependsOnGroups = "clientSignSignature")
+    public void clientSignCrtModulusAfterCrt() throws Exception {
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_DP1, P2_SINGLE, new byte[]{(byte) 0xFF}
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_N, P2_SINGLE, new byte[]{(byte) 0xFF}
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "clientSignCrt", dependsOnGroups = "clientSignSignature")
+    public void clientSignCrtSetTwice() throws Exception {
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_PQ, P2_SINGLE, new byte[]{(byte) 0xFF}
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_PQ, P2_SINGLE, new byte[]{(byte) 0xFF}
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_COMMAND_NOT_ALLOWED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "clientSignCrt", dependsOnGroups = "clientSignSignature")
+    public void clientSignCrtDivided() throws Exception {
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_DQ1, P2_DIVIDED | P2_PART_0, new byte[]{(byte) 0xFF}
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INCORRECT_P1P2, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "clientSignCrt", dependsOnGroups = "clientSignSignature")
+    public void clientSignCrtTooLong() throws Exception {
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_DP1, P2_SINGLE, new byte[CRT_PARAMETER_LENGTH + 1]
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_LENGTH, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "clientSignCrt", dependsOnGroups = "clientSignSignature")
+    public void clientSignCrtShortPrime() throws Exception {
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS, P1_SET_P, P2_SINGLE, new byte[]{(byte) 0xFF}
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_LENGTH, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "clientSignCrt", dependsOnGroups = "clientSignSignature")
+    public void clientSignCrtSign() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(ARR_LENGTH * 8);
+        RSAPrivateCrtKey key = (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+
+        BigInteger p = key.getPrimeP();
+        BigInteger q = key.getPrimeQ();
+        BigInteger n = key.getModulus();
+
+        // client share of the private exponent as generated by the reference implementation
+        BigInteger d1Client;
+        do {
+            d1Client = new BigInteger(key.getPrivateExponent().bitLength(), new Random());
+        } while (d1Client.compareTo(key.getPrivateExponent()) >= 0);
+
+        try (OutputStream os = new FileOutputStream(CLIENT_KEYS_CLIENT_FILE_PATH)) {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
+
+            bw.write(String.format("%s%n%s%n%s%n%s%n%s%n",
+                    toHex(p), toHex(q),
+                    toHex(d1Client.mod(p.subtract(BigInteger.ONE))),
+                    toHex(d1Client.mod(q.subtract(BigInteger.ONE))),
+                    toHex(key.getCrtCoefficient())
+            ));
             bw.flush();
         }
+
+        client.setKeys();
+        generateMessage();
+
+        ResponseAPDU res = client.signMessage();
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+
+        BigInteger message;
+        try (BufferedReader reader = new BufferedReader(new FileReader(MESSAGE_FILE_PATH))) {
+            message = new BigInteger(1, Util.hexStringToByteArray(reader.readLine()));
+        }
+
+        Assert.assertEquals(message.modPow(d1Client, n), new BigInteger(1, res.getData()));
     }
 
-    @Test(groups = "clientSignStressTest", dependsOnGroups = "clientSignSetMessage")
-    public void clientSignStressTest() throws Exception {
-        if (!new File(TEST_PATH + "smpc_rsa").isFile())
-            Assert.fail("This test requires the reference 'smpc_rsa' in the tests (../) folder.");
+    @Test(groups = "clientSignBatch", dependsOnGroups = "clientSignSignature")
+    public void clientSignBatchNoKeys() throws Exception {
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SIGN_BATCH, NONE, NONE, new byte[ARR_LENGTH], ARR_LENGTH
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, (short) res.getSW());
+    }
 
-        ProcessBuilder clientGenerate = new ProcessBuilder("./smpc_rsa", "client", "generate").directory(new File(TEST_PATH));
-        ProcessBuilder serverGenerate = new ProcessBuilder("./smpc_rsa", "server", "generate").directory(new File(TEST_PATH));
-        ProcessBuilder serverSign = new ProcessBuilder("./smpc_rsa", "server", "sign").directory(new File(TEST_PATH));
-        ProcessBuilder serverVerify = new ProcessBuilder("./smpc_rsa", "server", "verify").directory(new File(TEST_PATH));
+    @Test(groups = "clientSignBatch", dependsOnGroups = "clientSignSignature")
+    public void clientSignBatchBadP1P2() throws Exception {
+        setBatchKeys();
 
-        client.setDebug(false);
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SIGN_BATCH, NONE, 0x01, new byte[ARR_LENGTH], ARR_LENGTH
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INCORRECT_P1P2, (short) res.getSW());
 
-        int nokGenCount = 0;
-        int nokSignCount = 0;
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SIGN_BATCH, 0x01, NONE, new byte[ARR_LENGTH], ARR_LENGTH
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INCORRECT_P1P2, (short) res.getSW());
+    }
 
-        System.out.println("Running the sign client applet against reference implementation.");
-        System.out.println("Each test may fail only when the modulus is unusable.");
+    @Test(groups = "clientSignBatch", dependsOnGroups = "clientSignSignature")
+    public void clientSignBatchSign() throws Exception {
+        BigInteger[] keys = setBatchKeys();
+        client.setExtendedApdu(false);
+        assertBatch(keys);
+    }
 
-        for (int i = 1; i <= TEST_COUNT; i++) {
-            System.out.printf("TEST %d: ", i);
-            System.out.flush();
+    @Test(groups = "clientSignBatch", dependsOnGroups = "clientSignSignature")
+    public void clientSignBatchSignExtended() throws Exception {
+        BigInteger[] keys = setBatchKeys();
+        client.setExtendedApdu(true);
 
-            clientSignResetCard();
+        try {
+            assertBatch(keys);
+        } finally {
+            client.setExtendedApdu(false);
+        }
+    }
 
-            generateMessage();
+    @Test(groups = "clientSignBatch", dependsOnGroups = "clientSignSignature")
+    public void clientSignBatchGetResponse() throws Exception {
+        BigInteger[] keys = setBatchKeys();
+        byte[] message = new byte[ARR_LENGTH];
+        new Random().nextBytes(message);
+        message[0] &= 0x0F; // to avoid messages longer than modulus
 
-            Process clientGenProc = clientGenerate.start();
-            final BufferedReader errReader = new BufferedReader(
-                    new InputStreamReader(new BufferedInputStream(clientGenProc.getErrorStream()))
-            );
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SIGN_BATCH, NONE, NONE, message, 100
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(0x6100 | (ARR_LENGTH - 100), res.getSW());
+
+        ByteArrayOutputStream signature = new ByteArrayOutputStream();
+        signature.write(res.getData());
 
-            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(
-                    new BufferedOutputStream(clientGenProc.getOutputStream())
-            );
-            outputStreamWriter.write("y\n");
-            outputStreamWriter.flush();
+        res = client.transmit(new CommandAPDU(CLA_GET_RESPONSE, INS_GET_RESPONSE, NONE, NONE, ARR_LENGTH - 100));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        signature.write(res.getData());
 
-            if (clientGenProc.waitFor() != 0) {
-                String line;
-                while ((line = errReader.readLine()) != null) {
-                    System.out.println(line);
-                }
+        Assert.assertEquals(new BigInteger(1, message).modPow(keys[0], keys[1]),
+                new BigInteger(1, signature.toByteArray()));
 
-                Assert.fail("Client keys generation should never fail.");
-            }
+        res = client.transmit(new CommandAPDU(CLA_GET_RESPONSE, INS_GET_RESPONSE, NONE, NONE, ARR_LENGTH));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, (short) res.getSW());
+    }
 
-            client.setKeys();
+    @Test(groups = "clientSignBatch", dependsOnGroups = "clientSignSignature")
+    public void clientSignBatchIncomplete() throws Exception {
+        setBatchKeys();
+
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN_CHAINING, INS_SIGN_BATCH, NONE, NONE, new byte[MAX_APDU_LENGTH]
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SIGN_BATCH, NONE, NONE, new byte[ARR_LENGTH], ARR_LENGTH
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_LENGTH, (short) res.getSW());
+
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SIGN_BATCH, NONE, NONE, new byte[100], ARR_LENGTH
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_LENGTH, (short) res.getSW());
+    }
+
+    @Test(groups = "clientSignBatch", dependsOnGroups = "clientSignSignature")
+    public void clientSignBatchAborted() throws Exception {
+        setBatchKeys();
+
+        ResponseAPDU res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN_CHAINING, INS_SIGN_BATCH, NONE, NONE, new byte[100]
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
 
-            ResponseAPDU responseAPDU = client.signMessage();
-            Assert.assertNotNull(responseAPDU);
-            Assert.assertEquals(SW_NO_ERROR, responseAPDU.getSW());
+        res = client.transmit(new CommandAPDU(CLA_RSA_SMPC_CLIENT_SIGN, INS_SIGNATURE, NONE, NONE, ARR_LENGTH));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, (short) res.getSW());
 
-            Process serverGenProc = serverGenerate.start();
-            final BufferedReader errReader1 = new BufferedReader(
-                    new InputStreamReader(new BufferedInputStream(serverGenProc.getErrorStream()))
-            );
+        // the rest of the first message is now the beginning of a new one
+        res = client.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_CLIENT_SIGN, INS_SIGN_BATCH, NONE, NONE, new byte[ARR_LENGTH - 100], ARR_LENGTH
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_LENGTH, (short) res.getSW());
+    }
 
-            OutputStreamWriter outputStreamWriter1 = new OutputStreamWriter(
-                    new BufferedOutputStream(serverGenProc.getOutputStream())
-            );
-            outputStreamWriter1.write("y\n");
-            outputStreamWriter1.flush();
+    @Test(groups = "clientSignPool", dependsOnGroups = "clientSignBatch")
+    public void clientSignPoolSign() throws Exception {
+        BigInteger[] keys = generateStandardKeys();
+
+        try (CardPool<ClientSignMgr> pool = new CardPool<>(
+                APPLET_AID, AbstractMgr.createRunConfig(RSAClientSign.class, REAL_CARD, 0), ClientSignMgr::new
+        )) {
+            Assert.assertTrue(pool.size() > 0);
+
+            List<List<byte[]>> messages = new ArrayList<>();
+            List<CompletableFuture<List<byte[]>>> signatures = new ArrayList<>();
+
+            for (int i = 0; i < 8; i++) {
+                List<byte[]> batch = generateBatch();
+                messages.add(batch);
+                signatures.add(pool.submit(mgr -> {
+                    // the card might have been used by a previous job
+                    mgr.transmit(new CommandAPDU(CLA_RSA_SMPC_CLIENT_SIGN, INS_RESET, NONE, NONE));
+                    mgr.setKeys();
+                    return mgr.signBatch(batch);
+                }));
+            }
 
-            if (serverGenProc.waitFor() != 0) {
-                String line;
-                while ((line = errReader1.readLine()) != null) {
-                    System.out.println(line);
-                }
+            for (int i = 0; i < messages.size(); i++)
+                assertSignatures(keys, messages.get(i), signatures.get(i).get());
 
-                nokGenCount++;
-                continue;
+            int jobs = 0;
+            for (CardPool.CardHealth health : pool.getHealth()) {
+                Assert.assertTrue(health.healthy);
+                Assert.assertEquals(0, health.failures);
+                jobs += health.jobs;
             }
 
-            Process serverSignProc = serverSign.start();
-            final BufferedReader errReader2 = new BufferedReader(
-                    new InputStreamReader(new BufferedInputStream(serverSignProc.getErrorStream()))
-            );
+            Assert.assertEquals(messages.size(), jobs);
+        }
+    }
+
+    @Test(groups = "clientSignPool", dependsOnGroups = "clientSignBatch")
+    public void clientSignPoolUnhealthy() throws Exception {
+        try (CardPool<ClientSignMgr> pool = new CardPool<>(
+                APPLET_AID, AbstractMgr.createRunConfig(RSAClientSign.class, REAL_CARD, 0), ClientSignMgr::new
+        )) {
+            // host-side errors do not affect the health of the card
+            CompletableFuture<Object> res = pool.submit(mgr -> {
+                throw new IllegalArgumentException();
+            });
+            assertFailedWith(res, IllegalArgumentException.class);
+            Assert.assertEquals(pool.size(), pool.getHealthyCount());
+
+            // each job is taken by any healthy card
+            for (int i = 0; i < pool.size() * MAX_CONSECUTIVE_FAILURES && pool.getHealthyCount() > 0; i++) {
+                // signing without keys fails on the card
+                res = pool.submit(mgr -> mgr.signBatch(generateBatch()));
+                assertFailedWith(res, CardException.class);
+            }
 
-            if (serverSignProc.waitFor() != 0) {
-                String line;
-                while ((line = errReader2.readLine()) != null) {
-                    System.out.println(line);
-                }
+            for (CardPool.CardHealth health : pool.getHealth())
+                Assert.assertFalse(health.healthy);
 
-                Assert.fail("Final signature computation should never fail.");
+            try {
+                pool.submit(mgr -> null);
+                Assert.fail("The pool has no healthy card.");
+            } catch (IllegalStateException ignored) {
             }
+        }
+    }
+
+    private static void assertFailedWith(CompletableFuture<?> res, Class<? extends Exception> cause) throws Exception {
+        try {
+            res.get();
+            Assert.fail("The job should have failed.");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(cause.isInstance(e.getCause()));
+        }
+    }
 
-            Assert.assertEquals(0, serverVerify.start().waitFor());
-            System.out.println("\u001B[1;32mOK\u001B[0m");
+    /**
+     * Generates a batch of random messages, the last one shorter than the modulus
+     *
+     * @return messages
+     */
+    private static List<byte[]> generateBatch() {
+        Random rnd = new Random();
+        List<byte[]> messages = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            byte[] message = new byte[i == 4 ? ARR_LENGTH / 2 : ARR_LENGTH];
+            rnd.nextBytes(message);
+            message[0] &= 0x0F; // to avoid messages longer than modulus
+            messages.add(message);
         }
 
-        System.out.printf("Result: Fail Generate/Fail Sign/All: %d/%d/%d (%.02f %% failed)",
-                nokGenCount, nokSignCount, TEST_COUNT, (double) (nokGenCount + nokSignCount) * 100 / TEST_COUNT
-        );
+        return messages;
+    }
+
+    /**
+     * Signs a batch of random messages
+     *
+     * @param keys client private exponent and modulus
+     * @throws Exception if card error occurs
+     */
+    private void assertBatch(BigInteger[] keys) throws Exception {
+        List<byte[]> messages = generateBatch();
+        assertSignatures(keys, messages, client.signBatch(messages));
+    }
+
+    private static void assertSignatures(BigInteger[] keys, List<byte[]> messages, List<byte[]> signatures) {
+        Assert.assertEquals(messages.size(), signatures.size());
+
+        for (int i = 0; i < messages.size(); i++) {
+            Assert.assertEquals(ARR_LENGTH, signatures.get(i).length);
+            Assert.assertEquals(new BigInteger(1, messages.get(i)).modPow(keys[0], keys[1]),
+                    new BigInteger(1, signatures.get(i)));
+        }
+    }
+
+    /**
+     * Sets the client share of a freshly generated private exponent and its modulus
+     *
+     * @return client private exponent and modulus
+     * @throws Exception if IO or card error occurs
+     */
+    private BigInteger[] setBatchKeys() throws Exception {
+        BigInteger[] keys = generateStandardKeys();
+        client.setKeys();
+        return keys;
+    }
+
+    /**
+     * Stores the client share of a freshly generated private exponent and its modulus
+     *
+     * @return client private exponent and modulus
+     * @throws Exception if IO error occurs
+     */
+    private BigInteger[] generateStandardKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(ARR_LENGTH * 8);
+        RSAPrivateCrtKey key = (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+
+        BigInteger d1Client;
+        do {
+            d1Client = new BigInteger(key.getPrivateExponent().bitLength(), new Random());
+        } while (d1Client.compareTo(key.getPrivateExponent()) >= 0);
+
+        try (OutputStream os = new FileOutputStream(CLIENT_KEYS_CLIENT_FILE_PATH)) {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
+            bw.write(String.format("%s%n%s%n", toHex(d1Client), toHex(key.getModulus())));
+            bw.flush();
+        }
+
+        return new BigInteger[]{d1Client, key.getModulus()};
+    }
+
+    private static String toHex(BigInteger num) {
+        byte[] bytes = num.toByteArray();
+        if (bytes[0] == 0x00 && bytes.length > 1)
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+
+        return Util.toHex(bytes);
+    }
+
+    private void generateMessage() throws Exception {
+        try (OutputStream os = new FileOutputStream(MESSAGE_FILE_PATH)) {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
+
+            byte[] bytes = new byte[ARR_LENGTH];
+            new Random().nextBytes(bytes);
+            bytes[0] &= 0x0F; // to avoid messages longer than modulus
+
+
+            bw.write(Util.toHex(bytes));
+            bw.flush();
+        }
+    }
+
+    @Test(groups = "clientSignStressTest", dependsOnGroups = "clientSignSetMessage")
+    public void clientSignStressTest() throws Exception {
+        System.out.println("Running the sign client applet against reference implementation.");
+        System.out.println("Each test may fail only when the modulus is unusable.");
+
+        StressTest.run(APPLET_AID, RSAClientSign.class, REAL_CARD, ClientSignMgr::new, TEST_COUNT, (mgr, workPath) -> {
+            ResponseAPDU res = mgr.transmit(new CommandAPDU(CLA_RSA_SMPC_CLIENT_SIGN, INS_RESET, NONE, NONE));
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+
+            StressTest.generateMessage(workPath);
+
+            if (!StressTest.runReference(StressTest.reference(workPath, "client", "generate"), true))
+                Assert.fail("Client keys generation should never fail.");
+
+            mgr.setKeys();
+
+            res = mgr.signMessage();
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+
+            if (!StressTest.runReference(StressTest.reference(workPath, "server", "generate"), true))
+                return StressTest.Result.GENERATE_FAILED;
+
+            if (!StressTest.runReference(StressTest.reference(workPath, "server", "sign"), false))
+                Assert.fail("Final signature computation should never fail.");
+
+            Assert.assertTrue(StressTest.runReference(StressTest.reference(workPath, "server", "verify"), false));
+            return StressTest.Result.OK;
+        });
     }
 
 }
@@ -0,0 +1,913 @@
+package tests.jcmathlib;
+
+import com.licel.jcardsim.base.Simulator;
+
+import org.junit.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javacard.framework.AID;
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.security.KeyBuilder;
+import javacard.security.RSAPublicKey;
+
+import javacardx.crypto.Cipher;
+
+import smpc_rsa.jcmathlib.BarrettContext;
+import smpc_rsa.jcmathlib.Bignat;
+import smpc_rsa.jcmathlib.Bignat_Helper;
+import smpc_rsa.jcmathlib.ECConfig;
+import smpc_rsa.jcmathlib.MontgomeryContext;
+import smpc_rsa.jcmathlib.RSAModMultContext;
+import smpc_rsa.jcmathlib.ReturnCodes;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test class for the {@link Bignat} arithmetic used by the applets. Results are
+ * compared with {@link BigInteger} on random and edge values.
+ */
+public class BignatTest {
+
+    private static final byte[] APPLET_AID = new byte[]{
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x01, 0x05
+    };
+
+    private static final int[] LENGTHS = new int[]{1, 2, 3, 31, 32, 33, 128};
+    private static final int RANDOM_COUNT = 20;
+
+    private static final int[][] KARATSUBA_LENGTHS = new int[][]{
+            {32, 32}, {33, 32}, {32, 63}, {64, 64}, {129, 255}, {256, 256}
+    };
+
+    // dividend and divisor lengths, including a dividend shorter than the divisor
+    private static final int[][] DIVISION_LENGTHS = new int[][]{
+            {1, 1}, {2, 1}, {3, 2}, {31, 32}, {32, 31}, {33, 32}, {64, 32}, {128, 33}, {256, 128}
+    };
+
+    // dividend and divisor, the boundary cases of the quotient digit estimate
+    private static final String[][] DIVISION_VECTORS = new String[][]{
+            // the highest digit of the divisor normalized, the highest limb 0x8000 or 0xFFFF
+            {"FEDCBA9876543210FEDCBA9876543210FF", "8000000000000001"},
+            {"FEDCBA9876543210FEDCBA9876543210FF", "800000000000000001"},
+            {"FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", "FFFFFFFFFFFFFFFF"},
+            {"FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFE", "FFFFFFFFFFFFFFFFFF"},
+            // the first estimate from the highest divisor digit is two too big
+            {"7F9E01", "81FF"},
+            {"FEFF80FE", "80FE80"},
+            {"19FFFEFE7F", "0101FE"},
+            {"7F8700FE7E00", "80A87F79FF"},
+            {"FE56FF8AFFFE80", "010189FFBC"},
+            // the estimate is still one too big after the second divisor digit, the divisor is added back
+            {"FE808800", "FF80B3"},
+            {"7180FF8044", "8001FF"},
+            {"FF000180EA01", "FF00809F94"},
+            {"FFFF00FF806C6D", "7FFF9DF700"},
+            // both of the above
+            {"EB50017F", "80FE6B"},
+            {"80FF7FFF07", "017FFF"},
+            {"FE7A017F80BF", "01017FFEFE"},
+            {"FFA780B57FFE7F", "80D57F52FF"},
+            // the dividend shorter than the divisor
+            {"FF", "0100"},
+            {"FFFF", "0000FFFE"},
+            {"123456", "800000000000000000000000000000000000000000000000000000000000000001"}
+    };
+
+    // lengths of the operands of the limb arithmetic, odd ones leave a single top digit
+    private static final int[][] LIMB_LENGTHS = new int[][]{
+            {1, 1}, {2, 1}, {3, 1}, {3, 2}, {4, 3}, {5, 5}, {31, 32}, {32, 31}, {33, 32}, {32, 32}, {33, 33}
+    };
+
+    private static final int[] MONTGOMERY_LENGTHS = new int[]{1, 2, 3, 31, 32, 33, 128, 256};
+
+    // lengths of the RSA engine keys
+    private static final int[] RSA_MOD_MULT_LENGTHS = new int[]{64, 128, 256};
+
+    private static final int[] BARRETT_LENGTHS = new int[]{1, 2, 3, 31, 32, 33, 128, 256};
+
+    private Bignat_Helper bignatHelper;
+    private Random rnd;
+
+    /**
+     * Applet installed into the simulator only to allocate the helper
+     * of the tested {@code Bignat} objects in the applet runtime.
+     */
+    public static class HelperApplet extends Applet {
+
+        static Bignat_Helper bignatHelper;
+
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new HelperApplet();
+        }
+
+        private HelperApplet() {
+            bignatHelper = new ECConfig((short) 256).bnh;
+            register();
+        }
+
+        @Override
+        public void process(APDU apdu) {
+        }
+
+    }
+
+    @BeforeClass(alwaysRun = true)
+    public void setClass() {
+        new Simulator().installApplet(new AID(APPLET_AID, (short) 0, (byte) APPLET_AID.length), HelperApplet.class);
+        bignatHelper = HelperApplet.bignatHelper;
+        rnd = new Random(0x5EED);
+    }
+
+    @Test(groups = "bignatGcd")
+    public void bignatGcd() {
+        for (int length : LENGTHS) {
+            for (BigInteger[] pair : pairs(length)) {
+                Bignat x = bignat(pair[0], length);
+                x.gcd(bignat(pair[1], length));
+
+                Assert.assertEquals(pair[0].gcd(pair[1]), value(x));
+            }
+        }
+    }
+
+    @Test(groups = "bignatGcd")
+    public void bignatIsCoprime() {
+        for (int length : LENGTHS) {
+            for (BigInteger[] pair : pairs(length)) {
+                Bignat x = bignat(pair[0], length);
+                Bignat y = bignat(pair[1], length);
+
+                Assert.assertEquals(pair[0].gcd(pair[1]).equals(BigInteger.ONE), x.is_coprime(y));
+
+                // neither value is modified
+                Assert.assertEquals(pair[0], value(x));
+                Assert.assertEquals(pair[1], value(y));
+            }
+        }
+    }
+
+    @Test(groups = "bignatGcd")
+    public void bignatModInvBinary() {
+        for (int length : LENGTHS) {
+            for (BigInteger n : oddModuli(length)) {
+                for (BigInteger a : values(length)) {
+                    if (!a.gcd(n).equals(BigInteger.ONE))
+                        continue;
+
+                    // this is not required to be reduced
+                    Bignat x = bignat(a, length);
+                    x.mod_inv_binary(bignat(n, length));
+
+                    Assert.assertEquals(a.modInverse(n), value(x));
+                }
+            }
+        }
+    }
+
+    @Test(groups = "bignatGcd")
+    public void bignatModInvBinaryNotInvertible() {
+        for (int length : LENGTHS) {
+            if (length < 2)
+                continue;
+
+            // odd multiple of three
+            BigInteger factor = BigInteger.valueOf(3);
+            BigInteger n = random(length - 1).setBit(0).multiply(factor);
+
+            for (BigInteger a : new BigInteger[]{BigInteger.ZERO, n, factor, n.subtract(factor)}) {
+                try {
+                    bignat(a, length).mod_inv_binary(bignat(n, length));
+                    Assert.fail(String.format("%s is not invertible modulo %s.", a.toString(16), n.toString(16)));
+                } catch (ISOException e) {
+                    Assert.assertEquals(ReturnCodes.SW_BIGNAT_NOTINVERTIBLE, e.getReason());
+                }
+            }
+
+            // the helpers are released, the next inversion succeeds
+            Bignat x = bignat(BigInteger.ONE, length);
+            x.mod_inv_binary(bignat(n, length));
+            Assert.assertEquals(BigInteger.ONE, value(x));
+        }
+    }
+
+    @Test(groups = "bignatGcd")
+    public void bignatModInvBinaryEvenModulus() {
+        try {
+            bignat(BigInteger.ONE, 32).mod_inv_binary(bignat(random(32).clearBit(0), 32));
+            Assert.fail("The modulus is even.");
+        } catch (ISOException e) {
+            Assert.assertEquals(ReturnCodes.SW_BIGNAT_INVALIDMODULUS, e.getReason());
+        }
+    }
+
+    @Test(groups = "bignatDivision")
+    public void bignatRemainderDivideFixed() {
+        for (int[] lengths : DIVISION_LENGTHS) {
+            for (BigInteger a : values(lengths[0])) {
+                for (BigInteger b : divisors(lengths[1])) {
+                    Bignat x = bignat(a, lengths[0]);
+                    Bignat quotient = bignat(BigInteger.ONE, lengths[0]);
+                    x.remainder_divide_fixed(bignat(b, lengths[1]), quotient);
+
+                    Assert.assertEquals(a.mod(b), value(x));
+                    Assert.assertEquals(a.divide(b), value(quotient));
+
+                    // the quotient is optional
+                    x = bignat(a, lengths[0]);
+                    x.remainder_divide_fixed(bignat(b, lengths[1]), null);
+                    Assert.assertEquals(a.mod(b), value(x));
+                }
+            }
+        }
+    }
+
+    @Test(groups = "bignatDivision")
+    public void bignatRemainderDivideSwitch() {
+        for (boolean fixed : new boolean[]{false, true}) {
+            bignatHelper.FLAG_FIXED_ITERATION_DIVISION = fixed;
+
+            try {
+                for (int[] lengths : DIVISION_LENGTHS) {
+                    for (BigInteger a : values(lengths[0])) {
+                        for (BigInteger b : divisors(lengths[1])) {
+                            Bignat x = bignat(a, lengths[0]);
+                            Bignat quotient = bignat(BigInteger.ZERO, lengths[0]);
+                            x.remainder_divide(bignat(b, lengths[1]), quotient);
+
+                            Assert.assertEquals(a.mod(b), value(x));
+                            Assert.assertEquals(a.divide(b), value(quotient));
+
+                            x = bignat(a, lengths[0]);
+                            x.mod(bignat(b, lengths[1]));
+                            Assert.assertEquals(a.mod(b), value(x));
+                        }
+                    }
+                }
+            } finally {
+                bignatHelper.FLAG_FIXED_ITERATION_DIVISION = false;
+            }
+        }
+    }
+
+    @Test(groups = "bignatDivision")
+    public void bignatRemainderDivideVectors() {
+        for (String[] vector : DIVISION_VECTORS) {
+            BigInteger a = new BigInteger(vector[0], 16);
+            BigInteger b = new BigInteger(vector[1], 16);
+            int aLength = vector[0].length() / 2;
+            int bLength = vector[1].length() / 2;
+
+            Bignat x = bignat(a, aLength);
+            Bignat quotient = bignat(BigInteger.ONE, aLength);
+            x.remainder_divide_fixed(bignat(b, bLength), quotient);
+
+            Assert.assertEquals(a.mod(b), value(x));
+            Assert.assertEquals(a.divide(b), value(quotient));
+
+            for (boolean fixed : new boolean[]{false, true}) {
+                bignatHelper.FLAG_FIXED_ITERATION_DIVISION = fixed;
+
+                try {
+                    x = bignat(a, aLength);
+                    quotient = bignat(BigInteger.ZERO, aLength);
+                    x.remainder_divide(bignat(b, bLength), quotient);
+
+                    Assert.assertEquals(a.mod(b), value(x));
+                    Assert.assertEquals(a.divide(b), value(quotient));
+                } finally {
+                    bignatHelper.FLAG_FIXED_ITERATION_DIVISION = false;
+                }
+            }
+        }
+    }
+
+    @Test(groups = "bignatKaratsuba")
+    public void bignatMultKaratsuba() {
+        // at least KARATSUBA_MULT_THRESHOLD_LENGTH digits, the shorter factor longer than a half of the longer one
+        for (int[] lengths : KARATSUBA_LENGTHS) {
+            for (BigInteger a : values(lengths[0])) {
+                for (BigInteger b : values(lengths[1])) {
+                    Bignat product = bignat(BigInteger.ZERO, lengths[0] + lengths[1]);
+                    product.mult_karatsuba(bignat(a, lengths[0]), bignat(b, lengths[1]));
+
+                    Assert.assertEquals(a.multiply(b), value(product));
+                }
+            }
+        }
+    }
+
+    @Test(groups = "bignatKaratsuba")
+    public void bignatMult() {
+        // all algorithms selected by mult
+        List<int[]> lengths = new ArrayList<>(Arrays.asList(KARATSUBA_LENGTHS));
+        lengths.add(new int[]{1, 1});
+        lengths.add(new int[]{3, 31});
+        lengths.add(new int[]{32, 128});
+
+        for (int[] l : lengths) {
+            for (BigInteger a : values(l[0])) {
+                for (BigInteger b : values(l[1])) {
+                    Bignat x = bignat(a, l[0]);
+                    Bignat y = bignat(b, l[1]);
+
+                    Bignat product = bignat(BigInteger.ZERO, l[0] + l[1]);
+                    product.mult(x, y);
+                    Assert.assertEquals(a.multiply(b), value(product));
+
+                    product.mult_schoolbook(x, y);
+                    Assert.assertEquals(a.multiply(b), value(product));
+                }
+            }
+        }
+    }
+
+    @Test(groups = "bignatLimbs")
+    public void bignatAdd() {
+        for (int[] lengths : LIMB_LENGTHS) {
+            if (lengths[0] < lengths[1])
+                continue;
+
+            BigInteger base = BigInteger.ONE.shiftLeft(8 * lengths[0]);
+            for (BigInteger a : values(lengths[0])) {
+                for (BigInteger b : values(lengths[1])) {
+                    BigInteger sum = a.add(b);
+
+                    Bignat x = bignat(a, lengths[0]);
+                    Assert.assertEquals(sum.compareTo(base) >= 0, x.add_carry(bignat(b, lengths[1])));
+                    Assert.assertEquals(sum.mod(base), value(x));
+
+                    // odd offsets, the surrounding digits are not modified
+                    byte[] xArray = array(a, lengths[0], 1);
+                    byte[] yArray = array(b, lengths[1], 3);
+                    boolean carry = Bignat.add(xArray, (short) 1, (short) lengths[0], yArray, (short) 3, (short) lengths[1]);
+
+                    Assert.assertEquals(sum.compareTo(base) >= 0, carry);
+                    Assert.assertArrayEquals(array(sum.mod(base), lengths[0], 1), xArray);
+                }
+            }
+        }
+    }
+
+    @Test(groups = "bignatLimbs")
+    public void bignatSubtract() {
+        for (int[] lengths : LIMB_LENGTHS) {
+            if (lengths[0] < lengths[1])
+                continue;
+
+            BigInteger base = BigInteger.ONE.shiftLeft(8 * lengths[0]);
+            List<BigInteger[]> pairs = new ArrayList<>();
+            for (BigInteger a : values(lengths[0])) {
+                for (BigInteger b : values(lengths[1]))
+                    pairs.add(new BigInteger[]{a, b});
+            }
+
+            // the borrow runs through all zero digits
+            pairs.add(new BigInteger[]{BigInteger.ONE.shiftLeft(8 * (lengths[0] - 1)), BigInteger.ONE});
+            pairs.add(new BigInteger[]{BigInteger.ZERO, BigInteger.ONE});
+            pairs.add(new BigInteger[]{
+                    BigInteger.ONE.shiftLeft(8 * (lengths[0] - 1)).add(BigInteger.valueOf(0x0100)).mod(base),
+                    BigInteger.valueOf(0x01FF).mod(BigInteger.ONE.shiftLeft(8 * lengths[1]))
+            });
+
+            for (BigInteger[] pair : pairs) {
+                BigInteger difference = pair[0].subtract(pair[1]).mod(base);
+
+                Bignat x = bignat(pair[0], lengths[0]);
+                x.subtract(bignat(pair[1], lengths[1]));
+                Assert.assertEquals(difference, value(x));
+
+                byte[] xArray = array(pair[0], lengths[0], 1);
+                byte[] yArray = array(pair[1], lengths[1], 3);
+                boolean borrow = Bignat.subtract(xArray, (short) 1, (short) lengths[0], yArray, (short) 3, (short) lengths[1]);
+
+                Assert.assertEquals(pair[0].compareTo(pair[1]) < 0, borrow);
+                Assert.assertArrayEquals(array(difference, lengths[0], 1), xArray);
+            }
+        }
+    }
+
+    @Test(groups = "bignatLimbs")
+    public void bignatTimesMinus() {
+        for (int[] lengths : LIMB_LENGTHS) {
+            for (int shift = 0; lengths[1] + shift <= lengths[0]; shift++) {
+                BigInteger max = BigInteger.ONE.shiftLeft(8 * lengths[0]);
+
+                for (BigInteger b : values(lengths[1])) {
+                    for (int mult : new int[]{0, 1, 0x80, 0xFF, rnd.nextInt(0x100)}) {
+                        BigInteger subtrahend = b.multiply(BigInteger.valueOf(mult)).shiftLeft(8 * shift);
+                        if (subtrahend.compareTo(max) >= 0)
+                            continue;
+
+                        // the result is not negative, the lowest and the highest minuend
+                        BigInteger room = max.subtract(subtrahend);
+                        for (BigInteger a : new BigInteger[]{
+                                subtrahend, max.subtract(BigInteger.ONE), subtrahend.add(new BigInteger(8 * lengths[0], rnd).mod(room))
+                        }) {
+                            Bignat x = bignat(a, lengths[0]);
+                            x.times_minus(bignat(b, lengths[1]), (short) shift, (short) mult);
+
+                            Assert.assertEquals(a.subtract(subtrahend), value(x));
+                        }
+                    }
+                }
+            }
+
+            // the borrow runs through all zero digits
+            if (lengths[1] <= lengths[0]) {
+                Bignat x = bignat(BigInteger.ONE.shiftLeft(8 * (lengths[0] - 1)), lengths[0]);
+                x.times_minus(bignat(BigInteger.ONE, lengths[1]), (short) 0, (short) 1);
+                Assert.assertEquals(BigInteger.ONE.shiftLeft(8 * (lengths[0] - 1)).subtract(BigInteger.ONE), value(x));
+            }
+        }
+    }
+
+    @Test(groups = "bignatLimbs")
+    public void bignatTimesAddShift() {
+        for (int[] lengths : LIMB_LENGTHS) {
+            // the size of this is at least x.size + shift + 1
+            for (int shift = 0; lengths[1] + shift < lengths[0]; shift++) {
+                // no digit above the one receiving the last carry is set
+                BigInteger bound = BigInteger.ONE.shiftLeft(8 * (lengths[1] + shift));
+
+                for (BigInteger b : values(lengths[1])) {
+                    for (int mult : new int[]{0, 1, 0x80, 0xFF, rnd.nextInt(0x100)}) {
+                        for (BigInteger a : new BigInteger[]{
+                                BigInteger.ZERO, bound.subtract(BigInteger.ONE), new BigInteger(8 * lengths[0], rnd).mod(bound)
+                        }) {
+                            Bignat x = bignat(a, lengths[0]);
+                            x.times_add_shift(bignat(b, lengths[1]), (short) shift, (short) mult);
+
+                            Assert.assertEquals(a.add(b.multiply(BigInteger.valueOf(mult)).shiftLeft(8 * shift)), value(x));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(groups = "bignatSqr")
+    public void bignatSqr() {
+        // the engine is used only if it has passed the self test
+        boolean engine = bignatHelper.FLAG_FAST_MULT_VIA_RSA;
+
+        for (boolean fast : new boolean[]{false, engine}) {
+            bignatHelper.FLAG_FAST_MULT_VIA_RSA = fast;
+
+            try {
+                for (int length : LENGTHS) {
+                    for (BigInteger a : values(length)) {
+                        // without and with leading zero digits
+                        for (int xLength : new int[]{length, length + 2}) {
+                            Bignat x = bignat(a, xLength);
+                            Bignat square = bignat(BigInteger.ONE, 2 * xLength);
+
+                            square.sqr(x);
+                            Assert.assertEquals(a.pow(2), value(square));
+
+                            square.sqr_schoolbook(x);
+                            Assert.assertEquals(a.pow(2), value(square));
+
+                            square.mult(x, x);
+                            Assert.assertEquals(a.pow(2), value(square));
+
+                            // x is not modified
+                            Assert.assertEquals(a, value(x));
+                        }
+                    }
+                }
+            } finally {
+                bignatHelper.FLAG_FAST_MULT_VIA_RSA = engine;
+            }
+        }
+    }
+
+    @Test(groups = "bignatSqr")
+    public void bignatModSqr() {
+        // the square has to fit into the helper of mod_mult
+        for (int length : new int[]{1, 2, 3, 31, 32}) {
+            for (BigInteger n : moduli(length)) {
+                for (BigInteger a : values(length)) {
+                    // not reduced
+                    Bignat x = bignat(a, length);
+                    Bignat result = bignat(BigInteger.ZERO, length);
+                    result.mod_mult(x, x, bignat(n, length));
+
+                    Assert.assertEquals(a.pow(2).mod(n), value(result));
+                }
+            }
+        }
+    }
+
+    @Test(groups = "bignatMontgomery")
+    public void bignatMontgomery() {
+        for (int length : MONTGOMERY_LENGTHS) {
+            MontgomeryContext ctx = new MontgomeryContext((short) length, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+            BigInteger r = BigInteger.ONE.shiftLeft(8 * length);
+
+            for (BigInteger n : montgomeryModuli(length)) {
+                ctx.set_modulus(bignat(n, length));
+                BigInteger rInverse = r.modInverse(n);
+
+                // n - 1, 0, 1 and random reduced values
+                List<BigInteger> reduced = new ArrayList<>(Arrays.asList(n.subtract(BigInteger.ONE), BigInteger.ZERO, BigInteger.ONE));
+                for (int i = 0; i < 3; i++)
+                    reduced.add(new BigInteger(8 * length, rnd).mod(n));
+
+                // the first factor is not required to be reduced
+                List<BigInteger> unreduced = new ArrayList<>(reduced);
+                unreduced.add(n);
+                unreduced.add(r.subtract(BigInteger.ONE));
+                unreduced.add(n.add(new BigInteger(8 * length, rnd).mod(r.subtract(n))));
+
+                for (BigInteger a : unreduced) {
+                    Bignat x = bignat(a, length);
+                    Bignat result = bignat(BigInteger.ZERO, length);
+
+                    result.to_montgomery(x, ctx);
+                    Assert.assertEquals(a.multiply(r).mod(n), value(result));
+
+                    for (BigInteger b : reduced) {
+                        Bignat y = bignat(b, length);
+
+                        result.mont_mult(x, y, ctx);
+                        Assert.assertEquals(a.multiply(b).multiply(rInverse).mod(n), value(result));
+
+                        result.mod_mult(x, y, ctx);
+                        Assert.assertEquals(a.multiply(b).mod(n), value(result));
+
+                        // neither value is modified
+                        Assert.assertEquals(a, value(x));
+                        Assert.assertEquals(b, value(y));
+                    }
+                }
+
+                // this is one of the factors
+                BigInteger b = reduced.get(reduced.size() - 1);
+                Bignat y = bignat(b, length);
+                y.mont_mult(y, y, ctx);
+                Assert.assertEquals(b.multiply(b).multiply(rInverse).mod(n), value(y));
+            }
+        }
+    }
+
+    @Test(groups = "bignatMontgomery")
+    public void bignatMontgomeryEvenModulus() {
+        MontgomeryContext ctx = new MontgomeryContext((short) 32, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+
+        try {
+            ctx.set_modulus(bignat(random(32).setBit(255).clearBit(0), 32));
+            Assert.fail("The modulus is even.");
+        } catch (ISOException e) {
+            Assert.assertEquals(ReturnCodes.SW_BIGNAT_INVALIDMODULUS, e.getReason());
+        }
+    }
+
+    @Test(groups = "bignatRsaModMult")
+    public void bignatModMultRsa() {
+        for (int length : RSA_MOD_MULT_LENGTHS) {
+            RSAModMultContext ctx = new RSAModMultContext((short) length, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+
+            for (int i = 0; i < 4; i++) {
+                BigInteger n = random(length).setBit(8 * length - 1).setBit(0);
+                ctx.set_modulus(bignat(n, length));
+                Assert.assertTrue(ctx.is_available());
+
+                BigInteger last = n.subtract(BigInteger.ONE);
+                BigInteger half = n.shiftRight(1);
+                List<BigInteger[]> pairs = new ArrayList<>();
+                // x lesser than y, x + y at least n and the squares with leading zero digits
+                pairs.add(new BigInteger[]{BigInteger.ONE, last});
+                pairs.add(new BigInteger[]{last, last});
+                pairs.add(new BigInteger[]{half, half.add(BigInteger.ONE)});
+                pairs.add(new BigInteger[]{half.add(BigInteger.ONE), half.add(BigInteger.ONE)});
+                pairs.add(new BigInteger[]{BigInteger.ZERO, last});
+                pairs.add(new BigInteger[]{BigInteger.ZERO, BigInteger.ZERO});
+                pairs.add(new BigInteger[]{BigInteger.ONE, BigInteger.ONE});
+                pairs.add(new BigInteger[]{BigInteger.ONE.shiftLeft(8 * (length / 2 - 1)), BigInteger.ONE.shiftLeft(8 * (length / 2 - 1))});
+
+                for (int j = 0; j < RANDOM_COUNT / 2; j++) {
+                    BigInteger a = new BigInteger(8 * length, rnd).mod(n);
+                    BigInteger b = new BigInteger(8 * length, rnd).mod(n);
+                    pairs.add(new BigInteger[]{a, b});
+                    pairs.add(new BigInteger[]{b, a});
+                }
+
+                for (BigInteger[] pair : pairs) {
+                    Bignat x = bignat(pair[0], length);
+                    Bignat y = bignat(pair[1], length);
+                    Bignat result = bignat(BigInteger.ONE, length);
+
+                    result.mod_mult(x, y, ctx);
+                    Assert.assertEquals(pair[0].multiply(pair[1]).mod(n), value(result));
+
+                    // neither value is modified
+                    Assert.assertEquals(pair[0], value(x));
+                    Assert.assertEquals(pair[1], value(y));
+
+                    // this is one of the factors
+                    x.mod_mult(x, y, ctx);
+                    Assert.assertEquals(pair[0].multiply(pair[1]).mod(n), value(x));
+                }
+            }
+        }
+    }
+
+    @Test(groups = "bignatRsaModMult")
+    public void bignatMultCipherSelfTest() {
+        int length = bignatHelper.MULT_RSA_ENGINE_MAX_LENGTH_BITS / 8;
+        int k = length / 2 - 1;
+
+        // the largest value of the self test, the engine has to keep the leading zero digits of its square
+        RSAPublicKey key = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, (short) (length * 8), false);
+        byte[] modulus = new byte[length];
+        Arrays.fill(modulus, (byte) 0xFF);
+        key.setModulus(modulus, (short) 0, (short) length);
+        key.setExponent(new byte[]{0x02}, (short) 0, (short) 1);
+
+        Cipher cipher = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
+        cipher.init(key, Cipher.MODE_ENCRYPT);
+
+        BigInteger x = BigInteger.ONE.shiftLeft(8 * k).subtract(BigInteger.ONE);
+        byte[] buffer = array(x, length, 0);
+        short resultLength = cipher.doFinal(buffer, (short) 0, (short) length, buffer, (short) 0);
+
+        boolean correct = resultLength == length
+                && x.pow(2).equals(new BigInteger(1, Arrays.copyOf(buffer, length)));
+        Assert.assertEquals(correct, bignatHelper.FLAG_FAST_MULT_VIA_RSA);
+
+        if (!bignatHelper.FLAG_FAST_MULT_VIA_RSA)
+            return;
+
+        // the shortest and the longest factors multiplied by the engine
+        for (int[] lengths : new int[][]{{16, 16}, {16, k}, {k, k}}) {
+            for (BigInteger a : values(lengths[0])) {
+                for (BigInteger b : values(lengths[1])) {
+                    Bignat product = bignat(BigInteger.ZERO, lengths[0] + lengths[1]);
+                    product.mult_RSATrick(bignat(a, lengths[0]), bignat(b, lengths[1]));
+
+                    Assert.assertEquals(a.multiply(b), value(product));
+                }
+            }
+        }
+    }
+
+    @Test(groups = "bignatRsaModMult")
+    public void bignatModMultRsaErased() {
+        RSAModMultContext ctx = new RSAModMultContext((short) 64, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+        Assert.assertFalse(ctx.is_available());
+
+        ctx.set_modulus(bignat(random(64).setBit(511).setBit(0), 64));
+        Assert.assertTrue(ctx.is_available());
+
+        ctx.erase();
+        Assert.assertFalse(ctx.is_available());
+
+        // the helpers are released, the next modulus is accepted
+        ctx.set_modulus(bignat(random(64).setBit(511).setBit(0), 64));
+        Assert.assertTrue(ctx.is_available());
+    }
+
+    @Test(groups = "bignatBarrett")
+    public void bignatModBarrett() {
+        for (boolean fixed : new boolean[]{false, true}) {
+            bignatHelper.FLAG_FIXED_ITERATION_DIVISION = fixed;
+
+            try {
+                for (int length : BARRETT_LENGTHS) {
+                    BarrettContext ctx = new BarrettContext((short) length, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+
+                    for (BigInteger n : moduli(length)) {
+                        ctx.set_modulus(bignat(n, length));
+
+                        // shorter, equal, double and too long to be reduced without a division
+                        for (int xLength : new int[]{Math.max(length - 1, 1), length, 2 * length, 2 * length + 1}) {
+                            for (BigInteger a : values(xLength)) {
+                                Bignat x = bignat(a, xLength);
+                                x.mod(ctx);
+
+                                Assert.assertEquals(a.mod(n), value(x));
+                            }
+                        }
+                    }
+                }
+            } finally {
+                bignatHelper.FLAG_FIXED_ITERATION_DIVISION = false;
+            }
+        }
+    }
+
+    @Test(groups = "bignatBarrett")
+    public void bignatModMultBarrett() {
+        for (int length : BARRETT_LENGTHS) {
+            BarrettContext ctx = new BarrettContext((short) length, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+
+            for (BigInteger n : moduli(length)) {
+                ctx.set_modulus(bignat(n, length));
+
+                List<BigInteger> values = values(length);
+                for (int i = 0; i < values.size(); i++) {
+                    BigInteger a = values.get(i).mod(n);
+                    BigInteger b = values.get((i + 1) % values.size()).mod(n);
+
+                    Bignat result = bignat(BigInteger.ZERO, length);
+                    result.mod_mult(bignat(a, length), bignat(b, length), ctx);
+
+                    Assert.assertEquals(a.multiply(b).mod(n), value(result));
+                }
+            }
+        }
+    }
+
+    @Test(groups = "bignatBarrett")
+    public void bignatBarrettLeadingZero() {
+        BarrettContext ctx = new BarrettContext((short) 32, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+
+        try {
+            ctx.set_modulus(bignat(random(31), 32));
+            Assert.fail("The leading digit of the modulus is zero.");
+        } catch (ISOException e) {
+            Assert.assertEquals(ReturnCodes.SW_BIGNAT_INVALIDMODULUS, e.getReason());
+        }
+
+        // the helper is released, the next modulus is accepted
+        BigInteger n = random(32).setBit(255);
+        ctx.set_modulus(bignat(n, 32));
+
+        Bignat x = bignat(n.add(BigInteger.ONE), 32);
+        x.mod(ctx);
+        Assert.assertEquals(BigInteger.ONE, value(x));
+    }
+
+    /**
+     * Returns nonzero divisors of given length, including ones with leading zero digits
+     */
+    private List<BigInteger> divisors(int length) {
+        List<BigInteger> divisors = new ArrayList<>();
+        for (BigInteger value : values(length)) {
+            if (value.signum() != 0)
+                divisors.add(value);
+        }
+
+        // the highest digit normalized to the highest bit and the lowest one
+        divisors.add(BigInteger.ONE.shiftLeft(8 * length - 1));
+        divisors.add(BigInteger.valueOf(0xFF));
+        divisors.add(random((length + 1) / 2).max(BigInteger.ONE));
+        return divisors;
+    }
+
+    /**
+     * Returns moduli of given length with a nonzero leading digit, i.e., odd and even ones,
+     * the lowest one b^(k-1) and the highest one
+     */
+    private List<BigInteger> moduli(int length) {
+        BigInteger lowest = BigInteger.ONE.shiftLeft(8 * (length - 1));
+
+        List<BigInteger> moduli = new ArrayList<>();
+        moduli.add(lowest);
+        moduli.add(lowest.add(BigInteger.ONE));
+        moduli.add(BigInteger.ONE.shiftLeft(8 * length).subtract(BigInteger.ONE));
+        moduli.add(BigInteger.ONE.shiftLeft(8 * length).subtract(BigInteger.valueOf(2)));
+
+        for (int i = 0; i < RANDOM_COUNT / 2; i++) {
+            BigInteger n = random(length).max(lowest).setBit(8 * length - 1 - rnd.nextInt(8));
+            moduli.add(i % 2 == 0 ? n.setBit(0) : n.clearBit(0).max(lowest));
+        }
+
+        return moduli;
+    }
+
+    /**
+     * Returns odd moduli of given length, the lowest and the highest one
+     * and random ones with and without the highest bit set
+     */
+    private List<BigInteger> montgomeryModuli(int length) {
+        List<BigInteger> moduli = new ArrayList<>();
+        moduli.add(BigInteger.ONE.shiftLeft(8 * length).subtract(BigInteger.ONE));
+        if (length > 1)
+            moduli.add(BigInteger.ONE.shiftLeft(8 * (length - 1)).add(BigInteger.ONE));
+
+        for (int i = 0; i < 4; i++) {
+            BigInteger n = random(length).setBit(0);
+            moduli.add(i % 2 == 0 ? n.setBit(8 * length - 1) : n);
+        }
+
+        moduli.remove(BigInteger.ONE);
+        return moduli;
+    }
+
+    /**
+     * Returns random values of given length together with zero, one, all ones
+     * and the lowest value of given length
+     */
+    private List<BigInteger> values(int length) {
+        List<BigInteger> values = new ArrayList<>();
+        values.add(BigInteger.ZERO);
+        values.add(BigInteger.ONE);
+        values.add(BigInteger.ONE.shiftLeft(8 * length).subtract(BigInteger.ONE));
+        values.add(BigInteger.ONE.shiftLeft(8 * (length - 1)));
+
+        for (int i = 0; i < RANDOM_COUNT; i++)
+            values.add(random(length));
+
+        return values;
+    }
+
+    /**
+     * Returns odd moduli of given length, including the lowest and the highest one
+     */
+    private List<BigInteger> oddModuli(int length) {
+        List<BigInteger> moduli = new ArrayList<>();
+        for (BigInteger value : values(length)) {
+            if (value.testBit(0) && !value.equals(BigInteger.ONE))
+                moduli.add(value);
+        }
+
+        if (length > 1)
+            moduli.add(BigInteger.ONE.shiftLeft(8 * (length - 1)).add(BigInteger.ONE));
+
+        return moduli;
+    }
+
+    /**
+     * Returns pairs of values of given length, including even values and pairs
+     * with a common factor
+     */
+    private List<BigInteger[]> pairs(int length) {
+        List<BigInteger[]> pairs = new ArrayList<>();
+        List<BigInteger> values = values(length);
+
+        for (int i = 0; i < values.size(); i++)
+            pairs.add(new BigInteger[]{values.get(i), values.get((i + 1) % values.size())});
+
+        // half of the bits for the common factor, three bits for the even values
+        int bits = 4 * length;
+        for (int i = 0; i < RANDOM_COUNT; i++) {
+            BigInteger factor = new BigInteger(bits, rnd).max(BigInteger.ONE);
+            BigInteger[] pair = new BigInteger[]{
+                    new BigInteger(bits - 3, rnd).multiply(factor), new BigInteger(bits - 3, rnd).multiply(factor)
+            };
+            if (i % 2 == 0) {
+                pair[0] = pair[0].shiftLeft(1);
+                pair[1] = pair[1].shiftLeft(3);
+            }
+
+            pairs.add(pair);
+        }
+
+        return pairs;
+    }
+
+    /**
+     * Returns a random value lesser than 2^(8 * length)
+     */
+    private BigInteger random(int length) {
+        return new BigInteger(8 * length, rnd);
+    }
+
+    /**
+     * Allocates the {@code Bignat} of given length with given value
+     */
+    private Bignat bignat(BigInteger value, int length) {
+        // both memory types are plain arrays in the simulator
+        Bignat bignat = new Bignat((short) length, JCSystem.MEMORY_TYPE_PERSISTENT, bignatHelper);
+
+        byte[] bytes = value.toByteArray();
+        int start = bytes.length > 1 && bytes[0] == 0x00 ? 1 : 0;
+        int count = bytes.length - start;
+        if (count > length)
+            throw new IllegalArgumentException(String.format("%s does not fit into %d bytes.", value.toString(16), length));
+
+        System.arraycopy(bytes, start, bignat.as_byte_array(), length - count, count);
+        return bignat;
+    }
+
+    /**
+     * Returns an array with the value of given length at given offset, surrounded by 0xA5 digits
+     */
+    private static byte[] array(BigInteger value, int length, int offset) {
+        byte[] array = new byte[offset + length + 2];
+        Arrays.fill(array, (byte) 0xA5);
+        Arrays.fill(array, offset, offset + length, (byte) 0x00);
+
+        byte[] bytes = value.toByteArray();
+        int start = bytes.length > 1 && bytes[0] == 0x00 ? 1 : 0;
+        int count = bytes.length - start;
+        System.arraycopy(bytes, start, array, offset + length - count, count);
+        return array;
+    }
+
+    private static BigInteger value(Bignat bignat) {
+        byte[] bytes = new byte[bignat.length()];
+        System.arraycopy(bignat.as_byte_array(), 0, bytes, 0, bytes.length);
+        return new BigInteger(1, bytes);
+    }
+
+}
@@ -1,16 +1,20 @@
 package tests.server;
 
+import cardTools.CardManager;
+import cardTools.RunConfig;
 import cardTools.Util;
 
 import smpc_rsa.RSAServer;
 
 import tests.AbstractMgr;
+import tests.CardPool;
 
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -22,7 +26,9 @@ import java.io.OutputStreamWriter;
 import java.math.BigInteger;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Instruction handler of the {@link RSAServer} applet
@@ -34,6 +40,8 @@ import java.util.List;
 public class ServerMgr extends AbstractMgr {
 
     public static final byte CLA_RSA_SMPC_SERVER = (byte) 0x80;
+    public static final byte CLA_RSA_SMPC_SERVER_CHAINING = (byte) 0x90;
+    public static final byte CLA_GET_RESPONSE = 0x00;
 
     public static final byte INS_GENERATE_KEYS = 0x10;
     public static final byte INS_SET_CLIENT_KEYS = 0x12;
@@ -42,6 +50,9 @@ public class ServerMgr extends AbstractMgr {
     public static final byte INS_SIGNATURE = 0x18;
     public static final byte INS_GET_SIGNATURE = 0x20;
     public static final byte INS_RESET = 0x22;
+    public static final byte INS_SIGN_AND_GET_SIGNATURE = 0x24;
+    public static final byte INS_SELECT_SLOT = 0x28;
+    public static final byte INS_GET_RESPONSE = (byte) 0xC0;
 
     public static final byte P1_SET_D1_SERVER = 0x00;
     public static final byte P1_SET_N1 = 0x01;
@@ -49,8 +60,23 @@ public class ServerMgr extends AbstractMgr {
     public static final byte P1_SET_MESSAGE = 0x00;
     public static final byte P1_SET_SIGNATURE = 0x01;
 
+    public static final byte POLICY_STRICT = 0x00;
+    public static final byte POLICY_DEFERRED = 0x01;
+    public static final byte POLICY_SAMPLED = 0x02;
+
+    public static final int SW_SHARE_NOT_VERIFIED = 0x6301;
+
+    public static final int DEFAULT_SLOT_COUNT = 4;
+    public static final int MAX_SLOT_COUNT = 8;
+
+    public static final byte OPTION_FIXED_ITERATION_DIVISION = 0x01;
+    public static final byte OPTION_MONTGOMERY_MULT = 0x02;
+
     public static final String APPLET_AID = "0102030405060708090104";
 
+    private static final int SW1_BYTES_REMAINING = 0x61;
+    private static final int SW_NO_ERROR = 0x9000;
+
     /**
      * Creates connection to the {@link RSAServer} applet
      *
@@ -58,7 +84,79 @@ public class ServerMgr extends AbstractMgr {
      * @throws Exception if card error occurs
      */
     public ServerMgr(boolean realCard) throws Exception {
-        super(APPLET_AID, RSAServer.class, realCard);
+        this(realCard, 0);
+    }
+
+    /**
+     * Creates connection to the {@link RSAServer} applet
+     *
+     * @param realCard decides whether to use real card or emulator
+     * @param readerIndex index of the reader with the real card
+     * @throws Exception if card error occurs
+     */
+    public ServerMgr(boolean realCard, int readerIndex) throws Exception {
+        super(APPLET_AID, RSAServer.class, realCard, readerIndex);
+    }
+
+    /**
+     * Creates connection to the {@link RSAServer} applet with given run configuration
+     *
+     * @param runCfg run configuration, see {@link #createInstallData(byte, int, int)}
+     * @throws Exception if card error occurs
+     */
+    public ServerMgr(RunConfig runCfg) throws Exception {
+        super(APPLET_AID, runCfg);
+    }
+
+    /**
+     * Uses given connection to the {@link RSAServer} applet, e.g. a card of the {@link CardPool}
+     *
+     * @param cardMgr connected card manager with the applet selected
+     */
+    public ServerMgr(CardManager cardMgr) {
+        super(cardMgr);
+    }
+
+    /**
+     * Creates the installation parameters of the {@link RSAServer} applet with given
+     * verification policy of the client signature share
+     *
+     * @param policy   one of the {@code POLICY_*} constants
+     * @param interval every interval-th share is verified by the {@code POLICY_SAMPLED} policy,
+     *                 zero otherwise
+     * @return installation parameters with empty AID and control info
+     */
+    public static byte[] createInstallData(byte policy, int interval) {
+        return createInstallData(policy, interval, DEFAULT_SLOT_COUNT);
+    }
+
+    /**
+     * Creates the installation parameters of the {@link RSAServer} applet with given
+     * verification policy of the client signature share and number of key slots
+     *
+     * @param policy    one of the {@code POLICY_*} constants
+     * @param interval  every interval-th share is verified by the {@code POLICY_SAMPLED} policy,
+     *                  zero otherwise
+     * @param slotCount number of key slots
+     * @return installation parameters with empty AID and control info
+     */
+    public static byte[] createInstallData(byte policy, int interval, int slotCount) {
+        return createInstallData(policy, interval, slotCount, (byte) 0x00);
+    }
+
+    /**
+     * Creates the installation parameters of the {@link RSAServer} applet with given
+     * verification policy of the client signature share, number of key slots and options
+     *
+     * @param policy    one of the {@code POLICY_*} constants
+     * @param interval  every interval-th share is verified by the {@code POLICY_SAMPLED} policy,
+     *                  zero otherwise
+     * @param slotCount number of key slots
+     * @param options   combination of the {@code OPTION_*} constants
+     * @return installation parameters with empty AID and control info
+     */
+    public static byte[] createInstallData(byte policy, int interval, int slotCount, byte options) {
+        return new byte[]{0x00, 0x00, 0x04, policy, (byte) interval, (byte) slotCount, options};
     }
 
     /**
@@ -75,6 +173,21 @@ public class ServerMgr extends AbstractMgr {
         return res;
     }
 
+    /**
+     * Selects the key slot used by all following commands
+     *
+     * @param slot index of the slot
+     * @throws Exception if IO or card error occurs
+     */
+    public ResponseAPDU selectSlot(int slot) throws Exception {
+        ResponseAPDU res = transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SELECT_SLOT, slot, NONE
+        ));
+        handleError(res, "Select slot");
+
+        return res;
+    }
+
     /**
      * Sets server share of client keys
      *
@@ -84,7 +197,7 @@ public class ServerMgr extends AbstractMgr {
         List<CommandAPDU> setD1ServerCmd;
         List<CommandAPDU> setN1Cmd;
 
-        try (InputStream in = new FileInputStream(CLIENT_KEYS_SERVER_FILE_PATH)) {
+        try (InputStream in = new FileInputStream(getFilePath(CLIENT_KEYS_SERVER_FILE))) {
             BufferedReader reader = new BufferedReader(new InputStreamReader(in));
 
             byte[] num = Util.hexStringToByteArray(reader.readLine());
@@ -104,7 +217,7 @@ public class ServerMgr extends AbstractMgr {
             setN1Cmd = setNumber(num, CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_KEYS, P1_SET_N1);
 
             if (reader.readLine() != null)
-                throw new IOException(String.format("Wrong '%s' file format.", CLIENT_KEYS_SERVER_FILE_PATH));
+                throw new IOException(String.format("Wrong '%s' file format.", getFilePath(CLIENT_KEYS_SERVER_FILE)));
         }
 
         transmitNumber(setD1ServerCmd, "SetD1Server");
@@ -118,12 +231,9 @@ public class ServerMgr extends AbstractMgr {
      * @throws Exception if IO or card error occurs
      */
     public List<ResponseAPDU> getPublicModulus() throws Exception {
-        List<ResponseAPDU> res = new ArrayList<>();
+        List<ResponseAPDU> res = getLongNum(INS_GET_PUBLIC_MODULUS);
 
-        res.add(transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_GET_PUBLIC_MODULUS, NONE, P2_PART_0)));
-        res.add(transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_GET_PUBLIC_MODULUS, NONE, P2_PART_1)));
-
-        try (OutputStream out = new FileOutputStream(PUBLIC_KEY_FILE_PATH)) {
+        try (OutputStream out = new FileOutputStream(getFilePath(PUBLIC_KEY_FILE))) {
             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
             writer.write(String.format("%s%n", "10001")); //hardcoded E
             for (ResponseAPDU r: res) {
@@ -143,11 +253,10 @@ public class ServerMgr extends AbstractMgr {
      * @throws Exception if IO or card error occurs
      */
     public ResponseAPDU signMessage() throws Exception {
-        List<CommandAPDU> messageCmd;
-        List<CommandAPDU> clientSigCmd;
+        CompletableFuture<Void> transmitted;
         String message;
 
-        try (InputStream in = new FileInputStream(CLIENT_SIG_SHARE_FILE_PATH)) {
+        try (InputStream in = new FileInputStream(getFilePath(CLIENT_SIG_SHARE_FILE))) {
             BufferedReader reader = new BufferedReader(new InputStreamReader(in));
 
             message = reader.readLine();
@@ -156,30 +265,38 @@ public class ServerMgr extends AbstractMgr {
             if (num.length > ARR_LENGTH)
                 throw new IllegalArgumentException("Message cannot be larger than the modulus.");
 
-            messageCmd = setNumber(num, CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE);
+            // the card receives the message while the signature share is being read
+            transmitted = transmitNumberAsync(
+                    setNumber(num, CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE), "Set message"
+            );
 
             num = Util.hexStringToByteArray(reader.readLine());
 
-            if (num.length > ARR_LENGTH)
+            if (num.length > ARR_LENGTH) {
+                await(transmitted);
                 throw new IllegalArgumentException("Client signature share cannot be larger than the modulus.");
+            }
 
-            clientSigCmd = setNumber(num, CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_SIGNATURE);
+            List<CommandAPDU> clientSigCmd = setNumber(
+                    num, CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_SIGNATURE
+            );
 
-            if (reader.readLine() != null)
-                throw new IOException(String.format("Wrong '%s' file format.", CLIENT_SIG_SHARE_FILE_PATH));
+            if (reader.readLine() != null) {
+                await(transmitted);
+                throw new IOException(String.format("Wrong '%s' file format.", getFilePath(CLIENT_SIG_SHARE_FILE)));
+            }
+
+            transmitted = transmitNumberAsync(clientSigCmd, "Set client signature", transmitted);
         }
 
-        transmitNumber(messageCmd, "Set message");
-        transmitNumber(clientSigCmd, "Set client signature");
+        await(transmitted);
 
         ResponseAPDU res = transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE));
 
         //response check
-        ArrayList<ResponseAPDU> responses = new ArrayList<>();
-        responses.add(transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_GET_SIGNATURE, NONE, P2_PART_0)));
-        responses.add(transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_GET_SIGNATURE, NONE, P2_PART_1)));
+        List<ResponseAPDU> responses = getLongNum(INS_GET_SIGNATURE);
 
-        try (OutputStream out = new FileOutputStream(FINAL_SIG_FILE_PATH)) {
+        try (OutputStream out = new FileOutputStream(getFilePath(FINAL_SIG_FILE))) {
             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
             writer.write(String.format("%s%n", message));
 
@@ -194,4 +311,107 @@ public class ServerMgr extends AbstractMgr {
         return res;
     }
 
+    /**
+     * Computes final signature of given message using a single instruction. The message
+     * and client signature share are sent together in one extended length APDU
+     * or divided by the command chaining. The rest of the signature that did not fit
+     * into the response is retrieved by the GET RESPONSE command.
+     *
+     * @return response with the whole final signature, with the {@code SW_SHARE_NOT_VERIFIED}
+     *         status if the client signature share has not been verified
+     * @throws Exception if IO or card error occurs
+     */
+    public ResponseAPDU signAndGetSignature() throws Exception {
+        byte[] data = new byte[ARR_LENGTH * 2];
+        String message;
+
+        try (InputStream in = new FileInputStream(getFilePath(CLIENT_SIG_SHARE_FILE))) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+
+            message = reader.readLine();
+            byte[] num = Util.hexStringToByteArray(message);
+
+            if (num.length > ARR_LENGTH)
+                throw new IllegalArgumentException("Message cannot be larger than the modulus.");
+
+            System.arraycopy(num, 0, data, ARR_LENGTH - num.length, num.length);
+
+            num = Util.hexStringToByteArray(reader.readLine());
+
+            if (num.length > ARR_LENGTH)
+                throw new IllegalArgumentException("Client signature share cannot be larger than the modulus.");
+
+            System.arraycopy(num, 0, data, ARR_LENGTH * 2 - num.length, num.length);
+
+            if (reader.readLine() != null)
+                throw new IOException(String.format("Wrong '%s' file format.", getFilePath(CLIENT_SIG_SHARE_FILE)));
+        }
+
+        ResponseAPDU res;
+        if (isExtendedApdu()) {
+            res = transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, data, ARR_LENGTH * 2
+            ));
+        } else {
+            int offset = 0;
+            for (; offset + MAX_APDU_LENGTH < data.length; offset += MAX_APDU_LENGTH) {
+                handleError(transmit(new CommandAPDU(
+                        CLA_RSA_SMPC_SERVER_CHAINING, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE,
+                        Arrays.copyOfRange(data, offset, offset + MAX_APDU_LENGTH)
+                )), "Sign and get signature");
+            }
+
+            res = transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE,
+                    Arrays.copyOfRange(data, offset, data.length), ARR_LENGTH
+            ));
+        }
+
+        ByteArrayOutputStream signature = new ByteArrayOutputStream();
+        signature.write(res.getData());
+
+        while (res.getSW1() == SW1_BYTES_REMAINING) {
+            res = transmit(new CommandAPDU(
+                    CLA_GET_RESPONSE, INS_GET_RESPONSE, NONE, NONE, res.getSW2() == 0 ? ARR_LENGTH : res.getSW2()
+            ));
+            signature.write(res.getData());
+        }
+
+        signature.write(res.getSW1());
+        signature.write(res.getSW2());
+        res = new ResponseAPDU(signature.toByteArray());
+
+        // the signature computed without the verification of the client share is written as well
+        if (res.getSW() == SW_NO_ERROR || res.getSW() == SW_SHARE_NOT_VERIFIED) {
+            try (OutputStream out = new FileOutputStream(getFilePath(FINAL_SIG_FILE))) {
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+                writer.write(String.format("%s%n%s%n", message, Util.toHex(res.getData())));
+                writer.flush();
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Gets a number twice as long as the partial modulus in a single extended length
+     * APDU, or divided into two parts otherwise
+     *
+     * @param ins ins byte
+     * @return responses
+     * @throws Exception if IO or card error occurs
+     */
+    private List<ResponseAPDU> getLongNum(byte ins) throws Exception {
+        List<ResponseAPDU> res = new ArrayList<>();
+
+        if (isExtendedApdu()) {
+            res.add(transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, ins, NONE, P2_PART_0, ARR_LENGTH * 2)));
+            return res;
+        }
+
+        res.add(transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, ins, NONE, P2_PART_0)));
+        res.add(transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, ins, NONE, P2_PART_1)));
+        return res;
+    }
+
 }
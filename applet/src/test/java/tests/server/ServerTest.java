@@ -1,17 +1,36 @@
 package tests.server;
 
+import cardTools.CardManager;
+import cardTools.RunConfig;
 import cardTools.Util;
 
+import smpc_rsa.RSAServer;
+
+import tests.AbstractMgr;
+import tests.CardPool;
+import tests.StressTest;
+
 import org.junit.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javacard.framework.ISOException;
+
+import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import java.io.*;
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 import static javacard.framework.ISO7816.*;
 import static tests.server.ServerMgr.*;
@@ -26,6 +45,7 @@ public class ServerTest {
     private static final boolean REAL_CARD = false;
     private static final int TEST_COUNT = 50;
     private static final int SW_NO_ERROR = 0x9000; // overrides SW_NO_ERROR from ISO7816 to be a positive number
+    private static final int POOL_SIZE = 4;
     private ServerMgr server;
 
     @BeforeClass(alwaysRun = true)
@@ -147,6 +167,48 @@ public class ServerTest {
         Assert.assertEquals(0, res.getData().length);
     }
 
+    @Test(groups = "serverGenerate", dependsOnGroups = "serverBasic")
+    public void serverGenerateKeysAsync() throws Exception {
+        // the key generation takes the longest, the following commands must wait for it
+        List<CompletableFuture<ResponseAPDU>> responses = new ArrayList<>();
+        List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+
+        final int[] p1 = new int[]{NONE, NONE, 0xFF, NONE};
+        final int[] ins = new int[]{INS_GENERATE_KEYS, INS_GENERATE_KEYS, INS_RESET, INS_RESET};
+        final int[] sw = new int[]{SW_NO_ERROR, SW_COMMAND_NOT_ALLOWED, SW_INCORRECT_P1P2, SW_NO_ERROR};
+
+        for (int i = 0; i < ins.length; i++) {
+            final int index = i;
+            responses.add(server.transmitAsync(new CommandAPDU(CLA_RSA_SMPC_SERVER, ins[i], p1[i], NONE))
+                    .whenComplete((res, e) -> completed.add(index)));
+        }
+
+        for (int i = 0; i < ins.length; i++) {
+            ResponseAPDU res = responses.get(i).get();
+            Assert.assertNotNull(res);
+            Assert.assertEquals(sw[i], res.getSW());
+            Assert.assertEquals(0, res.getData().length);
+        }
+
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3), completed);
+    }
+
+    @Test(groups = "serverGenerate", dependsOnGroups = "serverBasic")
+    public void serverGenerateKeysAsyncDisconnect() throws Exception {
+        CardManager cardMgr = new CardManager(Util.hexStringToByteArray(APPLET_AID));
+        Assert.assertTrue(cardMgr.Connect(AbstractMgr.createRunConfig(RSAServer.class, REAL_CARD, 0)));
+
+        CompletableFuture<ResponseAPDU> generated = cardMgr.transmitAsync(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_GENERATE_KEYS, NONE, NONE
+        ));
+
+        // the queued command is transmitted before the card is disconnected
+        cardMgr.Disconnect(true);
+
+        Assert.assertTrue(generated.isDone());
+        Assert.assertEquals(SW_NO_ERROR, generated.get().getSW());
+    }
+
     @Test(groups = "serverGenerate", dependsOnGroups = "serverBasic")
     public void serverGenerateKeysTwice() throws Exception {
         serverGenerateKeys();
@@ -800,7 +862,7 @@ public class ServerTest {
     }
 
     @Test(groups = "serverSetClientSignature", dependsOnGroups = "serverGetModulus")
-    public void serverSetClientSignatureMultiMsg() throws Exception {
+    public void serverSetClientSignatureMsgTooLarge() throws Exception {
         serverGetModulus();
 
         ResponseAPDU res = server.transmit(new CommandAPDU(
@@ -811,10 +873,35 @@ public class ServerTest {
         Assert.assertEquals(SW_NO_ERROR, res.getSW());
         Assert.assertEquals(0, res.getData().length);
 
+        // the message is not smaller than the server modulus
         res = server.transmit(new CommandAPDU(
                 CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_DIVIDED | P2_PART_1, new byte[]{(byte) 0xFF}
         ));
 
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_DATA, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        // the rejected message can be set again
+        serverSetClientSignatureSingleMsg();
+    }
+
+    @Test(groups = "serverSetClientSignature", dependsOnGroups = "serverGetModulus")
+    public void serverSetClientSignatureMultiMsg() throws Exception {
+        serverGetModulus();
+
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_DIVIDED | P2_PART_0, new byte[]{(byte) 0xFF}
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_DIVIDED | P2_PART_1, new byte[]{(byte) 0x01}
+        ));
+
         Assert.assertNotNull(res);
         Assert.assertEquals(SW_NO_ERROR, res.getSW());
         Assert.assertEquals(0, res.getData().length);
@@ -943,7 +1030,7 @@ public class ServerTest {
         Assert.assertEquals(0, res.getData().length);
 
         res = server.transmit(new CommandAPDU(
-                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_DIVIDED | P2_PART_1, new byte[]{(byte) 0xFF}
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_DIVIDED | P2_PART_1, new byte[]{(byte) 0x01}
         ));
 
         Assert.assertNotNull(res);
@@ -951,7 +1038,7 @@ public class ServerTest {
         Assert.assertEquals(0, res.getData().length);
 
         res = server.transmit(new CommandAPDU(
-                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_DIVIDED | P2_PART_1, new byte[]{(byte) 0xFF}
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_DIVIDED | P2_PART_1, new byte[]{(byte) 0x01}
         ));
 
         Assert.assertNotNull(res);
@@ -964,7 +1051,7 @@ public class ServerTest {
         serverGetModulus();
 
         ResponseAPDU res = server.transmit(new CommandAPDU(
-                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_DIVIDED | P2_PART_1, new byte[]{(byte) 0xFF}
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_DIVIDED | P2_PART_1, new byte[]{(byte) 0x01}
         ));
 
         Assert.assertNotNull(res);
@@ -1088,7 +1175,7 @@ public class ServerTest {
         Assert.assertEquals(0, res.getData().length);
 
         res = server.transmit(new CommandAPDU(
-                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_DIVIDED | P2_PART_1, new byte[]{(byte) 0xA3}
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_DIVIDED | P2_PART_1, new byte[]{(byte) 0x03}
         ));
 
         Assert.assertNotNull(res);
@@ -1123,6 +1210,22 @@ public class ServerTest {
         Assert.assertEquals(0, res.getData().length);
     }
 
+    @Test(groups = "serverSign", dependsOnGroups = "serverSetClientSignature")
+    public void serverSignMessageNoKey() throws Exception {
+        try (PrintWriter out = new PrintWriter(new FileOutputStream(server.getWorkPath() + CLIENT_SIG_SHARE_FILE))) {
+            out.println("0102");
+            out.println("0304");
+        }
+
+        // the failure of the queued message is reported instead of the skipped signature share
+        try {
+            server.signMessage();
+            Assert.fail("The message has been set without the keys.");
+        } catch (CardException e) {
+            Assert.assertEquals(String.format("Set message: %d", SW_CONDITIONS_NOT_SATISFIED), e.getMessage());
+        }
+    }
+
     @Test(groups = "serverSign", dependsOnGroups = "serverSetClientSignature")
     public void serverSignNoClientKey() throws Exception {
         serverGenerateKeys();
@@ -1315,6 +1418,266 @@ public class ServerTest {
         Assert.assertEquals(0, res.getData().length);
     }
 
+    @Test(groups = "serverGetSignature", dependsOnGroups = "serverSign")
+    public void serverGetSignatureShareFirst() throws Exception {
+        serverSignSimple();
+        byte[] expected = serverGetSignatureParts();
+
+        // the server signature is computed after the client share is set
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_SIGNATURE, P2_DIVIDED | P2_PART_0,
+                Util.hexStringToByteArray("C4BCB85B0AC228B275B7514E4AB849F0F6CC042F3EF50923A24BDFA5EA72B1CF7EE4DB5194B8306F36A9C935139F788DCF6DAC5EB1FB8A0F7C33C108E2D71A501FF5BCE6BF3FBFE6225D0C71C65338973AF041F127336D79124779980DD20E9BB3EC47FD3746A7FBB5D7AB2029F6537A2FFD9930BC958FFA04BC8DECB33D621592A43DDBE88DE76F2801547F41EF4F5F04CC00F36E7F7EA022DE8B858805C9A3F3FD9AC9026E7C01071030B0A82DA2CEF12B47484763FDF7C0E64B8203CF4BEBAB1D9AEF880E8A996408C85C5F9E5450B07826A223CA458D348AB814E318030F3BB2B8308C7CC02E83F803BEA4318CD684E614CF963BF130F3D4B19A05105B")
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_SIGNATURE, P2_DIVIDED | P2_PART_1,
+                Util.hexStringToByteArray("0D")
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_PART_0,
+                Util.hexStringToByteArray("F9822B96C3DCCA942368507AEAAD9C57267E6DAB7EE42DFAF7DBBD2D499A75D623C65479217D89764923987FEFD20ECC3EAF1247F09A7C3060091A4CA1251816F3E7C532894A42A1BE3BDD0BBD1985F69E6784195CC7F9E45A9BE6A4C80DC5DB0CA7B08A")
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        Assert.assertArrayEquals(expected, serverGetSignatureParts());
+    }
+
+    @Test(groups = "serverKeySlots", dependsOnGroups = "serverGetSignature")
+    public void serverSelectSlotBadP1P2() throws Exception {
+        for (int p1 : new int[]{DEFAULT_SLOT_COUNT, 0x80, 0xFF}) {
+            ResponseAPDU res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SELECT_SLOT, p1, NONE
+            ));
+
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_INCORRECT_P1P2, res.getSW());
+            Assert.assertEquals(0, res.getData().length);
+        }
+
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SELECT_SLOT, NONE, 0x01
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INCORRECT_P1P2, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "serverKeySlots", dependsOnGroups = "serverGetSignature")
+    public void serverKeySlotsIndependent() throws Exception {
+        serverSignSimple();
+        byte[] expected = serverGetSignatureParts();
+
+        try {
+            server.selectSlot(1);
+
+            // the signing data of the previous slot are discarded
+            ResponseAPDU res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE
+            ));
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, res.getSW());
+
+            res = server.transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_GET_PUBLIC_MODULUS, NONE, P2_PART_0));
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, res.getSW());
+
+            res = server.transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_GENERATE_KEYS, NONE, NONE));
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+
+            server.selectSlot(0);
+
+            res = server.transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_GENERATE_KEYS, NONE, NONE));
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_COMMAND_NOT_ALLOWED, res.getSW());
+
+            serverSetSignatureData();
+
+            res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE
+            ));
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+            Assert.assertArrayEquals(expected, serverGetSignatureParts());
+        } finally {
+            server.selectSlot(1);
+            server.transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_RESET, NONE, NONE));
+            server.selectSlot(0);
+        }
+    }
+
+    @Test(groups = "serverKeySlots", dependsOnGroups = "serverGetSignature")
+    public void serverKeySlotsReset() throws Exception {
+        serverSignSimple();
+        byte[] expected = serverGetSignatureParts();
+
+        server.selectSlot(DEFAULT_SLOT_COUNT - 1);
+        ResponseAPDU res = server.transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_RESET, NONE, NONE));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+
+        server.selectSlot(0);
+        serverSetSignatureData();
+
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertArrayEquals(expected, serverGetSignatureParts());
+    }
+
+    @Test(groups = "serverKeySlots", dependsOnGroups = "serverGetSignature")
+    public void serverKeySlotsSwitch() throws Exception {
+        serverSignSimple();
+        byte[] expected = serverGetSignatureParts();
+
+        try {
+            // different server keys, thus different values cached for signing
+            server.selectSlot(1);
+            serverSignSimple();
+            byte[] expectedOther = serverGetSignatureParts();
+
+            for (int i = 0; i < 2; i++) {
+                server.selectSlot(0);
+                serverSetSignatureData();
+
+                ResponseAPDU res = server.transmit(new CommandAPDU(
+                        CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE
+                ));
+                Assert.assertNotNull(res);
+                Assert.assertEquals(SW_NO_ERROR, res.getSW());
+                Assert.assertArrayEquals(expected, serverGetSignatureParts());
+
+                server.selectSlot(1);
+                serverSetSignatureData();
+
+                res = server.transmit(new CommandAPDU(
+                        CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE
+                ));
+                Assert.assertNotNull(res);
+                Assert.assertEquals(SW_NO_ERROR, res.getSW());
+                Assert.assertArrayEquals(expectedOther, serverGetSignatureParts());
+            }
+        } finally {
+            server.selectSlot(1);
+            server.transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_RESET, NONE, NONE));
+            server.selectSlot(0);
+        }
+    }
+
+    @Test(groups = "serverKeySlots", dependsOnGroups = "serverGetSignature")
+    public void serverKeySlotsSelectEmpty() throws Exception {
+        serverSignSimple();
+        byte[] expected = serverGetSignatureParts();
+
+        // the values cached for signing are kept in the slot, selecting or resetting an empty one keeps them
+        server.selectSlot(2);
+        serverResetCard();
+        server.selectSlot(0);
+
+        serverSetSignatureData();
+
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertArrayEquals(expected, serverGetSignatureParts());
+    }
+
+    @Test(groups = "serverKeySlots", dependsOnGroups = "serverGetSignature")
+    public void serverKeySlotsInstallCount() throws Exception {
+        ServerMgr mgr = installServer(createInstallData(POLICY_STRICT, 0, 1));
+
+        ResponseAPDU res = mgr.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SELECT_SLOT, 0x01, NONE
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INCORRECT_P1P2, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = mgr.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SELECT_SLOT, NONE, NONE
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        mgr = installServer(createInstallData(POLICY_STRICT, 0, MAX_SLOT_COUNT));
+        res = mgr.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SELECT_SLOT, MAX_SLOT_COUNT - 1, NONE
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        for (int slotCount : new int[]{0x00, MAX_SLOT_COUNT + 1, 0x80, 0xFF}) {
+            byte[] data = createInstallData(POLICY_STRICT, 0, slotCount);
+
+            try {
+                RSAServer.install(data, (short) 0, (byte) data.length);
+                Assert.fail("The applet has been installed with an invalid number of key slots.");
+            } catch (ISOException e) {
+                Assert.assertEquals(SW_WRONG_DATA, e.getReason());
+            }
+        }
+    }
+
+    private void serverSetSignatureData() throws Exception {
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_PART_0,
+                Util.hexStringToByteArray("F9822B96C3DCCA942368507AEAAD9C57267E6DAB7EE42DFAF7DBBD2D499A75D623C65479217D89764923987FEFD20ECC3EAF1247F09A7C3060091A4CA1251816F3E7C532894A42A1BE3BDD0BBD1985F69E6784195CC7F9E45A9BE6A4C80DC5DB0CA7B08A")
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_SIGNATURE, P2_DIVIDED | P2_PART_0,
+                Util.hexStringToByteArray("C4BCB85B0AC228B275B7514E4AB849F0F6CC042F3EF50923A24BDFA5EA72B1CF7EE4DB5194B8306F36A9C935139F788DCF6DAC5EB1FB8A0F7C33C108E2D71A501FF5BCE6BF3FBFE6225D0C71C65338973AF041F127336D79124779980DD20E9BB3EC47FD3746A7FBB5D7AB2029F6537A2FFD9930BC958FFA04BC8DECB33D621592A43DDBE88DE76F2801547F41EF4F5F04CC00F36E7F7EA022DE8B858805C9A3F3FD9AC9026E7C01071030B0A82DA2CEF12B47484763FDF7C0E64B8203CF4BEBAB1D9AEF880E8A996408C85C5F9E5450B07826A223CA458D348AB814E318030F3BB2B8308C7CC02E83F803BEA4318CD684E614CF963BF130F3D4B19A05105B")
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_SIGNATURE, P2_DIVIDED | P2_PART_1,
+                Util.hexStringToByteArray("0D")
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+    }
+
+    private byte[] serverGetSignatureParts() throws Exception {
+        byte[] signature = new byte[ARR_LENGTH * 2];
+
+        for (byte part : new byte[]{P2_PART_0, P2_PART_1}) {
+            ResponseAPDU res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_GET_SIGNATURE, NONE, part, ARR_LENGTH
+            ));
+
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+            Assert.assertEquals(ARR_LENGTH, res.getData().length);
+            System.arraycopy(res.getData(), 0, signature, part * ARR_LENGTH, ARR_LENGTH);
+        }
+
+        return signature;
+    }
+
     @Test(groups = "serverGetSignature", dependsOnGroups = "serverSign")
     public void serverGetSignatureWithoutSigning() throws Exception {
         serverGetModulus();
@@ -1459,101 +1822,810 @@ public class ServerTest {
         Assert.assertEquals(ARR_LENGTH, res.getData().length);
     }
 
-    private void generateMessage() throws Exception {
-        try (OutputStream os = new FileOutputStream(MESSAGE_FILE_PATH)) {
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
+    @Test(groups = "serverExtendedApdu", dependsOnGroups = "serverGetSignature")
+    public void serverExtendedGetModulus() throws Exception {
+        serverGetModulus();
 
-            byte[] bytes = new byte[ARR_LENGTH];
-            new Random().nextBytes(bytes);
-            bytes[0] &= 0x0F; // to avoid messages longer than modulus
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_GET_PUBLIC_MODULUS, NONE, P2_PART_1, ARR_LENGTH
+        ));
 
-            bw.write(Util.toHex(bytes));
-            bw.flush();
-        }
-    }
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(ARR_LENGTH, res.getData().length);
 
-    @Test(groups = "serverStressTest", dependsOnGroups = "serverGetSignature")
-    public void serverStressTest() throws Exception {
-        if (!new File(TEST_PATH + "smpc_rsa").isFile())
-            Assert.fail("This test requires the reference 'smpc_rsa' in the tests (../) folder.");
+        ResponseAPDU extRes = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_GET_PUBLIC_MODULUS, NONE, P2_PART_0, ARR_LENGTH * 2
+        ));
 
-        ProcessBuilder clientGenerate = new ProcessBuilder("./smpc_rsa", "client", "generate").directory(new File(TEST_PATH));
-        ProcessBuilder clientSign = new ProcessBuilder("./smpc_rsa", "client", "sign").directory(new File(TEST_PATH));
-        ProcessBuilder serverVerify = new ProcessBuilder("./smpc_rsa", "server", "verify").directory(new File(TEST_PATH));
+        Assert.assertNotNull(extRes);
+        Assert.assertEquals(SW_NO_ERROR, extRes.getSW());
+        Assert.assertEquals(ARR_LENGTH * 2, extRes.getData().length);
+        Assert.assertArrayEquals(res.getData(), Arrays.copyOfRange(extRes.getData(), ARR_LENGTH, ARR_LENGTH * 2));
+    }
 
-        server.setDebug(false);
+    @Test(groups = "serverExtendedApdu", dependsOnGroups = "serverGetSignature")
+    public void serverExtendedSetClientSignatureDividedTooLong() throws Exception {
+        serverGetModulus();
 
-        int nokGenCount = 0;
-        int nokSignCount = 0;
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_SIGNATURE, P2_DIVIDED | P2_PART_0, new byte[ARR_LENGTH]
+        ));
 
-        System.out.println("Running the sign client applet against reference implementation.");
-        System.out.println("Each test should fail only when the modulus is unusable.");
-        System.out.println("Due to a bug in emulator, the test may very rarely fail with a wrong signature.");
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_LENGTH, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
 
-        for (int i = 1; i <= TEST_COUNT; i++) {
-            System.out.printf("TEST %d: ", i);
-            System.out.flush();
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_SIGNATURE, P2_SINGLE, new byte[ARR_LENGTH + 1]
+        ));
 
-            serverResetCard();
-            generateMessage();
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_LENGTH, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
 
-            Process clientGenProc = clientGenerate.start();
-            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(
-                    new BufferedOutputStream(clientGenProc.getOutputStream())
-            );
-            outputStreamWriter.write("y\n");
-            outputStreamWriter.flush();
+    @Test(groups = "serverExtendedApdu", dependsOnGroups = "serverGetSignature")
+    public void serverExtendedSign() throws Exception {
+        serverSignSimple();
 
-            Assert.assertEquals(0, clientGenProc.waitFor());
-            Assert.assertEquals(0, clientSign.start().waitFor());
+        ResponseAPDU sigRes = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_GET_SIGNATURE, NONE, P2_PART_0, ARR_LENGTH
+        ));
 
-            ResponseAPDU responseAPDU = server.generateKeys();
-            Assert.assertEquals(SW_NO_ERROR, responseAPDU.getSW());
-            Assert.assertEquals(0, responseAPDU.getData().length);
+        Assert.assertNotNull(sigRes);
+        Assert.assertEquals(SW_NO_ERROR, sigRes.getSW());
+        Assert.assertEquals(ARR_LENGTH, sigRes.getData().length);
 
-            server.setClientKeys();
+        // the same message and client signature share, each in a single extended APDU
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE, P2_SINGLE,
+                Util.hexStringToByteArray("F9822B96C3DCCA942368507AEAAD9C57267E6DAB7EE42DFAF7DBBD2D499A75D623C65479217D89764923987FEFD20ECC3EAF1247F09A7C3060091A4CA1251816F3E7C532894A42A1BE3BDD0BBD1985F69E6784195CC7F9E45A9BE6A4C80DC5DB0CA7B08A")
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
 
-            int ret = server.getPublicModulus().get(0).getSW();
-            if (ret != SW_NO_ERROR) {
-                System.out.println("\u001B[1;31mNOK\u001B[0m");
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_SIGNATURE, P2_SINGLE,
+                Util.hexStringToByteArray("0DC4BCB85B0AC228B275B7514E4AB849F0F6CC042F3EF50923A24BDFA5EA72B1CF7EE4DB5194B8306F36A9C935139F788DCF6DAC5EB1FB8A0F7C33C108E2D71A501FF5BCE6BF3FBFE6225D0C71C65338973AF041F127336D79124779980DD20E9BB3EC47FD3746A7FBB5D7AB2029F6537A2FFD9930BC958FFA04BC8DECB33D621592A43DDBE88DE76F2801547F41EF4F5F04CC00F36E7F7EA022DE8B858805C9A3F3FD9AC9026E7C01071030B0A82DA2CEF12B47484763FDF7C0E64B8203CF4BEBAB1D9AEF880E8A996408C85C5F9E5450B07826A223CA458D348AB814E318030F3BB2B8308C7CC02E83F803BEA4318CD684E614CF963BF130F3D4B19A05105B")
+        ));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
 
-                if (ret == SW_WRONG_LENGTH) {
-                    System.out.println("Modulus generated is not a 4096-bit number!");
-                    nokGenCount++;
-                    continue;
-                }
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE
+        ));
 
-                Assert.fail(String.format("SW: %04X", ret));
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        ResponseAPDU extRes = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_GET_SIGNATURE, NONE, P2_PART_0, ARR_LENGTH * 2
+        ));
+
+        Assert.assertNotNull(extRes);
+        Assert.assertEquals(SW_NO_ERROR, extRes.getSW());
+        Assert.assertEquals(ARR_LENGTH * 2, extRes.getData().length);
+        Assert.assertArrayEquals(sigRes.getData(), Arrays.copyOf(extRes.getData(), ARR_LENGTH));
+    }
+
+    private static byte[] signAndGetSignatureData() {
+        byte[] data = new byte[ARR_LENGTH * 2];
+
+        byte[] num = Util.hexStringToByteArray("F9822B96C3DCCA942368507AEAAD9C57267E6DAB7EE42DFAF7DBBD2D499A75D623C65479217D89764923987FEFD20ECC3EAF1247F09A7C3060091A4CA1251816F3E7C532894A42A1BE3BDD0BBD1985F69E6784195CC7F9E45A9BE6A4C80DC5DB0CA7B08A");
+        System.arraycopy(num, 0, data, ARR_LENGTH - num.length, num.length);
+
+        num = Util.hexStringToByteArray("0DC4BCB85B0AC228B275B7514E4AB849F0F6CC042F3EF50923A24BDFA5EA72B1CF7EE4DB5194B8306F36A9C935139F788DCF6DAC5EB1FB8A0F7C33C108E2D71A501FF5BCE6BF3FBFE6225D0C71C65338973AF041F127336D79124779980DD20E9BB3EC47FD3746A7FBB5D7AB2029F6537A2FFD9930BC958FFA04BC8DECB33D621592A43DDBE88DE76F2801547F41EF4F5F04CC00F36E7F7EA022DE8B858805C9A3F3FD9AC9026E7C01071030B0A82DA2CEF12B47484763FDF7C0E64B8203CF4BEBAB1D9AEF880E8A996408C85C5F9E5450B07826A223CA458D348AB814E318030F3BB2B8308C7CC02E83F803BEA4318CD684E614CF963BF130F3D4B19A05105B");
+        System.arraycopy(num, 0, data, ARR_LENGTH, num.length);
+
+        return data;
+    }
+
+    private byte[] getSignatureDivided() throws Exception {
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_GET_SIGNATURE, NONE, P2_PART_0, ARR_LENGTH
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(ARR_LENGTH, res.getData().length);
+
+        ResponseAPDU res2 = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_GET_SIGNATURE, NONE, P2_PART_1, ARR_LENGTH
+        ));
+
+        Assert.assertNotNull(res2);
+        Assert.assertEquals(SW_NO_ERROR, res2.getSW());
+        Assert.assertEquals(ARR_LENGTH, res2.getData().length);
+
+        byte[] signature = Arrays.copyOf(res.getData(), ARR_LENGTH * 2);
+        System.arraycopy(res2.getData(), 0, signature, ARR_LENGTH, ARR_LENGTH);
+        return signature;
+    }
+
+    @Test(groups = "serverSignAndGetSignature", dependsOnGroups = "serverGetSignature")
+    public void serverSignAndGetSignatureNoModulus() throws Exception {
+        serverSetKeys();
+
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, signAndGetSignatureData(), ARR_LENGTH * 2
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "serverSignAndGetSignature", dependsOnGroups = "serverGetSignature")
+    public void serverSignAndGetSignatureBadP1P2() throws Exception {
+        prepareForServerSign();
+
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, 0xFF, NONE, signAndGetSignatureData(), ARR_LENGTH * 2
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INCORRECT_P1P2, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, 0xFF, signAndGetSignatureData(), ARR_LENGTH * 2
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INCORRECT_P1P2, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "serverSignAndGetSignature", dependsOnGroups = "serverGetSignature")
+    public void serverSignAndGetSignatureWrongLength() throws Exception {
+        prepareForServerSign();
+
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE,
+                Arrays.copyOf(signAndGetSignatureData(), ARR_LENGTH * 2 - 1), ARR_LENGTH * 2
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_LENGTH, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE,
+                Arrays.copyOf(signAndGetSignatureData(), ARR_LENGTH * 2 + 1), ARR_LENGTH * 2
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_LENGTH, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "serverSignAndGetSignature", dependsOnGroups = "serverGetSignature")
+    public void serverSignAndGetSignatureFraudulent() throws Exception {
+        prepareForServerSign();
+
+        byte[] data = signAndGetSignatureData();
+        data[data.length - 1] ^= 0x01;
+
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, data, ARR_LENGTH * 2
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_DATA, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "serverSignAndGetSignature", dependsOnGroups = "serverGetSignature")
+    public void serverSignAndGetSignatureExtended() throws Exception {
+        serverSignSimple();
+        byte[] signature = getSignatureDivided();
+
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, signAndGetSignatureData(), ARR_LENGTH * 2
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertArrayEquals(signature, res.getData());
+    }
+
+    @Test(groups = "serverSignAndGetSignature", dependsOnGroups = "serverGetSignature")
+    public void serverSignAndGetSignatureChained() throws Exception {
+        serverSignSimple();
+        byte[] signature = getSignatureDivided();
+        byte[] data = signAndGetSignatureData();
+
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER_CHAINING, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE,
+                Arrays.copyOfRange(data, 0, MAX_APDU_LENGTH)
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER_CHAINING, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE,
+                Arrays.copyOfRange(data, MAX_APDU_LENGTH, MAX_APDU_LENGTH * 2)
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+
+        res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE,
+                Arrays.copyOfRange(data, MAX_APDU_LENGTH * 2, data.length), ARR_LENGTH
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_BYTES_REMAINING_00, (short) res.getSW());
+        Assert.assertArrayEquals(Arrays.copyOf(signature, ARR_LENGTH), res.getData());
+
+        res = server.transmit(new CommandAPDU(
+                CLA_GET_RESPONSE, INS_GET_RESPONSE, NONE, NONE, ARR_LENGTH
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(signature, ARR_LENGTH, ARR_LENGTH * 2), res.getData());
+
+        res = server.transmit(new CommandAPDU(
+                CLA_GET_RESPONSE, INS_GET_RESPONSE, NONE, NONE, ARR_LENGTH
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "serverSignAndGetSignature", dependsOnGroups = "serverGetSignature")
+    public void serverGetResponseWithoutSigning() throws Exception {
+        serverSignSimple();
+
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_GET_RESPONSE, INS_GET_RESPONSE, NONE, NONE, ARR_LENGTH
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_CONDITIONS_NOT_SATISFIED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverVerificationPolicyNoCommand() throws Exception {
+        // the policy can be set only by the installation parameters
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, 0x26, POLICY_DEFERRED, NONE
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_INS_NOT_SUPPORTED, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverVerificationPolicyBadInstallData() throws Exception {
+        byte[][] installData = new byte[][]{
+                createInstallData((byte) 0xFF, 0),
+                createInstallData(POLICY_STRICT, 1),
+                createInstallData(POLICY_DEFERRED, 1),
+                createInstallData(POLICY_SAMPLED, 0)
+        };
+
+        for (byte[] data : installData) {
+            try {
+                RSAServer.install(data, (short) 0, (byte) data.length);
+                Assert.fail("The applet has been installed with an invalid policy.");
+            } catch (ISOException e) {
+                Assert.assertEquals(SW_WRONG_DATA, e.getReason());
             }
+        }
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverInstallMalformedData() throws Exception {
+        byte[][] installData = new byte[][]{
+                // AID longer than the parameters
+                new byte[]{(byte) 0x80, 0x00},
+                // missing applet data length
+                new byte[]{0x00, 0x00},
+                // control info longer than the parameters
+                new byte[]{0x00, (byte) 0xFF, 0x00},
+                // applet data longer than the parameters
+                new byte[]{0x00, 0x00, 0x03, POLICY_STRICT, 0x00},
+                new byte[]{0x00, 0x00, (byte) 0x83, POLICY_STRICT, 0x00, 0x01}
+        };
+
+        for (byte[] data : installData) {
+            try {
+                RSAServer.install(data, (short) 0, (byte) data.length);
+                Assert.fail("The applet has been installed with malformed installation parameters.");
+            } catch (ISOException e) {
+                Assert.assertEquals(SW_WRONG_DATA, e.getReason());
+            }
+        }
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverInstallBadOptions() throws Exception {
+        for (byte options : new byte[]{0x04, (byte) 0x80, (byte) 0xFF}) {
+            byte[] data = createInstallData(POLICY_STRICT, 0, DEFAULT_SLOT_COUNT, options);
+
+            try {
+                RSAServer.install(data, (short) 0, (byte) data.length);
+                Assert.fail("The applet has been installed with unknown options.");
+            } catch (ISOException e) {
+                Assert.assertEquals(SW_WRONG_DATA, e.getReason());
+            }
+        }
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverInstallFixedIterationDivision() throws Exception {
+        ServerMgr mgr = installServer(createInstallData(
+                POLICY_STRICT, 0, DEFAULT_SLOT_COUNT, OPTION_FIXED_ITERATION_DIVISION
+        ));
+
+        Assert.assertEquals(SW_NO_ERROR, signMessageFromFile(mgr).getSW());
+        Assert.assertEquals(SW_NO_ERROR, signMessageFromFile(installServer(createInstallData(POLICY_STRICT, 0))).getSW());
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverInstallMontgomeryMult() throws Exception {
+        ServerMgr mgr = installServer(createInstallData(
+                POLICY_STRICT, 0, DEFAULT_SLOT_COUNT, OPTION_MONTGOMERY_MULT
+        ));
+
+        Assert.assertEquals(SW_NO_ERROR, signMessageFromFile(mgr).getSW());
+
+        mgr = installServer(createInstallData(
+                POLICY_STRICT, 0, DEFAULT_SLOT_COUNT, (byte) (OPTION_MONTGOMERY_MULT | OPTION_FIXED_ITERATION_DIVISION)
+        ));
+
+        Assert.assertEquals(SW_NO_ERROR, signMessageFromFile(mgr).getSW());
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverVerificationPolicyStrict() throws Exception {
+        ServerMgr strict = server;
+        server = installServer(createInstallData(POLICY_STRICT, 0));
+
+        try {
+            serverSignSimple();
+        } finally {
+            server = strict;
+        }
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverVerificationPolicyDeferred() throws Exception {
+        ServerMgr strict = server;
+        server = installServer(createInstallData(POLICY_DEFERRED, 0));
+
+        try {
+            prepareForServerSign();
 
-            responseAPDU = server.signMessage();
-            Assert.assertNotNull(responseAPDU);
-            ret = responseAPDU.getSW();
+            ResponseAPDU res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE
+            ));
+
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_SHARE_NOT_VERIFIED, res.getSW());
+            Assert.assertEquals(0, res.getData().length);
+
+            // the signature is computed, but it is up to the terminal to verify it
+            BigInteger modulus = new BigInteger(1, getPublicModulusDivided());
+            BigInteger signature = new BigInteger(1, getSignatureDivided());
+            Assert.assertEquals(new BigInteger(1, Arrays.copyOf(signAndGetSignatureData(), ARR_LENGTH)),
+                    signature.modPow(BigInteger.valueOf(65537), modulus));
+        } finally {
+            server = strict;
+        }
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverVerificationPolicyDeferredReset() throws Exception {
+        ServerMgr strict = server;
+        server = installServer(createInstallData(POLICY_DEFERRED, 0));
+
+        try {
+            // resets the applet first
+            prepareForServerSign();
+            prepareForServerSign();
+
+            ResponseAPDU res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE
+            ));
+
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_SHARE_NOT_VERIFIED, res.getSW());
+            Assert.assertEquals(0, res.getData().length);
+        } finally {
+            server = strict;
+        }
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverVerificationPolicyDeferredFraudulent() throws Exception {
+        byte[] data = signAndGetSignatureData();
+        data[data.length - 1] ^= 0x01;
+
+        ServerMgr strict = server;
+        server = installServer(createInstallData(POLICY_DEFERRED, 0));
+
+        try {
+            prepareForServerSign();
+
+            // the fraudulent share is not detected, the terminal has to verify the final signature
+            ResponseAPDU res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, data, ARR_LENGTH * 2
+            ));
+
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_SHARE_NOT_VERIFIED, res.getSW());
+            Assert.assertEquals(ARR_LENGTH * 2, res.getData().length);
+        } finally {
+            server = strict;
+        }
+
+        prepareForServerSign();
+
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, data, ARR_LENGTH * 2
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_WRONG_DATA, res.getSW());
+        Assert.assertEquals(0, res.getData().length);
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverVerificationPolicySampled() throws Exception {
+        ServerMgr strict = server;
+        server = installServer(createInstallData(POLICY_SAMPLED, 3));
+
+        try {
+            prepareForServerSign();
+
+            for (int expected : new int[]{SW_SHARE_NOT_VERIFIED, SW_SHARE_NOT_VERIFIED, SW_NO_ERROR, SW_SHARE_NOT_VERIFIED}) {
+                ResponseAPDU res = server.transmit(new CommandAPDU(
+                        CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE
+                ));
+
+                Assert.assertNotNull(res);
+                Assert.assertEquals(expected, res.getSW());
+                Assert.assertEquals(0, res.getData().length);
+            }
+        } finally {
+            server = strict;
+        }
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverVerificationPolicyStrictSignAndGetSignature() throws Exception {
+        ServerMgr strict = server;
+        server = installServer(createInstallData(POLICY_STRICT, 0));
+
+        try {
+            prepareForServerSign();
+
+            ResponseAPDU res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, signAndGetSignatureData(), ARR_LENGTH * 2
+            ));
+
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+            Assert.assertEquals(ARR_LENGTH * 2, res.getData().length);
+        } finally {
+            server = strict;
+        }
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverVerificationPolicyDeferredSignAndGetSignature() throws Exception {
+        ServerMgr strict = server;
+        server = installServer(createInstallData(POLICY_DEFERRED, 0));
+
+        try {
+            prepareForServerSign();
+            byte[] data = signAndGetSignatureData();
+
+            ResponseAPDU res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, data, ARR_LENGTH * 2
+            ));
+
+            // the whole signature with the warning
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_SHARE_NOT_VERIFIED, res.getSW());
+            Assert.assertEquals(ARR_LENGTH * 2, res.getData().length);
+
+            BigInteger modulus = new BigInteger(1, getPublicModulusDivided());
+            BigInteger signature = new BigInteger(1, res.getData());
+            Assert.assertEquals(new BigInteger(1, Arrays.copyOf(data, ARR_LENGTH)),
+                    signature.modPow(BigInteger.valueOf(65537), modulus));
+
+            // the warning is sent with the last part of the signature
+            res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, data, ARR_LENGTH
+            ));
+
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_BYTES_REMAINING_00, (short) res.getSW());
+            Assert.assertEquals(ARR_LENGTH, res.getData().length);
+
+            res = server.transmit(new CommandAPDU(
+                    CLA_GET_RESPONSE, INS_GET_RESPONSE, NONE, NONE, ARR_LENGTH
+            ));
+
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_SHARE_NOT_VERIFIED, res.getSW());
+            Assert.assertEquals(ARR_LENGTH, res.getData().length);
+        } finally {
+            server = strict;
+        }
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverVerificationPolicySampledSignAndGetSignature() throws Exception {
+        ServerMgr strict = server;
+        server = installServer(createInstallData(POLICY_SAMPLED, 3));
+
+        try {
+            prepareForServerSign();
+
+            for (int expected : new int[]{SW_SHARE_NOT_VERIFIED, SW_SHARE_NOT_VERIFIED, SW_NO_ERROR, SW_SHARE_NOT_VERIFIED}) {
+                ResponseAPDU res = server.transmit(new CommandAPDU(
+                        CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, signAndGetSignatureData(), ARR_LENGTH * 2
+                ));
+
+                Assert.assertNotNull(res);
+                Assert.assertEquals(expected, res.getSW());
+                Assert.assertEquals(ARR_LENGTH * 2, res.getData().length);
+            }
+        } finally {
+            server = strict;
+        }
+    }
+
+    @Test(groups = "serverVerificationPolicy", dependsOnGroups = "serverSignAndGetSignature")
+    public void serverVerificationPolicySampledFraudulent() throws Exception {
+        byte[] fraudulent = signAndGetSignatureData();
+        fraudulent[fraudulent.length - 1] ^= 0x01;
+
+        ServerMgr strict = server;
+        server = installServer(createInstallData(POLICY_SAMPLED, 2));
+
+        try {
+            prepareForServerSign();
+
+            ResponseAPDU res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, signAndGetSignatureData(), ARR_LENGTH * 2
+            ));
+
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_SHARE_NOT_VERIFIED, res.getSW());
+
+            res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, fraudulent, ARR_LENGTH * 2
+            ));
+
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_WRONG_DATA, res.getSW());
+            Assert.assertEquals(0, res.getData().length);
+
+            // the failed signing has not used up the verified sample
+            res = server.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_SIGN_AND_GET_SIGNATURE, NONE, NONE, signAndGetSignatureData(), ARR_LENGTH * 2
+            ));
+
+            Assert.assertNotNull(res);
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+            Assert.assertEquals(ARR_LENGTH * 2, res.getData().length);
+        } finally {
+            server = strict;
+        }
+    }
+
+    private static ServerMgr installServer(byte[] installData) throws Exception {
+        ServerMgr mgr = new ServerMgr(AbstractMgr.createRunConfig(RSAServer.class, false, 0)
+                .setInstallData(installData));
+        mgr.setDebug(true);
+        return mgr;
+    }
+
+    private byte[] getPublicModulusDivided() throws Exception {
+        ResponseAPDU res = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_GET_PUBLIC_MODULUS, NONE, P2_PART_0
+        ));
+
+        Assert.assertNotNull(res);
+        Assert.assertEquals(SW_NO_ERROR, res.getSW());
+        Assert.assertEquals(ARR_LENGTH, res.getData().length);
+
+        ResponseAPDU res2 = server.transmit(new CommandAPDU(
+                CLA_RSA_SMPC_SERVER, INS_GET_PUBLIC_MODULUS, NONE, P2_PART_1
+        ));
+
+        Assert.assertNotNull(res2);
+        Assert.assertEquals(SW_NO_ERROR, res2.getSW());
+        Assert.assertEquals(ARR_LENGTH, res2.getData().length);
+
+        byte[] modulus = Arrays.copyOf(res.getData(), ARR_LENGTH * 2);
+        System.arraycopy(res2.getData(), 0, modulus, ARR_LENGTH, ARR_LENGTH);
+        return modulus;
+    }
+
+    @Test(groups = "serverCardPool", dependsOnGroups = "serverGetModulus")
+    public void serverCardPoolParallel() throws Exception {
+        RunConfig runCfg = AbstractMgr.createRunConfig(RSAServer.class, REAL_CARD, 0)
+                .setSimulatorCount(POOL_SIZE);
+
+        try (CardPool<ServerMgr> pool = new CardPool<>(APPLET_AID, runCfg, ServerMgr::new)) {
+            pool.setDebug(false);
+
+            List<CompletableFuture<String>> moduli = new ArrayList<>();
+            for (int i = 0; i < 4 * pool.size(); i++)
+                moduli.add(pool.submit(ServerTest::getPublicModulusFromFile));
+
+            for (CompletableFuture<String> modulus : moduli)
+                Assert.assertEquals(ARR_LENGTH * 4, modulus.get().length());
+        }
+    }
+
+    /**
+     * Generates the keys and checks that the public key file in the work folder
+     * of the card has not been overwritten by another card in the meantime
+     */
+    private static String getPublicModulusFromFile(ServerMgr mgr) throws Exception {
+        RSAPrivateKey key = generateClientKey();
+        return setClientKeysFromFile(mgr, key, generateServerShare(key));
+    }
+
+    /**
+     * Sets random client keys, signs a random message with them and checks the final
+     * signature against the public key
+     *
+     * @param mgr server
+     * @return response of the signing
+     * @throws Exception if IO or card error occurs
+     */
+    private static ResponseAPDU signMessageFromFile(ServerMgr mgr) throws Exception {
+        RSAPrivateKey key = generateClientKey();
+        BigInteger d1Server = generateServerShare(key);
+        BigInteger modulus = new BigInteger(setClientKeysFromFile(mgr, key, d1Server), 16);
+
+        // lesser than both partial moduli
+        BigInteger message = new BigInteger(ARR_LENGTH * 8 - 2, new Random());
+        BigInteger clientShare = message.modPow(key.getPrivateExponent().subtract(d1Server), key.getModulus());
+
+        try (OutputStream out = new FileOutputStream(mgr.getWorkPath() + CLIENT_SIG_SHARE_FILE)) {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+            writer.write(String.format("%s%n%s%n", toHex(message), toHex(clientShare)));
+            writer.flush();
+        }
+
+        ResponseAPDU res = mgr.signMessage();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(mgr.getWorkPath() + FINAL_SIG_FILE))) {
+            Assert.assertEquals(toHex(message), reader.readLine());
+
+            BigInteger signature = new BigInteger(reader.readLine(), 16);
+            Assert.assertEquals(message, signature.modPow(BigInteger.valueOf(65537), modulus));
+        }
+
+        return res;
+    }
+
+    private static RSAPrivateKey generateClientKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(ARR_LENGTH * 8);
+        return (RSAPrivateKey) generator.generateKeyPair().getPrivate();
+    }
+
+    private static BigInteger generateServerShare(RSAPrivateKey key) {
+        BigInteger d1Server;
+        do {
+            d1Server = new BigInteger(key.getPrivateExponent().bitLength(), new Random());
+        } while (d1Server.compareTo(key.getPrivateExponent()) >= 0);
+
+        return d1Server;
+    }
+
+    private static String setClientKeysFromFile(ServerMgr mgr, RSAPrivateKey key, BigInteger d1Server) throws Exception {
+        try (OutputStream out = new FileOutputStream(mgr.getWorkPath() + CLIENT_KEYS_SERVER_FILE)) {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+            writer.write(String.format("%s%n%s%n", toHex(d1Server), toHex(key.getModulus())));
+            writer.flush();
+        }
+
+        List<ResponseAPDU> res;
+        do {
+            Assert.assertEquals(SW_NO_ERROR, mgr.transmit(new CommandAPDU(
+                    CLA_RSA_SMPC_SERVER, INS_RESET, NONE, NONE
+            )).getSW());
+            Assert.assertEquals(SW_NO_ERROR, mgr.generateKeys().getSW());
+
+            mgr.setClientKeys();
+            res = mgr.getPublicModulus();
+        } while (res.get(0).getSW() == SW_WRONG_LENGTH);
+
+        StringBuilder modulus = new StringBuilder();
+        for (ResponseAPDU r : res) {
+            Assert.assertEquals(SW_NO_ERROR, r.getSW());
+            modulus.append(Util.toHex(r.getData()));
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(mgr.getWorkPath() + PUBLIC_KEY_FILE))) {
+            Assert.assertEquals("10001", reader.readLine());
+            Assert.assertEquals(modulus.toString(), reader.readLine());
+        }
+
+        return modulus.toString();
+    }
+
+    private static String toHex(BigInteger num) {
+        byte[] bytes = num.toByteArray();
+        if (bytes[0] == 0x00 && bytes.length > 1)
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+
+        return Util.toHex(bytes);
+    }
+
+    @Test(groups = "serverStressTest", dependsOnGroups = "serverGetSignature")
+    public void serverStressTest() throws Exception {
+        System.out.println("Running the sign client applet against reference implementation.");
+        System.out.println("Each test should fail only when the modulus is unusable.");
+        System.out.println("Due to a bug in emulator, the test may very rarely fail with a wrong signature.");
+
+        StressTest.run(APPLET_AID, RSAServer.class, REAL_CARD, ServerMgr::new, TEST_COUNT, (mgr, workPath) -> {
+            ResponseAPDU res = mgr.transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_RESET, NONE, NONE));
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+
+            StressTest.generateMessage(workPath);
+
+            Assert.assertTrue(StressTest.runReference(StressTest.reference(workPath, "client", "generate"), true));
+            Assert.assertTrue(StressTest.runReference(StressTest.reference(workPath, "client", "sign"), false));
+
+            res = mgr.generateKeys();
+            Assert.assertEquals(SW_NO_ERROR, res.getSW());
+            Assert.assertEquals(0, res.getData().length);
+
+            mgr.setClientKeys();
+
+            int ret = mgr.getPublicModulus().get(0).getSW();
             if (ret != SW_NO_ERROR) {
-                System.out.println("\u001B[1;31mNOK\u001B[0m");
+                if (ret == SW_WRONG_LENGTH) {
+                    System.out.println("Modulus generated is not a 4096-bit number!");
+                    return StressTest.Result.GENERATE_FAILED;
+                }
+
+                Assert.fail(String.format("SW: %04X", ret));
+            }
 
+            res = mgr.signMessage();
+            Assert.assertNotNull(res);
+            ret = res.getSW();
+            if (ret != SW_NO_ERROR) {
                 if (ret == SW_WRONG_DATA) {
                     System.out.println("Fraudulent or corrupt signature detected!");
 
                     if (REAL_CARD)
                         Assert.fail("Final signature computation on a real card should never fail.");
 
-                    nokSignCount++;
-                    continue;
+                    return StressTest.Result.SIGN_FAILED;
                 }
 
                 Assert.fail(String.format("SW: %04X", ret));
             }
 
-            Assert.assertEquals(SW_NO_ERROR, responseAPDU.getSW());
-
-            Assert.assertEquals(0, serverVerify.start().waitFor());
-            System.out.println("\u001B[1;32mOK\u001B[0m");
-        }
-
-        System.out.printf("Result: Generate/Sign/All: %d/%d/%d (%.02f %% failed)",
-                nokGenCount, nokSignCount, TEST_COUNT, (double) (nokGenCount + nokSignCount) * 100 / TEST_COUNT
-        );
+            Assert.assertTrue(StressTest.runReference(StressTest.reference(workPath, "server", "verify"), false));
+            return StressTest.Result.OK;
+        });
     }
 
 }